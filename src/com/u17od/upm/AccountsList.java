@@ -55,17 +55,20 @@ public class AccountsList extends ListActivity {
     public boolean onContextItemSelected(MenuItem item) {
         AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
         int itemId = item.getItemId();
-        if (itemId == R.id.edit_account) {
-            editAccount(getAccount(info.targetView));
-            return true;
-        } else if (itemId == R.id.copy_username) {
-            setClipboardText(getUsername(getAccount(info.targetView)));
-            return true;
-        } else if (itemId == R.id.copy_password) {
-            setClipboardText(getPassword(getAccount(info.targetView)));
-            return true;
-        } else if (itemId == R.id.launch_url) {
-            launchURL(getURL(getAccount(info.targetView)));
+        if (itemId == R.id.edit_account || itemId == R.id.copy_username
+                || itemId == R.id.copy_password || itemId == R.id.launch_url) {
+            AccountInformation account = getAccount(info.targetView);
+            if (account == null) {
+                UIUtilities.showToast(this, R.string.problem_reading_upm_db, true);
+            } else if (itemId == R.id.edit_account) {
+                editAccount(account);
+            } else if (itemId == R.id.copy_username) {
+                setClipboardText(getUsername(account));
+            } else if (itemId == R.id.copy_password) {
+                setClipboardText(getPassword(account));
+            } else {
+                launchURL(getURL(account));
+            }
             return true;
         }
         return super.onContextItemSelected(item);
@@ -133,7 +136,14 @@ public class AccountsList extends ListActivity {
     protected void onListItemClick(ListView l, View v, int position, long id) {
         // Get the name of the account the user selected
         TextView itemSelected = (TextView) v;
-        viewAccount(getPasswordDatabase().getAccount(itemSelected.getText().toString()));
+        // If the database is still being decrypted this waits for the
+        // segment the account is in
+        AccountInformation account = getPasswordDatabase().getAccount(itemSelected.getText().toString());
+        if (account == null) {
+            UIUtilities.showToast(this, R.string.problem_reading_upm_db, true);
+        } else {
+            viewAccount(account);
+        }
     }
 
     protected PasswordDatabase getPasswordDatabase() {
@@ -107,6 +107,7 @@ public class AppEntryActivity extends Activity {
                 // databaseFileToDecrypt is used in AppEntryActivity to indicate
                 // weather EnterMasterPassword needs to be shown.
                 EnterMasterPassword.databaseFileToDecrypt = null;
+                ((UPMApplication) getApplication()).lock();
                 finish();
             }
             break;
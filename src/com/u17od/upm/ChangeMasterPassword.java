@@ -36,7 +36,6 @@ import android.widget.Toast;
 
 import com.u17od.upm.crypto.InvalidPasswordException;
 import com.u17od.upm.database.PasswordDatabase;
-import com.u17od.upm.database.ProblemReadingDatabaseFile;
 
 public class ChangeMasterPassword extends Activity implements OnClickListener {
 
@@ -97,14 +96,11 @@ public class ChangeMasterPassword extends Activity implements OnClickListener {
         protected Integer doInBackground(Void... params) {
             Integer messageCode = null;
             try {
-                // Attempt to decrypt the database so-as to test the password
+                // Check the existing password and re-encrypt the database
+                // from what's already in memory
                 char[] password = existingPassword.getText().toString().toCharArray();
-                new PasswordDatabase(Utilities.getDatabaseFile(ChangeMasterPassword.this), password);
-
-                // Re-encrypt the database
-                getPasswordDatabase().changePassword(newPassword.getText().toString().toCharArray());
                 synchronized (UPMApplication.sDataLock) {
-                    getPasswordDatabase().save();
+                    getPasswordDatabase().changePassword(password, newPassword.getText().toString().toCharArray());
                 }
 
                 // Ask the BackupManager to backup the database using
@@ -123,9 +119,6 @@ public class ChangeMasterPassword extends Activity implements OnClickListener {
             } catch (GeneralSecurityException e) {
                 Log.e("ChangeMasterPassword", e.getMessage(), e);
                 messageCode = R.string.generic_error;
-            } catch (ProblemReadingDatabaseFile e) {
-                Log.e("ChangeMasterPassword", e.getMessage(), e);
-                messageCode = R.string.generic_error;
             }
             
             return messageCode;
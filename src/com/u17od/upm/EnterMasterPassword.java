@@ -175,6 +175,7 @@ public class EnterMasterPassword extends Activity implements OnClickListener {
                 // Attempt to decrypt the database
                 decryptedPasswordDatabase = 
                         new PasswordDatabase(databaseFileToDecrypt, password);
+                upgradeDatabaseInBackground(decryptedPasswordDatabase);
             } catch (InvalidPasswordException e) {
                 Log.e("EnterMasterPassword", e.getMessage(), e);
                 errorMessage = e.getMessage();
@@ -196,6 +197,42 @@ public class EnterMasterPassword extends Activity implements OnClickListener {
             return errorCode;
         }
 
+        /**
+         * If the database is in an older format (e.g. a 1.x database
+         * encrypted with DES) rewrite it in the current one. It's done in
+         * the background so the user doesn't wait any longer for the
+         * database to open. The new file is checked before it replaces the
+         * old one (see PasswordDatabase.upgrade()) and, as the format is
+         * recorded in the file, once it's been upgraded every later unlock
+         * goes straight to the current format. A failure here isn't fatal;
+         * the database is still open and we'll just try again next time.
+         */
+        private void upgradeDatabaseInBackground(final PasswordDatabase database) {
+            if (!database.isUpgradeRequired()) {
+                return;
+            }
+
+            final UPMApplication app = (UPMApplication) activity.getApplication();
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    int oldVersion = database.getDbVersion();
+                    try {
+                        synchronized (UPMApplication.sDataLock) {
+                            database.upgrade();
+                        }
+                        Log.i("EnterMasterPassword", "Upgraded database from version " + oldVersion + " to " + database.getDbVersion());
+                        app.getBackupManager().dataChanged();
+                    } catch (IOException e) {
+                        Log.e("EnterMasterPassword", "Problem upgrading database", e);
+                    } catch (GeneralSecurityException e) {
+                        Log.e("EnterMasterPassword", "Problem upgrading database", e);
+                    }
+                }
+            }, "UpgradeDatabase");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+
         @Override
         protected void onPostExecute(Integer result) {
             activity.getProgressDialog().dismiss();
@@ -46,6 +46,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
 
 
 public class FullAccountList extends AccountsList {
@@ -310,13 +311,31 @@ public class FullAccountList extends AccountsList {
     }
 
     private void deleteDatabase() {
+        ((UPMApplication) getApplication()).lock();
         Utilities.getDatabaseFile(this).delete();
+        Utilities.getJournalFile(this).delete();
         Utilities.setDatabaseFileName(null, this);
     }
 
     private void backupDatabase() {
         File backupFile = Utilities.getBackupFile(FullAccountList.this);
         File databaseFile = Utilities.getDatabaseFile(this);
+
+        // Make sure the database file includes the changes in the journal
+        try {
+            synchronized (UPMApplication.sDataLock) {
+                getPasswordDatabase().compact();
+            }
+        } catch (IOException e) {
+            Log.e("FullAccountList", e.getMessage(), e);
+            UIUtilities.showToast(this, String.format(getString(R.string.problem_saving_db), e.getMessage()), true);
+            return;
+        } catch (GeneralSecurityException e) {
+            Log.e("FullAccountList", e.getMessage(), e);
+            UIUtilities.showToast(this, String.format(getString(R.string.problem_saving_db), e.getMessage()), true);
+            return;
+        }
+
         if (((UPMApplication) getApplication()).copyFile(databaseFile, backupFile, this)) {
             String message = String.format(getString(R.string.backup_complete), backupFile.getAbsolutePath());
             UIUtilities.showToast(this, message, false);
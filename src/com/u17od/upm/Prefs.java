@@ -20,11 +20,12 @@
  */
 package com.u17od.upm;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.os.Bundle;
+import android.preference.CheckBoxPreference;
 import android.preference.EditTextPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
@@ -44,6 +45,9 @@ public class Prefs extends PreferenceActivity implements OnPreferenceChangeListe
     // Configuration setting constants
     public static final String PREF_TRUSTED_HOSTNAME = "trustedHostname";
     public static final String SYNC_METHOD = "sync.method";
+    public static final String PREF_SEARCH_ACCOUNT_DETAILS = "searchAccountDetails";
+    public static final String PREF_SYNCED_REMOTE_DB = "sync.http.remoteDatabase";
+    public static final String PREF_SYNCED_REMOTE_REVISION = "sync.http.remoteRevision";
 
     public static interface SyncMethod {
         public static final String DISABLED = "disabled";
@@ -57,6 +61,7 @@ public class Prefs extends PreferenceActivity implements OnPreferenceChangeListe
     private ListPreference sharedURLAuthPref;
     private EditTextPreference sharedURLPref;
     private EditTextPreference trustedHostnamePref;
+    private CheckBoxPreference searchAccountDetailsPref;
 
     private PasswordDatabase db;
     private String originalSyncMethod;
@@ -98,7 +103,7 @@ public class Prefs extends PreferenceActivity implements OnPreferenceChangeListe
         }
         sharedURLPref.setText(sharedURL);
 
-        ArrayList<String> accountNamesAL = db.getAccountNames();
+        List<String> accountNamesAL = db.getAccountNames();
         String[] accountNames = new String[accountNamesAL.size() + 1];
         accountNames[0] = "";
         System.arraycopy(accountNamesAL.toArray(), 0, accountNames, 1, accountNamesAL.size());
@@ -109,6 +114,8 @@ public class Prefs extends PreferenceActivity implements OnPreferenceChangeListe
         // Some preferences are stored using Android's SharedPreferences
         String trustedHostname = settings.getString(PREF_TRUSTED_HOSTNAME, "");
         trustedHostnamePref.setText(trustedHostname);
+        searchAccountDetailsPref = (CheckBoxPreference) findPreference("search_account_details");
+        searchAccountDetailsPref.setChecked(settings.getBoolean(PREF_SEARCH_ACCOUNT_DETAILS, false));
 
         Resources res = getResources();
         syncMethodHuman= res.getStringArray(R.array.sync_methods_human);
@@ -212,10 +219,13 @@ public class Prefs extends PreferenceActivity implements OnPreferenceChangeListe
        SharedPreferences.Editor editor = settings.edit();
        editor.putString(PREF_TRUSTED_HOSTNAME, trustedHostnamePref.getText());
        editor.putString(SYNC_METHOD, syncMethodPreference.getValue());
+       editor.putBoolean(PREF_SEARCH_ACCOUNT_DETAILS, searchAccountDetailsPref.isChecked());
 
        // Commit the edits!
        editor.commit();
 
+       db.setAccountDetailsIndexed(searchAccountDetailsPref.isChecked());
+
        // Ask the BackupManager to backup the database using
        // Google's cloud backup service.
        Log.i("Prefs", "Calling BackupManager().dataChanged()");
@@ -21,9 +21,7 @@
 package com.u17od.upm;
 
 import java.io.IOException;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
+import java.security.GeneralSecurityException;
 
 import com.u17od.upm.database.PasswordDatabase;
 
@@ -38,6 +36,8 @@ public class SaveDatabaseAsyncTask extends AsyncTask<PasswordDatabase, Void, Str
     private ProgressDialog progressDialog;
     private Activity activity;
     private Callback callback;
+    private PasswordDatabase database;
+    private boolean compactionRequired;
 
     public SaveDatabaseAsyncTask(Activity activity, Callback callback) {
         this.activity = activity;
@@ -52,20 +52,20 @@ public class SaveDatabaseAsyncTask extends AsyncTask<PasswordDatabase, Void, Str
     @Override
     protected String doInBackground(PasswordDatabase... params) {
         String message = null;
+        database = params[0];
 
         try {
+            // Only the changes are written (to the database journal) so
+            // this is quick however big the database is
             synchronized (UPMApplication.sDataLock) {
-                params[0].save();
+                compactionRequired = database.commit();
             }
 
             // Ask the BackupManager to backup the database using
             // Google's cloud backup service.
             Log.i("SaveDatabaseAsyncTask", "Calling BackupManager().dataChanged()");
             ((UPMApplication) activity.getApplication()).getBackupManager().dataChanged();
-        } catch (IllegalBlockSizeException e) {
-            Log.e("SaveDatabaseAsyncTask", e.getMessage(), e);
-            message = String.format(activity.getString(R.string.problem_saving_db), e.getMessage());
-        } catch (BadPaddingException e) {
+        } catch (GeneralSecurityException e) {
             Log.e("SaveDatabaseAsyncTask", e.getMessage(), e);
             message = String.format(activity.getString(R.string.problem_saving_db), e.getMessage());
         } catch (IOException e) {
@@ -83,8 +83,40 @@ public class SaveDatabaseAsyncTask extends AsyncTask<PasswordDatabase, Void, Str
         }
 
         progressDialog.dismiss();
-        
+
+        // The journal has grown big enough to fold back into the database
+        // file. There's no need to make the user wait for this.
+        if (compactionRequired) {
+            new CompactDatabaseAsyncTask((UPMApplication) activity.getApplication()).execute(database);
+        }
+
         callback.execute();
     }
 
+
+    private static class CompactDatabaseAsyncTask extends AsyncTask<PasswordDatabase, Void, Void> {
+
+        private UPMApplication application;
+
+        public CompactDatabaseAsyncTask(UPMApplication application) {
+            this.application = application;
+        }
+
+        @Override
+        protected Void doInBackground(PasswordDatabase... params) {
+            try {
+                synchronized (UPMApplication.sDataLock) {
+                    params[0].compact();
+                }
+                application.getBackupManager().dataChanged();
+            } catch (IOException e) {
+                Log.e("CompactDatabaseAsyncTask", e.getMessage(), e);
+            } catch (GeneralSecurityException e) {
+                Log.e("CompactDatabaseAsyncTask", e.getMessage(), e);
+            }
+            return null;
+        }
+
+    }
+
 }
@@ -20,20 +20,59 @@
  */
 package com.u17od.upm;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import android.app.SearchManager;
 import android.content.Intent;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
 
+/**
+ * Lists the accounts matching the search text. The list is filtered as the
+ * search text is typed, starting with the query from the ACTION_SEARCH
+ * intent that opened the activity.
+ */
 public class SearchResults extends AccountsList {
 
+    private EditText searchText;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.search_results);
         registerForContextMenu(getListView());
+
+        searchText = (EditText) findViewById(R.id.search_text);
+        searchText.addTextChangedListener(new TextWatcher() {
+            public void afterTextChanged(Editable s) {
+                if (getPasswordDatabase() != null) {
+                    filterAccountsList(s.toString());
+                }
+            }
+
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+        });
+
+        // Only take the query from the intent when the activity is first
+        // created. After that the search text is restored with the rest of
+        // the activity's state.
+        if (savedInstanceState == null) {
+            setSearchText(getIntent());
+        }
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        setIntent(intent);
+        setSearchText(intent);
     }
 
     @Override
@@ -50,30 +89,23 @@ public class SearchResults extends AccountsList {
         if (getPasswordDatabase() == null) {
             finish();
         } else {
-            doSearch();
+            // Refresh the results in case an account was changed
+            filterAccountsList(searchText.getText().toString());
         }
     }
 
-    private void doSearch() {
-        final Intent queryIntent = getIntent();
-        final String queryAction = queryIntent.getAction();
-        if (Intent.ACTION_SEARCH.equals(queryAction)) {
-            filterAccountsList(queryIntent.getStringExtra(SearchManager.QUERY));
+    private void setSearchText(Intent intent) {
+        if (Intent.ACTION_SEARCH.equals(intent.getAction())) {
+            String query = intent.getStringExtra(SearchManager.QUERY);
+            searchText.setText(query);
+            if (query != null) {
+                searchText.setSelection(query.length());
+            }
         }
     }
 
     private void filterAccountsList(String textToFilterOn) {
-        ArrayList<String> allAccountNames = getPasswordDatabase().getAccountNames(); 
-        ArrayList<String> filteredAccountNames = new ArrayList<String>();
-        String textToFilterOnLC = textToFilterOn.toLowerCase();
-        
-        // Loop through all the accounts and pick out those that match the search string
-        for (String accountName : allAccountNames) {
-            if (accountName.toLowerCase().indexOf(textToFilterOnLC) > -1) {
-                filteredAccountNames.add(accountName);
-            }
-        }
-
+        List<String> filteredAccountNames = getPasswordDatabase().findAccountNames(textToFilterOn);
         setListAdapter(new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, filteredAccountNames));
     }
 
@@ -88,6 +88,7 @@ public abstract class SyncDatabaseActivity extends Activity {
             syncResult = SyncResult.UPLOAD_LOCAL;
         } else if (dbDownloadedOnSync.getRevision() > app.getPasswordDatabase().getRevision()) {
             app.copyFile(downloadedDatabaseFile, Utilities.getDatabaseFile(this), this);
+            Utilities.getJournalFile(this).delete();
             app.setPasswordDatabase(dbDownloadedOnSync);
             dbDownloadedOnSync.setDatabaseFile(Utilities.getDatabaseFile(this));
             setResult(RESULT_REFRESH);
@@ -111,6 +112,16 @@ public abstract class SyncDatabaseActivity extends Activity {
         return syncResult;
     }
 
+    /**
+     * Fold any changes in the journal back into the database file so that
+     * the file we upload contains everything.
+     */
+    protected void compactDatabase() throws IOException, GeneralSecurityException {
+        synchronized (UPMApplication.sDataLock) {
+            getPasswordDatabase().compact();
+        }
+    }
+
     protected PasswordDatabase getPasswordDatabase() {
         return ((UPMApplication) getApplication()).getPasswordDatabase();
     }
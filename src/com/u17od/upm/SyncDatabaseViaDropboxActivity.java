@@ -18,6 +18,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 
 import static com.u17od.upm.DropboxConstants.DROPBOX_ACCESS_TOKEN;
 
@@ -188,6 +189,7 @@ public class SyncDatabaseViaDropboxActivity extends SyncDatabaseActivity {
 
             FileInputStream inputStream = null;
             try {
+                compactDatabase();
                 File databaseFile = getPasswordDatabase().getDatabaseFile();
                 inputStream = new FileInputStream(databaseFile);
                 DropboxClientFactory.getClient().files()
@@ -197,6 +199,9 @@ public class SyncDatabaseViaDropboxActivity extends SyncDatabaseActivity {
             } catch (IOException e) {
                 Log.e(TAG, "IOException during database upload", e);
                 result = ERROR_IO;
+            } catch (GeneralSecurityException e) {
+                Log.e(TAG, "Problem compacting database before upload", e);
+                result = ERROR_IO;
             } catch (DbxException e) {
                 Log.e(TAG, "DbxException downloading database", e);
                 return ERROR_DROPBOX;
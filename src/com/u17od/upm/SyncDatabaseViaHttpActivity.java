@@ -1,12 +1,19 @@
 package com.u17od.upm;
 
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Date;
+
 import android.app.ProgressDialog;
 import android.content.SharedPreferences;
 import android.os.AsyncTask;
 import android.util.Log;
 
 import com.u17od.upm.database.AccountInformation;
+import com.u17od.upm.database.PasswordDatabase;
 import com.u17od.upm.transport.HTTPTransport;
+import com.u17od.upm.transport.ProgressListener;
+import com.u17od.upm.transport.StaleRevisionException;
 import com.u17od.upm.transport.TransportException;
 
 /**
@@ -17,6 +24,12 @@ import com.u17od.upm.transport.TransportException;
  */
 public class SyncDatabaseViaHttpActivity extends SyncDatabaseActivity {
 
+    /**
+     * Set once an upload has been turned down because the remote database
+     * changed and the sync has been started again
+     */
+    private boolean retriedStaleUpload;
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -33,16 +46,77 @@ public class SyncDatabaseViaHttpActivity extends SyncDatabaseActivity {
         new UploadDatabase().execute();
     }
 
-    private class RetrieveRemoteDatabaseFromHTTP extends AsyncTask<Void, Void, Integer> {
+    /**
+     * Unless the local database is being uploaded over it the remote
+     * database is now the one we downloaded. Remember its revision so that
+     * if it's still the same next time it doesn't have to be downloaded.
+     */
+    @Override
+    protected int syncDb(PasswordDatabase dbDownloadedOnSync) {
+        int syncResult = super.syncDb(dbDownloadedOnSync);
+        if (dbDownloadedOnSync != null && syncResult != SyncResult.UPLOAD_LOCAL) {
+            rememberSyncedRevision(dbDownloadedOnSync.getRevision());
+        }
+        return syncResult;
+    }
+
+    private void rememberSyncedRevision(int revision) {
+        SharedPreferences.Editor editor = getSharedPreferences(Prefs.PREFS_NAME, 0).edit();
+        editor.putString(Prefs.PREF_SYNCED_REMOTE_DB, getRemoteDatabaseId());
+        editor.putInt(Prefs.PREF_SYNCED_REMOTE_REVISION, revision);
+        editor.commit();
+    }
+
+    /**
+     * The remote database hasn't changed since it was last synced so its
+     * revision is the one remembered by syncDb(). There's no need to
+     * download or decrypt it to compare it with the local database.
+     */
+    private void syncUnchangedRemoteDb() {
+        SharedPreferences settings = getSharedPreferences(Prefs.PREFS_NAME, 0);
+        int remoteRevision = settings.getInt(Prefs.PREF_SYNCED_REMOTE_REVISION, -1);
+        if (remoteRevision < getPasswordDatabase().getRevision()) {
+            uploadDatabase();
+        } else {
+            UIUtilities.showToast(this, R.string.db_uptodate);
+            finish();
+        }
+        ((UPMApplication) getApplication()).setTimeOfLastSync(new Date());
+    }
+
+    /**
+     * @return The location and name of the remote database
+     */
+    private String getRemoteDatabaseId() {
+        return getPasswordDatabase().getDbOptions().getRemoteLocation() + " "
+                + Utilities.getDatabaseFileName(this);
+    }
+
+    private class RetrieveRemoteDatabaseFromHTTP extends AsyncTask<Void, Integer, Integer> {
 
         private static final int PROBLEM_DOWNLOADING_DB = 1;
         private static final int NO_REMOTE_DB = 2;
+        private static final int REMOTE_DB_UNCHANGED = 3;
 
         private ProgressDialog progressDialog;
 
         @Override
         protected void onPreExecute() {
-            progressDialog = ProgressDialog.show(SyncDatabaseViaHttpActivity.this, "", getString(R.string.syncing_database));
+            // The bar shows how much of the database has been downloaded
+            // once we know how big it is
+            progressDialog = new ProgressDialog(SyncDatabaseViaHttpActivity.this);
+            progressDialog.setMessage(getString(R.string.syncing_database));
+            progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            progressDialog.setIndeterminate(true);
+            progressDialog.setMax(100);
+            progressDialog.setCancelable(false);
+            progressDialog.show();
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... percent) {
+            progressDialog.setIndeterminate(false);
+            progressDialog.setProgress(percent[0]);
         }
 
         @Override
@@ -66,10 +140,43 @@ public class SyncDatabaseViaHttpActivity extends SyncDatabaseActivity {
                     SharedPreferences settings = getSharedPreferences(Prefs.PREFS_NAME, 0);
                     String trustedHostname = settings.getString(Prefs.PREF_TRUSTED_HOSTNAME, "");
 
+                    // We can only tell the remote database hasn't changed
+                    // without downloading it if we know what it was when
+                    // it was last synced. If the local database is older
+                    // than that it's been replaced so download it anyway.
+                    int syncedRevision = settings.getInt(Prefs.PREF_SYNCED_REMOTE_REVISION, -1);
+                    boolean conditional = getRemoteDatabaseId().equals(settings.getString(Prefs.PREF_SYNCED_REMOTE_DB, null))
+                            && syncedRevision >= 0 && syncedRevision <= getPasswordDatabase().getRevision();
+
                     HTTPTransport transport = new HTTPTransport(getFileStreamPath(
                             FullAccountList.CERT_FILE_NAME), trustedHostname,
                             getApplicationContext().getFilesDir());
-                    downloadedDatabaseFile = transport.getRemoteFile(remoteURL, remoteFileName, remoteURLUsername, remoteURLPassword);
+                    ProgressListener listener = new ProgressListener() {
+                        private int lastPercent = -1;
+
+                        public void onProgress(long bytesTransferred, long totalBytes) {
+                            if (totalBytes > 0) {
+                                int percent = (int) (bytesTransferred * 100 / totalBytes);
+                                if (percent != lastPercent) {
+                                    lastPercent = percent;
+                                    publishProgress(percent);
+                                }
+                            }
+                        }
+                    };
+                    if (conditional) {
+                        downloadedDatabaseFile = transport.getRemoteFileIfModified(remoteURL, remoteFileName, remoteURLUsername, remoteURLPassword, listener);
+                    } else {
+                        downloadedDatabaseFile = transport.getRemoteFile(remoteURL, remoteFileName, remoteURLUsername, remoteURLPassword, listener);
+                    }
+
+                    if (transport.isRemoteFileUnchanged()) {
+                        errorCode = REMOTE_DB_UNCHANGED;
+                    } else {
+                        // What we remembered about the remote database no
+                        // longer holds until this download has been synced
+                        settings.edit().remove(Prefs.PREF_SYNCED_REMOTE_REVISION).commit();
+                    }
                 } catch (TransportException e) {
                     Log.e("DownloadRemoteDatabase", "Problem downloading database", e);
                     errorCode = PROBLEM_DOWNLOADING_DB;
@@ -87,6 +194,9 @@ public class SyncDatabaseViaHttpActivity extends SyncDatabaseActivity {
                 case 0:
                     decryptDatabase();
                     break;
+                case REMOTE_DB_UNCHANGED:
+                    syncUnchangedRemoteDb();
+                    break;
                 case PROBLEM_DOWNLOADING_DB:
                     UIUtilities.showToast(SyncDatabaseViaHttpActivity.this,
                             R.string.problem_downloading_db);
@@ -106,6 +216,7 @@ public class SyncDatabaseViaHttpActivity extends SyncDatabaseActivity {
 
         private static final int UPLOAD_OK = 0;
         private static final int UPLOAD_ERROR = 1;
+        private static final int UPLOAD_STALE = 2;
 
         private ProgressDialog progressDialog;
 
@@ -135,11 +246,29 @@ public class SyncDatabaseViaHttpActivity extends SyncDatabaseActivity {
                     getApplicationContext().getFilesDir());
             String fileName = getPasswordDatabase().getDatabaseFile().getName();
             try {
-                transport.delete(remoteURL, fileName, remoteURLUsername, remoteURLPassword);
-                transport.put(remoteURL, getPasswordDatabase().getDatabaseFile(), remoteURLUsername, remoteURLPassword);
+                compactDatabase();
+                // Only replace the remote database if it's still the one
+                // this sync compared the local database with
+                String expectedRevision = transport.getRemoteRevision(remoteURL, fileName);
+                transport.replace(remoteURL, getPasswordDatabase().getDatabaseFile(), expectedRevision,
+                        remoteURLUsername, remoteURLPassword);
+                // If the server told us the new file's revision the next
+                // sync can tell it hasn't changed without downloading it
+                if (transport.getRemoteRevision(remoteURL, fileName) != null) {
+                    rememberSyncedRevision(getPasswordDatabase().getRevision());
+                }
+            } catch (StaleRevisionException e) {
+                Log.w("FullAccountList", e.getMessage());
+                result = UPLOAD_STALE;
             } catch (TransportException e) {
                 Log.e("FullAccountList", e.getMessage(), e);
                 result = UPLOAD_ERROR;
+            } catch (IOException e) {
+                Log.e("FullAccountList", e.getMessage(), e);
+                result = UPLOAD_ERROR;
+            } catch (GeneralSecurityException e) {
+                Log.e("FullAccountList", e.getMessage(), e);
+                result = UPLOAD_ERROR;
             }
 
             return result;
@@ -148,6 +277,13 @@ public class SyncDatabaseViaHttpActivity extends SyncDatabaseActivity {
         @Override
         protected void onPostExecute(Integer result) {
             progressDialog.dismiss();
+            if (result == UPLOAD_STALE && !retriedStaleUpload) {
+                // Someone else has uploaded a database since we downloaded
+                // it so sync with theirs instead
+                retriedStaleUpload = true;
+                downloadDatabase();
+                return;
+            }
             if (result == UPLOAD_OK) {
                 UIUtilities.showToast(SyncDatabaseViaHttpActivity.this, R.string.db_sync_complete);
             } else {
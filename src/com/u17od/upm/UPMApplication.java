@@ -30,9 +30,11 @@ import java.util.Date;
 import android.app.Activity;
 import android.app.Application;
 import android.app.backup.BackupManager;
+import android.content.SharedPreferences;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.u17od.upm.crypto.KeyCache;
 import com.u17od.upm.database.PasswordDatabase;
 
 /**
@@ -66,12 +68,25 @@ public class UPMApplication extends Application {
 
     public void setPasswordDatabase(PasswordDatabase passwordDatabase) {
         this.passwordDatabase = passwordDatabase;
+        if (passwordDatabase != null) {
+            SharedPreferences settings = getSharedPreferences(Prefs.PREFS_NAME, 0);
+            passwordDatabase.setAccountDetailsIndexed(settings.getBoolean(Prefs.PREF_SEARCH_ACCOUNT_DETAILS, false));
+        }
     }
 
     public PasswordDatabase getPasswordDatabase() {
         return passwordDatabase;
     }
 
+    /**
+     * Forget the open database and wipe the keys derived from its password.
+     * The password has to be entered again to get back in.
+     */
+    public void lock() {
+        passwordDatabase = null;
+        KeyCache.clear();
+    }
+
     protected boolean copyFile(File source, File dest, Activity activity) {
         boolean successful = false;
 
@@ -129,7 +144,9 @@ public class UPMApplication extends Application {
     }
 
     protected void deleteDatabase(Activity activity) {
+        lock();
         Utilities.getDatabaseFile(activity).delete();
+        Utilities.getJournalFile(activity).delete();
         Utilities.setDatabaseFileName(null, activity);
     }
 
@@ -10,6 +10,8 @@ import android.app.backup.SharedPreferencesBackupHelper;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import com.u17od.upm.database.PasswordDatabase;
+
 public class UPMBackupAgent extends BackupAgentHelper {
 
     private static final String PREFS_BACKUP_KEY = "prefs";
@@ -25,7 +27,8 @@ public class UPMBackupAgent extends BackupAgentHelper {
         Log.i(getClass().getName(),
                 String.format("UPM database file to backup: %s", dbFileName));
         FileBackupHelper dbFileBackupHelper =
-                new FileBackupHelper(this, dbFileName);
+                new FileBackupHelper(this, dbFileName,
+                        dbFileName + PasswordDatabase.JOURNAL_FILE_SUFFIX);
         addHelper(DBFILE_BACKUP_KEY, dbFileBackupHelper);
 
     }
@@ -51,6 +51,14 @@ public class Utilities {
         }
     }
 
+    /**
+     * @return The journal of changes made since the database file was
+     * last written in full
+     */
+    public static File getJournalFile(Activity activity) {
+        return new File(getDatabaseFile(activity).getPath() + PasswordDatabase.JOURNAL_FILE_SUFFIX);
+    }
+
     public static File getBackupFile(Activity activity) {
         return new File(activity.getExternalFilesDir(null), Utilities.DEFAULT_DATABASE_FILE);
     }
@@ -0,0 +1,251 @@
+/*
+ * Universal Password Manager
+ * Copyright (c) 2010-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * An AEAD cipher (AES-GCM or ChaCha20-Poly1305) and the JCA provider used
+ * to run it. Both ciphers take a 256 bit key and a 96 bit nonce and give a
+ * 128 bit tag, so they're interchangeable as far as RecordCipher goes.
+ *
+ * Databases are always written with AES-GCM (see getForWriting()). A
+ * database is synced between devices and ChaCha20-Poly1305 is only
+ * available from API 28, so a database written with it couldn't be opened
+ * on older devices. ChaCha20-Poly1305 can still be read where it's
+ * available.
+ *
+ * The same cipher can be offered by more than one provider (e.g. Conscrypt
+ * and Bouncy Castle) at very different speeds. Only the suite id is stored
+ * with the data and any provider of the suite can read it, so reading just
+ * uses the first provider that has the suite. Before the first write every
+ * provider of AES-GCM is benchmarked and the quickest kept, for writing and
+ * for reading from then on.
+ */
+public class CipherSuite {
+
+    public static final int AES_GCM = 1;
+    public static final int CHACHA20_POLY1305 = 2;
+
+    static final int NONCE_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+
+    private static final int KEY_LENGTH = 32;
+
+    /**
+     * The transformation names each suite can go by (indexed by the suite
+     * id). Providers don't agree on what to call ChaCha20-Poly1305.
+     */
+    private static final String[][] TRANSFORMATIONS = {
+        null,
+        {"AES/GCM/NoPadding"},
+        {"ChaCha20-Poly1305", "ChaCha20/Poly1305/NoPadding"}
+    };
+    private static final String[] KEY_ALGORITHMS = {null, "AES", "ChaCha20"};
+
+    /**
+     * The amount of data sealed and opened to benchmark a provider. It's
+     * about the size of a sealed segment.
+     */
+    private static final int BENCHMARK_LENGTH = 16 * 1024;
+
+    /**
+     * The suite all databases are written with
+     */
+    private static final int WRITE_SUITE = AES_GCM;
+
+    private static CipherSuite[] instances = new CipherSuite[TRANSFORMATIONS.length];
+    private static boolean[] benchmarked = new boolean[TRANSFORMATIONS.length];
+
+    private int id;
+    private String transformation;
+    private Provider provider;
+    private long nanos;
+
+
+    private CipherSuite(int id, String transformation, Provider provider) {
+        this.id = id;
+        this.transformation = transformation;
+        this.provider = provider;
+    }
+
+
+    public int getId() {
+        return id;
+    }
+
+
+    public String getName() {
+        return transformation + " (" + provider.getName() + ")";
+    }
+
+
+    /**
+     * @return The time the benchmark took in nanoseconds or 0 if this
+     * provider hasn't been benchmarked
+     */
+    public long getBenchmarkNanos() {
+        return nanos;
+    }
+
+
+    SecretKey createKey(byte[] keyBytes) {
+        return new SecretKeySpec(keyBytes, KEY_ALGORITHMS[id]);
+    }
+
+
+    /**
+     * @return A cipher initialised with the given key and the nonce at the
+     * start of the given array
+     */
+    Cipher getCipher(int mode, SecretKey key, byte[] nonce) throws GeneralSecurityException {
+        AlgorithmParameterSpec parameters;
+        if (id == AES_GCM) {
+            parameters = new GCMParameterSpec(TAG_LENGTH * 8, nonce, 0, NONCE_LENGTH);
+        } else {
+            // The tag length is fixed at 128 bits
+            parameters = new IvParameterSpec(nonce, 0, NONCE_LENGTH);
+        }
+        Cipher cipher = Cipher.getInstance(transformation, provider);
+        cipher.init(mode, key, parameters);
+        return cipher;
+    }
+
+
+    /**
+     * @return A provider of the given suite for reading. If the suite has
+     * been benchmarked it's the quickest, otherwise the first provider that
+     * has it; nothing is benchmarked.
+     * @throws NoSuchAlgorithmException if the suite isn't known or no
+     * provider here supports it
+     */
+    public static synchronized CipherSuite getInstance(int id) throws NoSuchAlgorithmException {
+        if (id < 1 || id >= TRANSFORMATIONS.length) {
+            throw new NoSuchAlgorithmException("Unknown cipher suite [" + id + "]");
+        }
+        if (instances[id] == null) {
+            instances[id] = findProvider(id);
+        }
+        return instances[id];
+    }
+
+
+    /**
+     * @return The suite to write with (AES-GCM) with the quickest provider
+     * of it on this device. The providers are benchmarked the first time.
+     */
+    public static synchronized CipherSuite getForWriting() throws NoSuchAlgorithmException {
+        if (!benchmarked[WRITE_SUITE]) {
+            CipherSuite fastest = benchmark(WRITE_SUITE);
+            benchmarked[WRITE_SUITE] = true;
+            if (fastest != null) {
+                instances[WRITE_SUITE] = fastest;
+            }
+        }
+        return getInstance(WRITE_SUITE);
+    }
+
+
+    /**
+     * @return The first provider of the given suite
+     */
+    private static CipherSuite findProvider(int id) throws NoSuchAlgorithmException {
+        for (Provider provider : Security.getProviders()) {
+            for (String transformation : TRANSFORMATIONS[id]) {
+                try {
+                    Cipher.getInstance(transformation, provider);
+                    return new CipherSuite(id, transformation, provider);
+                } catch (GeneralSecurityException e) {
+                    // This provider doesn't know the cipher by this name
+                }
+            }
+        }
+        throw new NoSuchAlgorithmException("No provider for " + TRANSFORMATIONS[id][0]);
+    }
+
+
+    /**
+     * Time each provider of the given suite.
+     * @return The quickest or null if there are none that work
+     */
+    private static CipherSuite benchmark(int id) {
+        CipherSuite best = null;
+        for (Provider provider : Security.getProviders()) {
+            for (String transformation : TRANSFORMATIONS[id]) {
+                CipherSuite suite = new CipherSuite(id, transformation, provider);
+                try {
+                    suite.nanos = suite.time();
+                } catch (GeneralSecurityException e) {
+                    // This provider doesn't know the cipher by this name
+                    continue;
+                }
+                if (best == null || suite.nanos < best.nanos) {
+                    best = suite;
+                }
+                break;
+            }
+        }
+        return best;
+    }
+
+
+    /**
+     * @return The quickest of a few runs of sealing and opening some data
+     * in nanoseconds. The first run is a warm up.
+     */
+    private long time() throws GeneralSecurityException {
+        byte[] keyBytes = new byte[KEY_LENGTH];
+        RandomSource.nextBytes(keyBytes);
+        SecretKey key = createKey(keyBytes);
+        byte[] plaintext = new byte[BENCHMARK_LENGTH];
+        byte[] nonce = new byte[NONCE_LENGTH];
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 6; i++) {
+            // A cipher will refuse to encrypt twice with the same nonce
+            RandomSource.nextBytes(nonce);
+            long start = System.nanoTime();
+            byte[] sealed = getCipher(Cipher.ENCRYPT_MODE, key, nonce).doFinal(plaintext);
+            byte[] opened = getCipher(Cipher.DECRYPT_MODE, key, nonce).doFinal(sealed);
+            long nanos = System.nanoTime() - start;
+            if (sealed.length != plaintext.length + TAG_LENGTH || !Arrays.equals(opened, plaintext)) {
+                throw new GeneralSecurityException(getName() + " didn't round trip");
+            }
+            if (i > 0) {
+                best = Math.min(best, nanos);
+            }
+        }
+        return best;
+    }
+
+}
@@ -65,9 +65,7 @@ public class DESDecryptionService {
 
     
     public static byte[] decrypt(SecretKey secretKey, byte[] salt, byte[] ciphertext) throws NoSuchAlgorithmException, InvalidKeySpecException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, InvalidPasswordException {
-        PBEParameterSpec pbeParamSpec = new PBEParameterSpec(salt, 20);
-        Cipher desDecryptionCipher = Cipher.getInstance(PBEWithMD5AndDES);
-        desDecryptionCipher.init(Cipher.DECRYPT_MODE, secretKey, pbeParamSpec);
+        Cipher desDecryptionCipher = createDecryptionCipher(secretKey, salt);
 
         // Do the decryption
         byte[] retVal;
@@ -79,4 +77,24 @@ public class DESDecryptionService {
         return retVal;
     }
 
+
+    /**
+     * Create a DES decryption cipher initialised with the given key and salt.
+     * Used when the legacy database is decrypted as a stream rather than
+     * in one go.
+     * @param secretKey
+     * @param salt
+     * @return The initialised cipher
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public static Cipher createDecryptionCipher(SecretKey secretKey, byte[] salt) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+        PBEParameterSpec pbeParamSpec = new PBEParameterSpec(salt, 20);
+        Cipher desDecryptionCipher = Cipher.getInstance(PBEWithMD5AndDES);
+        desDecryptionCipher.init(Cipher.DECRYPT_MODE, secretKey, pbeParamSpec);
+        return desDecryptionCipher;
+    }
+
 }
@@ -0,0 +1,160 @@
+/*
+ * Universal Password Manager
+ * Copyright (c) 2010-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.crypto;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+
+
+/**
+ * An InputStream that decrypts the bytes read from an underlying stream
+ * using an initialised Cipher. Only a small fixed size buffer of ciphertext
+ * and plaintext is held at any one time.
+ *
+ * We don't use javax.crypto.CipherInputStream because its behaviour differs
+ * between platforms. Some versions swallow the BadPaddingException thrown by
+ * the final block (which is how we detect an invalid password) and older
+ * Android versions returned short reads. This stream always fills the
+ * requested buffer unless the end of the stream is reached and reports
+ * padding errors as an IOException whose cause is the BadPaddingException.
+ */
+public class DecryptingInputStream extends FilterInputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private Cipher cipher;
+    private byte[] inBuffer = new byte[BUFFER_SIZE];
+    private byte[] outBuffer;
+    private int outPos;
+    private int outEnd;
+    private boolean finished;
+
+
+    public DecryptingInputStream(InputStream is, Cipher cipher) {
+        super(is);
+        this.cipher = cipher;
+        this.outBuffer = new byte[cipher.getOutputSize(BUFFER_SIZE)];
+    }
+
+
+    @Override
+    public int read() throws IOException {
+        if (outPos >= outEnd && !fill()) {
+            return -1;
+        }
+        return outBuffer[outPos++] & 0xFF;
+    }
+
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int totalRead = 0;
+        while (totalRead < len) {
+            if (outPos >= outEnd && !fill()) {
+                break;
+            }
+            int available = Math.min(outEnd - outPos, len - totalRead);
+            System.arraycopy(outBuffer, outPos, b, off + totalRead, available);
+            outPos += available;
+            totalRead += available;
+        }
+        if (totalRead == 0 && len > 0) {
+            return -1;
+        }
+        return totalRead;
+    }
+
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (outPos >= outEnd && !fill()) {
+                break;
+            }
+            int available = (int) Math.min(outEnd - outPos, n - skipped);
+            outPos += available;
+            skipped += available;
+        }
+        return skipped;
+    }
+
+
+    @Override
+    public int available() throws IOException {
+        return outEnd - outPos;
+    }
+
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+
+    /**
+     * Decrypt the next chunk of the underlying stream into the plaintext
+     * buffer.
+     * @return false if there's nothing left to read
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+        while (outPos >= outEnd) {
+            if (finished) {
+                return false;
+            }
+
+            outPos = 0;
+            int bytesRead = in.read(inBuffer);
+            try {
+                if (bytesRead == -1) {
+                    finished = true;
+                    ensureCapacity(cipher.getOutputSize(0));
+                    outEnd = cipher.doFinal(outBuffer, 0);
+                } else {
+                    ensureCapacity(cipher.getOutputSize(bytesRead));
+                    outEnd = cipher.update(inBuffer, 0, bytesRead, outBuffer, 0);
+                }
+            } catch (BadPaddingException e) {
+                throw new IOException(e);
+            } catch (IllegalBlockSizeException e) {
+                throw new IOException(e);
+            } catch (ShortBufferException e) {
+                throw new IOException(e);
+            }
+        }
+        return true;
+    }
+
+
+    private void ensureCapacity(int size) {
+        if (outBuffer.length < size) {
+            outBuffer = new byte[size];
+        }
+    }
+
+}
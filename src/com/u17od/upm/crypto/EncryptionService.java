@@ -20,26 +20,33 @@
  */
 package com.u17od.upm.crypto;
 
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.PBEParameterSpec;
 
 
+/**
+ * The PBE key made from the user's password and the AES-CBC ciphers used to
+ * read version 2 and 3 databases. Later versions only need the key (see
+ * RecordCipher) so the ciphers are only set up the first time they're used.
+ *
+ * As well as whole arrays, a database can be decrypted as it's read from
+ * a stream so neither the plaintext nor the ciphertext ever has to be held
+ * in memory all at once. Each stream gets its own cipher (with the same key
+ * and parameters) so streams can be used at the same time as each other
+ * and as encrypt() and decrypt().
+ */
 public class EncryptionService {
 
     private static final String PBEWithSHA256And256BitAES = "PBEWithSHA256And256BitAES-CBC-BC";
-    private static final String randomAlgorithm = "SHA1PRNG";
     public static final int SALT_LENGTH = 8;
     public static final int SALT_GEN_ITER_COUNT = 20;
 
@@ -49,54 +56,55 @@ public class EncryptionService {
     private byte salt[];
 
 
-    public EncryptionService(SecretKey secretKey, byte salt[]) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException {
+    public EncryptionService(SecretKey secretKey, byte salt[]) {
         this.secretKey = secretKey;
         this.salt = salt;
-        initCiphers();
     }
 
 
-    public EncryptionService(char[] password, byte[] salt) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException, InvalidKeySpecException {
+    public EncryptionService(char[] password, byte[] salt) throws NoSuchAlgorithmException, InvalidKeySpecException {
         PBEKeySpec pbeKeySpec = new PBEKeySpec(password);
         SecretKeyFactory keyFac = SecretKeyFactory.getInstance(PBEWithSHA256And256BitAES);
         secretKey = keyFac.generateSecret(pbeKeySpec);
 
         this.salt = salt;
-
-        initCiphers();
     }
 
     
-    public EncryptionService(char[] password) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException, InvalidKeySpecException {
+    public EncryptionService(char[] password) throws NoSuchAlgorithmException, InvalidKeySpecException {
         PBEKeySpec pbeKeySpec = new PBEKeySpec(password);
         SecretKeyFactory keyFac = SecretKeyFactory.getInstance(PBEWithSHA256And256BitAES);
         secretKey = keyFac.generateSecret(pbeKeySpec);
 
-        SecureRandom saltGen = SecureRandom.getInstance(randomAlgorithm);
         this.salt = new byte[SALT_LENGTH];
-        saltGen.nextBytes(this.salt);
-
-        initCiphers();
+        RandomSource.nextBytes(this.salt);
     }
 
 
-    private void initCiphers() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
-        PBEParameterSpec pbeParamSpec = new PBEParameterSpec(salt, SALT_GEN_ITER_COUNT);
-
-        encryptionCipher = Cipher.getInstance(PBEWithSHA256And256BitAES);
-        decryptionCipher = Cipher.getInstance(PBEWithSHA256And256BitAES);
+    /**
+     * Set up the ciphers if they haven't been already. Each one costs a PBE
+     * key derivation.
+     */
+    private synchronized void initCiphers() throws GeneralSecurityException {
+        if (decryptionCipher != null) {
+            return;
+        }
 
-        encryptionCipher.init(Cipher.ENCRYPT_MODE, secretKey, pbeParamSpec);
-        decryptionCipher.init(Cipher.DECRYPT_MODE, secretKey, pbeParamSpec);
+        Cipher encryption = createCipher(Cipher.ENCRYPT_MODE);
+        Cipher decryption = createCipher(Cipher.DECRYPT_MODE);
+        encryptionCipher = encryption;
+        decryptionCipher = decryption;
     }
 
 
-    public byte[] encrypt(byte[] cleartext) throws IllegalBlockSizeException, BadPaddingException {
+    public byte[] encrypt(byte[] cleartext) throws GeneralSecurityException {
+        initCiphers();
         return encryptionCipher.doFinal(cleartext);
     }
 
 
-    public byte[] decrypt(byte[] ciphertext) throws IllegalBlockSizeException, InvalidPasswordException {
+    public byte[] decrypt(byte[] ciphertext) throws GeneralSecurityException, InvalidPasswordException {
+        initCiphers();
         byte[] retVal;
         try {
             retVal = decryptionCipher.doFinal(ciphertext);
@@ -107,6 +115,49 @@ public class EncryptionService {
     }
 
 
+    /**
+     * @return A stream of the plaintext of the ciphertext read from the given
+     * stream. If the password is wrong reading the end of the stream throws
+     * an IOException whose cause is a BadPaddingException.
+     */
+    public InputStream decrypt(InputStream is) throws GeneralSecurityException {
+        return new DecryptingInputStream(is, createCipher(Cipher.DECRYPT_MODE));
+    }
+
+
+    /**
+     * @return A new cipher for decrypting part of a database, e.g. just its
+     * first few blocks
+     */
+    public Cipher createDecryptionCipher() throws GeneralSecurityException {
+        return createCipher(Cipher.DECRYPT_MODE);
+    }
+
+
+    private Cipher createCipher(int mode) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(PBEWithSHA256And256BitAES);
+        cipher.init(mode, secretKey, new PBEParameterSpec(salt, SALT_GEN_ITER_COUNT));
+        return cipher;
+    }
+
+
+    /**
+     * @return true if the secret key was created from the given password.
+     * The comparison takes the same time however many characters match.
+     */
+    public boolean isKeyFor(char[] password) {
+        char[] keyPassword = RecordCipher.getPassword(secretKey);
+        if (keyPassword.length != password.length) {
+            return false;
+        }
+        int difference = 0;
+        for (int i = 0; i < password.length; i++) {
+            difference |= keyPassword[i] ^ password[i];
+        }
+        return difference == 0;
+    }
+
+
     public byte[] getSalt() {
         return salt;
     }
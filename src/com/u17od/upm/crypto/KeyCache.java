@@ -0,0 +1,165 @@
+/*
+ * Universal Password Manager
+ * Copyright (c) 2010-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * The keys derived from the password during the current session, keyed by
+ * the key derivation (algorithm and parameters) and salt. Deriving a key
+ * deliberately takes around half a second so it's only done once for each
+ * salt; opening the same database again (e.g. to check the password before
+ * changing it, or a copy downloaded while syncing) then only costs the
+ * decryption.
+ *
+ * Each key is stored with the password it was derived from and is only
+ * handed out for the same password. clear() wipes everything and must be
+ * called when the database is locked.
+ */
+public class KeyCache {
+
+    private static final int MAX_ENTRIES = 8;
+
+    private static LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > MAX_ENTRIES) {
+                eldest.getValue().wipe();
+                return true;
+            }
+            return false;
+        }
+    };
+
+
+    /**
+     * Derive a key with the given key derivation, or return a copy of the
+     * key derived earlier from the same password, salt and key derivation.
+     */
+    public static byte[] deriveKey(KeyDerivation keyDerivation, char[] password, byte[] salt, int keyLength) throws GeneralSecurityException {
+        return deriveKey(keyDerivation, password, salt, keyLength, true);
+    }
+
+
+    /**
+     * Like deriveKey() but a newly derived key is only kept if keep is
+     * true. A password that may be wrong (e.g. one being checked) mustn't
+     * be kept as it would replace the key for the right password, which is
+     * stored under the same id.
+     */
+    public static byte[] deriveKey(KeyDerivation keyDerivation, char[] password, byte[] salt, int keyLength, boolean keep) throws GeneralSecurityException {
+        String id = getId(keyDerivation, salt, keyLength);
+        synchronized (KeyCache.class) {
+            Entry entry = entries.get(id);
+            if (entry != null && entry.isFor(password)) {
+                return entry.key.clone();
+            }
+        }
+
+        // The derivation is done outside the lock so it doesn't hold up
+        // other keys being found
+        byte[] key = keyDerivation.deriveKey(password, salt, keyLength);
+        if (keep) {
+            put(keyDerivation, password, salt, key);
+        }
+        return key;
+    }
+
+
+    /**
+     * Keep a key that was derived without being kept (see deriveKey())
+     * now its password is known to be right.
+     */
+    public static void put(KeyDerivation keyDerivation, char[] password, byte[] salt, byte[] key) {
+        String id = getId(keyDerivation, salt, key.length);
+        synchronized (KeyCache.class) {
+            Entry previous = entries.put(id, new Entry(password, key.clone()));
+            if (previous != null) {
+                previous.wipe();
+            }
+        }
+    }
+
+
+    /**
+     * Wipe all the keys and passwords.
+     */
+    public static synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            entry.wipe();
+        }
+        entries.clear();
+    }
+
+
+    private static String getId(KeyDerivation keyDerivation, byte[] salt, int keyLength) {
+        StringBuilder id = new StringBuilder();
+        for (byte b : keyDerivation.getEncoded()) {
+            id.append(String.format("%02x", b));
+        }
+        id.append('/');
+        for (byte b : salt) {
+            id.append(String.format("%02x", b));
+        }
+        id.append('/').append(keyLength);
+        return id.toString();
+    }
+
+
+    private static class Entry {
+
+        private char[] password;
+        private byte[] key;
+
+        Entry(char[] password, byte[] key) {
+            this.password = password.clone();
+            this.key = key;
+        }
+
+        /**
+         * Compare the passwords in a time that doesn't depend on how many
+         * characters match.
+         */
+        boolean isFor(char[] candidate) {
+            if (candidate.length != password.length) {
+                return false;
+            }
+            int difference = 0;
+            for (int i = 0; i < password.length; i++) {
+                difference |= candidate[i] ^ password[i];
+            }
+            return difference == 0;
+        }
+
+        void wipe() {
+            Arrays.fill(password, '\0');
+            Arrays.fill(key, (byte) 0);
+        }
+
+    }
+
+}
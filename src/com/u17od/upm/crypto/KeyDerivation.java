@@ -0,0 +1,226 @@
+/*
+ * Universal Password Manager
+ * Copyright (c) 2010-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * A way of deriving a key from the user's password and a salt, along with
+ * its cost parameters. The algorithm and parameters are stored in the
+ * database header (see getEncoded() and read()) so each database can use
+ * whatever was the best choice for the device it was created on.
+ *
+ * calibrate() picks the strongest key derivation that takes about a given
+ * time on this device.
+ */
+public abstract class KeyDerivation {
+
+    public static final int PBKDF2_HMAC_SHA1 = 1;
+    public static final int PBKDF2_HMAC_SHA256 = 2;
+    public static final int SCRYPT = 3;
+
+    /**
+     * The scrypt block size (r). 8 is the value recommended by the scrypt
+     * paper and used almost everywhere.
+     */
+    private static final int SCRYPT_BLOCK_SIZE = 8;
+
+    /**
+     * The most memory scrypt is allowed to use. Older Android devices only
+     * give an application a 16MB heap.
+     */
+    private static final int MAX_SCRYPT_MEMORY = 8 * 1024 * 1024;
+
+    /**
+     * How far past the most calibrate() would ever choose a database's key
+     * derivation is allowed to go. The parameters are read from the header
+     * before anything has been authenticated, so without a limit a damaged
+     * or malicious file could run the device out of memory or tie it up for
+     * minutes when it's unlocked.
+     */
+    private static final int READ_LIMIT_FACTOR = 4;
+
+    /**
+     * The most memory and work (N * r * p) a scrypt key derivation read
+     * from a database can ask for. calibrate() keeps 128 * N * r within
+     * MAX_SCRYPT_MEMORY and p within MAX_PARALLELISM.
+     */
+    static final long MAX_READ_SCRYPT_MEMORY = (long) READ_LIMIT_FACTOR * MAX_SCRYPT_MEMORY;
+    static final long MAX_READ_SCRYPT_WORK = (long) READ_LIMIT_FACTOR
+            * (MAX_SCRYPT_MEMORY / 128) * ScryptKeyDerivation.MAX_PARALLELISM;
+
+    /**
+     * The most iterations a PBKDF2 key derivation read from a database can
+     * ask for
+     */
+    static final int MAX_READ_PBKDF2_ITERATIONS = READ_LIMIT_FACTOR * Pbkdf2KeyDerivation.MAX_ITERATIONS;
+
+    private static final int MIN_SCRYPT_COST = 1 << 10;
+    private static final int MIN_PBKDF2_ITERATIONS = 10000;
+
+    /**
+     * The PBKDF2 iterations or scrypt blocks between checks for the thread
+     * being interrupted (see deriveKey())
+     */
+    static final int INTERRUPT_CHECK_INTERVAL = 1024;
+
+    private static final char[] CALIBRATION_PASSWORD = "calibration".toCharArray();
+    private static final byte[] CALIBRATION_SALT = new byte[16];
+
+
+    /**
+     * @return One of PBKDF2_HMAC_SHA1, PBKDF2_HMAC_SHA256 or SCRYPT
+     */
+    public abstract int getAlgorithm();
+
+
+    /**
+     * Derive a key from the password. This deliberately takes a good part of
+     * a second, so PBKDF2-HMAC-SHA256 and scrypt check every so often
+     * whether the thread has been interrupted (e.g. DatabaseFormat
+     * cancelling the check of a format it no longer needs). If it has they
+     * stop and throw a GeneralSecurityException, leaving the thread
+     * interrupted. PBKDF2-HMAC-SHA1 is done by the platform's
+     * SecretKeyFactory and always runs to the end.
+     */
+    public abstract byte[] deriveKey(char[] password, byte[] salt, int keyLength) throws GeneralSecurityException;
+
+
+    protected abstract void writeParameters(DataOutputStream os) throws IOException;
+
+
+    /**
+     * @throws GeneralSecurityException if the thread has been interrupted
+     */
+    static void checkInterrupted() throws GeneralSecurityException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new GeneralSecurityException("The key derivation was interrupted");
+        }
+    }
+
+
+    /**
+     * @return The algorithm and its parameters as stored in a database header
+     */
+    public byte[] getEncoded() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(baos);
+        try {
+            os.write(getAlgorithm());
+            writeParameters(os);
+            os.close();
+        } catch (IOException e) {
+            // Can't happen writing to a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return baos.toByteArray();
+    }
+
+
+    /**
+     * Read a key derivation written by getEncoded().
+     * @throws NoSuchAlgorithmException if the algorithm isn't known
+     * @throws java.security.InvalidAlgorithmParameterException if the
+     * parameters ask for more than a few times the memory or work that
+     * calibrate() would ever choose
+     */
+    public static KeyDerivation read(DataInputStream is) throws IOException, GeneralSecurityException {
+        int algorithm = is.read();
+        switch (algorithm) {
+            case PBKDF2_HMAC_SHA1:
+            case PBKDF2_HMAC_SHA256:
+                return new Pbkdf2KeyDerivation(algorithm, is);
+            case SCRYPT:
+                return new ScryptKeyDerivation(is);
+            default:
+                throw new NoSuchAlgorithmException("Unknown key derivation algorithm [" + algorithm + "]");
+        }
+    }
+
+
+    /**
+     * Find the strongest key derivation that takes about the given time on
+     * this device. scrypt is used if it can be run with a reasonable cost
+     * in the time. Its cost is raised until it hits the memory limit and
+     * then the parallelism is raised to use the rest of the time. On a
+     * device too slow for that PBKDF2-HMAC-SHA256 is used instead.
+     */
+    public static KeyDerivation calibrate(long targetMillis) throws GeneralSecurityException {
+        int cost = MIN_SCRYPT_COST;
+        long nanos = time(new ScryptKeyDerivation(cost, SCRYPT_BLOCK_SIZE, 1));
+        long targetNanos = targetMillis * 1000000;
+
+        if (nanos <= targetNanos) {
+            // The time is proportional to the cost so keep doubling it
+            // while there's time and memory for it
+            while (nanos * 2 <= targetNanos
+                    && ScryptKeyDerivation.getMemory(cost * 2, SCRYPT_BLOCK_SIZE) <= MAX_SCRYPT_MEMORY) {
+                cost *= 2;
+                nanos *= 2;
+            }
+            // Measure the cost we ended up with rather than trusting the
+            // estimate, a bigger working set can be disproportionately slower
+            nanos = time(new ScryptKeyDerivation(cost, SCRYPT_BLOCK_SIZE, 1));
+            int parallelism = (int) Math.max(1, Math.min(ScryptKeyDerivation.MAX_PARALLELISM, targetNanos / nanos));
+            return new ScryptKeyDerivation(cost, SCRYPT_BLOCK_SIZE, parallelism);
+        }
+
+        int iterations = MIN_PBKDF2_ITERATIONS;
+        nanos = time(new Pbkdf2KeyDerivation(PBKDF2_HMAC_SHA256, iterations));
+        if (nanos < targetNanos) {
+            iterations = (int) Math.min(Pbkdf2KeyDerivation.MAX_ITERATIONS, (long) iterations * targetNanos / nanos);
+        }
+        return new Pbkdf2KeyDerivation(PBKDF2_HMAC_SHA256, iterations);
+    }
+
+
+    /**
+     * @return The quickest of a few runs in nanoseconds. Taking the
+     * quickest filters out the JIT and other things running at the time.
+     */
+    private static long time(KeyDerivation keyDerivation) throws GeneralSecurityException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            keyDerivation.deriveKey(CALIBRATION_PASSWORD, CALIBRATION_SALT, 32);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return Math.max(best, 1);
+    }
+
+
+    static byte[] getPasswordBytes(char[] password) {
+        try {
+            return new String(password).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
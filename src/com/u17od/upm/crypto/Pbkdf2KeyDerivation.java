@@ -0,0 +1,137 @@
+/*
+ * Universal Password Manager
+ * Copyright (c) 2010-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.crypto;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * PBKDF2 (RFC 2898) with HMAC-SHA1 or HMAC-SHA256.
+ *
+ * The HMAC-SHA1 variant goes through the platform's SecretKeyFactory.
+ * Android only has PBKDF2WithHmacSHA256 from API 26 so the HMAC-SHA256
+ * variant is implemented here (it's also needed by scrypt).
+ *
+ * Parameters: ITERATIONS (4 byte int)
+ */
+public class Pbkdf2KeyDerivation extends KeyDerivation {
+
+    /**
+     * The most iterations calibrate() will choose
+     */
+    static final int MAX_ITERATIONS = 1000000;
+
+    private int algorithm;
+    private int iterations;
+
+
+    public Pbkdf2KeyDerivation(int algorithm, int iterations) {
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+    }
+
+
+    Pbkdf2KeyDerivation(int algorithm, DataInputStream is) throws IOException, GeneralSecurityException {
+        this.algorithm = algorithm;
+        this.iterations = is.readInt();
+        if (iterations < 1 || iterations > MAX_READ_PBKDF2_ITERATIONS) {
+            throw new InvalidAlgorithmParameterException("Invalid PBKDF2 iteration count [" + iterations + "]");
+        }
+    }
+
+
+    @Override
+    public int getAlgorithm() {
+        return algorithm;
+    }
+
+
+    public int getIterations() {
+        return iterations;
+    }
+
+
+    @Override
+    public byte[] deriveKey(char[] password, byte[] salt, int keyLength) throws GeneralSecurityException {
+        if (algorithm == PBKDF2_HMAC_SHA1) {
+            PBEKeySpec keySpec = new PBEKeySpec(password, salt, iterations, keyLength * 8);
+            SecretKeyFactory keyFac = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+            byte[] key = keyFac.generateSecret(keySpec).getEncoded();
+            keySpec.clearPassword();
+            return key;
+        }
+
+        byte[] passwordBytes = getPasswordBytes(password);
+        try {
+            return pbkdf2("HmacSHA256", passwordBytes, salt, iterations, keyLength);
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+
+    @Override
+    protected void writeParameters(DataOutputStream os) throws IOException {
+        os.writeInt(iterations);
+    }
+
+
+    static byte[] pbkdf2(String macAlgorithm, byte[] password, byte[] salt, int iterations, int keyLength) throws GeneralSecurityException {
+        // SecretKeySpec won't take an empty key. HMAC pads the key with
+        // zeros so a single zero byte gives the same result.
+        Mac mac = Mac.getInstance(macAlgorithm);
+        mac.init(new SecretKeySpec(password.length > 0 ? password : new byte[1], macAlgorithm));
+        int macLength = mac.getMacLength();
+
+        byte[] key = new byte[keyLength];
+        byte[] u = new byte[macLength];
+        byte[] t = new byte[macLength];
+        for (int block = 1, offset = 0; offset < keyLength; block++, offset += macLength) {
+            mac.update(salt);
+            mac.update(new byte[] {(byte) (block >>> 24), (byte) (block >>> 16), (byte) (block >>> 8), (byte) block});
+            mac.doFinal(u, 0);
+            System.arraycopy(u, 0, t, 0, macLength);
+            for (int i = 1; i < iterations; i++) {
+                if (i % INTERRUPT_CHECK_INTERVAL == 0) {
+                    checkInterrupted();
+                }
+                mac.update(u);
+                mac.doFinal(u, 0);
+                for (int j = 0; j < macLength; j++) {
+                    t[j] ^= u[j];
+                }
+            }
+            System.arraycopy(t, 0, key, offset, Math.min(macLength, keyLength - offset));
+        }
+        return key;
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Universal Password Manager
+ * Copyright (c) 2010-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.crypto;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+
+/**
+ * Where the random salts, nonces and ids come from. Each thread has its own
+ * SecureRandom, seeded once the first time the thread needs random bytes,
+ * so there's no reseeding for every salt and no contention between the
+ * threads sealing segments or journal entries. Random bytes are generated
+ * a batch at a time into a buffer and handed out from there; a 12 byte
+ * nonce then costs a copy rather than a call into the generator.
+ *
+ * Because unused bytes wait in the buffer this must only be used for
+ * values that don't have to be kept secret, i.e. not keys.
+ */
+public class RandomSource {
+
+    private static final int BATCH_SIZE = 1024;
+    private static final String randomAlgorithm = "SHA1PRNG";
+
+    private static final ThreadLocal<RandomSource> sources = new ThreadLocal<RandomSource>() {
+        @Override
+        protected RandomSource initialValue() {
+            return new RandomSource();
+        }
+    };
+
+    private SecureRandom random;
+    private byte[] batch = new byte[BATCH_SIZE];
+    private int position = BATCH_SIZE;
+
+
+    private RandomSource() {
+        // SHA1PRNG seeds itself from the system the first time it's used
+        try {
+            random = SecureRandom.getInstance(randomAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            random = new SecureRandom();
+        }
+    }
+
+
+    /**
+     * Fill the given array with random bytes.
+     */
+    public static void nextBytes(byte[] bytes) {
+        nextBytes(bytes, 0, bytes.length);
+    }
+
+
+    /**
+     * Fill part of the given array with random bytes.
+     */
+    public static void nextBytes(byte[] bytes, int offset, int length) {
+        sources.get().fill(bytes, offset, length);
+    }
+
+
+    private void fill(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            if (position == BATCH_SIZE) {
+                random.nextBytes(batch);
+                position = 0;
+            }
+            int chunk = Math.min(length, BATCH_SIZE - position);
+            System.arraycopy(batch, position, bytes, offset, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+}
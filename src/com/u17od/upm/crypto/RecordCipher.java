@@ -0,0 +1,243 @@
+/*
+ * Universal Password Manager
+ * Copyright (c) 2010-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.crypto;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.interfaces.PBEKey;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * Encrypts and authenticates small, independent records (e.g. the entries
+ * in the database journal) using an AEAD CipherSuite. Each record gets its
+ * own random nonce so records can be sealed and opened in any order.
+ *
+ * The key is derived from the user's password and a salt using a
+ * KeyDerivation, or found in the KeyCache if
+ * it's been derived before in this session. The password is taken from
+ * the PBE SecretKey used by EncryptionService so a RecordCipher can be
+ * created wherever we have the database key. A cipher for related records
+ * (e.g. the database journal) can be derived cheaply from an existing one
+ * with deriveCipher(), it uses the same cipher suite.
+ *
+ * A sealed record is laid out as NONCE CIPHERTEXT TAG.
+ *
+ * A key check value (see getKeyCheck()) can be stored beside the records
+ * so a wrong password is detected without opening any of them.
+ */
+public class RecordCipher {
+
+    public static final int SALT_LENGTH = 16;
+    public static final int KEY_CHECK_LENGTH = 16;
+
+    private static final int KEY_LENGTH = 32;
+    private static final int NONCE_LENGTH = CipherSuite.NONCE_LENGTH;
+    private static final int TAG_LENGTH = CipherSuite.TAG_LENGTH;
+    private static final String KEY_CHECK_ALGORITHM = "HmacSHA256";
+    private static final byte[] KEY_CHECK_LABEL = {'U', 'P', 'M', ' ', 'k', 'e', 'y', ' ', 'c', 'h', 'e', 'c', 'k'};
+    private static final String SUBKEY_ALGORITHM = "HmacSHA256";
+    private static final byte[] SUBKEY_LABEL = {'U', 'P', 'M', ' ', 's', 'u', 'b', 'k', 'e', 'y'};
+
+    private CipherSuite suite;
+    private SecretKey key;
+
+    /**
+     * Set by createForCheck(): what's needed to keep the key in the
+     * KeyCache once checkKey() has shown the password is right
+     */
+    private char[] uncheckedPassword;
+    private byte[] uncheckedSalt;
+    private KeyDerivation uncheckedKeyDerivation;
+
+
+    public RecordCipher(SecretKey secretKey, byte[] salt, KeyDerivation keyDerivation, CipherSuite suite) throws GeneralSecurityException {
+        this(deriveKey(secretKey, salt, keyDerivation), suite);
+    }
+
+
+    /**
+     * Create a cipher for a password that may be wrong, e.g. to compare its
+     * key check value with the database's. A key found in the KeyCache is
+     * used but a newly derived key is only kept there once checkKey() on
+     * this cipher succeeds.
+     */
+    public static RecordCipher createForCheck(SecretKey secretKey, byte[] salt, KeyDerivation keyDerivation, CipherSuite suite) throws GeneralSecurityException {
+        char[] password = getPassword(secretKey);
+        RecordCipher cipher = new RecordCipher(KeyCache.deriveKey(keyDerivation, password, salt, KEY_LENGTH, false), suite);
+        cipher.uncheckedPassword = password;
+        cipher.uncheckedSalt = salt;
+        cipher.uncheckedKeyDerivation = keyDerivation;
+        return cipher;
+    }
+
+
+    private RecordCipher(byte[] keyBytes, CipherSuite suite) throws GeneralSecurityException {
+        this.suite = suite;
+        this.key = suite.createKey(keyBytes);
+    }
+
+
+    public CipherSuite getCipherSuite() {
+        return suite;
+    }
+
+
+    /**
+     * Create a cipher with a key derived from this cipher's key and the
+     * given salt. It's as hard to guess as this cipher's key but, unlike
+     * going back to the password, costs next to nothing.
+     */
+    public RecordCipher deriveCipher(byte[] salt) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(SUBKEY_ALGORITHM);
+        mac.init(new SecretKeySpec(key.getEncoded(), SUBKEY_ALGORITHM));
+        mac.update(SUBKEY_LABEL);
+        mac.update(salt);
+        return new RecordCipher(Arrays.copyOf(mac.doFinal(), KEY_LENGTH), suite);
+    }
+
+
+    /**
+     * Encrypt and authenticate the given plaintext. The associated data is
+     * authenticated but not encrypted or included in the result; the same
+     * associated data must be passed to open().
+     */
+    public byte[] seal(byte[] plaintext, byte[] associatedData) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RandomSource.nextBytes(nonce);
+
+        Cipher cipher = suite.getCipher(Cipher.ENCRYPT_MODE, key, nonce);
+        if (associatedData != null) {
+            cipher.updateAAD(associatedData);
+        }
+
+        byte[] sealed = new byte[NONCE_LENGTH + cipher.getOutputSize(plaintext.length)];
+        System.arraycopy(nonce, 0, sealed, 0, NONCE_LENGTH);
+        cipher.doFinal(plaintext, 0, plaintext.length, sealed, NONCE_LENGTH);
+        return sealed;
+    }
+
+
+    /**
+     * Decrypt a record created by seal().
+     * @throws BadPaddingException if the record or associated data has been
+     * tampered with or the key is wrong
+     */
+    public byte[] open(byte[] sealed, byte[] associatedData) throws GeneralSecurityException {
+        if (sealed.length < NONCE_LENGTH + TAG_LENGTH) {
+            throw new BadPaddingException("Sealed record is too short");
+        }
+
+        Cipher cipher = suite.getCipher(Cipher.DECRYPT_MODE, key, sealed);
+        if (associatedData != null) {
+            cipher.updateAAD(associatedData);
+        }
+        return cipher.doFinal(sealed, NONCE_LENGTH, sealed.length - NONCE_LENGTH);
+    }
+
+
+    /**
+     * Calculate the key check value for this key. It's an HMAC of a fixed
+     * label and the given associated data (e.g. the file header holding the
+     * salt) so it reveals nothing about the key and is different for every
+     * salt. It's deliberately not an encryption of a known block; with GCM
+     * that would give away the hash key.
+     */
+    public byte[] getKeyCheck(byte[] associatedData) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(KEY_CHECK_ALGORITHM);
+        mac.init(new SecretKeySpec(key.getEncoded(), KEY_CHECK_ALGORITHM));
+        mac.update(KEY_CHECK_LABEL);
+        if (associatedData != null) {
+            mac.update(associatedData);
+        }
+        return Arrays.copyOf(mac.doFinal(), KEY_CHECK_LENGTH);
+    }
+
+
+    /**
+     * Check the given key check value was created with this key (i.e. the
+     * password is right). The comparison takes the same time however many
+     * bytes match. If the cipher came from createForCheck() and the check
+     * passes its key is kept in the KeyCache.
+     */
+    public boolean checkKey(byte[] keyCheck, byte[] associatedData) throws GeneralSecurityException {
+        byte[] expected = getKeyCheck(associatedData);
+        if (keyCheck.length != expected.length) {
+            return false;
+        }
+        int difference = 0;
+        for (int i = 0; i < expected.length; i++) {
+            difference |= keyCheck[i] ^ expected[i];
+        }
+        if (difference != 0) {
+            return false;
+        }
+
+        if (uncheckedPassword != null) {
+            KeyCache.put(uncheckedKeyDerivation, uncheckedPassword, uncheckedSalt, key.getEncoded());
+            Arrays.fill(uncheckedPassword, '\0');
+            uncheckedPassword = null;
+            uncheckedSalt = null;
+            uncheckedKeyDerivation = null;
+        }
+        return true;
+    }
+
+
+    /**
+     * @return The nonce a record was sealed with. Every call to seal()
+     * uses a new random nonce so this identifies a particular sealed record.
+     */
+    public static byte[] getNonce(byte[] sealed) {
+        return Arrays.copyOf(sealed, Math.min(NONCE_LENGTH, sealed.length));
+    }
+
+
+    private static byte[] deriveKey(SecretKey secretKey, byte[] salt, KeyDerivation keyDerivation) throws GeneralSecurityException {
+        return KeyCache.deriveKey(keyDerivation, getPassword(secretKey), salt, KEY_LENGTH);
+    }
+
+
+    /**
+     * Get the password a PBE SecretKey was created from. If the key isn't a
+     * PBEKey then its encoded form is used instead.
+     */
+    static char[] getPassword(SecretKey secretKey) {
+        if (secretKey instanceof PBEKey) {
+            return ((PBEKey) secretKey).getPassword();
+        }
+
+        byte[] encoded = secretKey.getEncoded();
+        try {
+            return new String(encoded, "ISO-8859-1").toCharArray();
+        } catch (UnsupportedEncodingException e) {
+            // ISO-8859-1 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Universal Password Manager
+ * Copyright (c) 2010-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.crypto;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.util.Arrays;
+
+
+/**
+ * The scrypt memory-hard key derivation function (RFC 7914). Each
+ * derivation needs 128 * r * N bytes of memory so an attacker can't cheaply
+ * run lots of guesses in parallel on a GPU or custom hardware the way they
+ * can with PBKDF2.
+ *
+ * Parameters: LOG2_N (1 byte) R (4 byte int) P (4 byte int)
+ */
+public class ScryptKeyDerivation extends KeyDerivation {
+
+    /**
+     * The most parallelism calibrate() will choose
+     */
+    static final int MAX_PARALLELISM = 16;
+
+    /**
+     * Limits on each parameter read from a database so the memory and work
+     * can be worked out without overflowing. They're then checked against
+     * MAX_READ_SCRYPT_MEMORY and MAX_READ_SCRYPT_WORK.
+     */
+    private static final int MAX_LOG2_COST = 24;
+    private static final int MAX_BLOCK_SIZE = 1024;
+    private static final int MAX_READ_PARALLELISM = 1024;
+
+    private int cost;
+    private int blockSize;
+    private int parallelism;
+
+
+    /**
+     * @param cost N, the CPU/memory cost. Must be a power of 2.
+     * @param blockSize r, the block size
+     * @param parallelism p, the number of times the memory-hard function
+     * is run (one after the other here)
+     */
+    public ScryptKeyDerivation(int cost, int blockSize, int parallelism) {
+        this.cost = cost;
+        this.blockSize = blockSize;
+        this.parallelism = parallelism;
+    }
+
+
+    ScryptKeyDerivation(DataInputStream is) throws IOException, GeneralSecurityException {
+        int log2Cost = is.readUnsignedByte();
+        blockSize = is.readInt();
+        parallelism = is.readInt();
+        if (log2Cost < 1 || log2Cost > MAX_LOG2_COST || blockSize < 1 || blockSize > MAX_BLOCK_SIZE
+                || parallelism < 1 || parallelism > MAX_READ_PARALLELISM) {
+            throw new InvalidAlgorithmParameterException("Invalid scrypt parameters");
+        }
+        cost = 1 << log2Cost;
+        if (getMemory(cost, blockSize) > MAX_READ_SCRYPT_MEMORY
+                || (long) cost * blockSize * parallelism > MAX_READ_SCRYPT_WORK) {
+            throw new InvalidAlgorithmParameterException(String.format(
+                    "The scrypt parameters N=%d r=%d p=%d need too much memory or time", cost, blockSize, parallelism));
+        }
+    }
+
+
+    @Override
+    public int getAlgorithm() {
+        return SCRYPT;
+    }
+
+
+    public int getCost() {
+        return cost;
+    }
+
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+
+    /**
+     * @return The bytes of memory a derivation with the given parameters uses
+     */
+    static long getMemory(int cost, int blockSize) {
+        return 128L * blockSize * cost;
+    }
+
+    @Override
+    protected void writeParameters(DataOutputStream os) throws IOException {
+        os.write(Integer.numberOfTrailingZeros(cost));
+        os.writeInt(blockSize);
+        os.writeInt(parallelism);
+    }
+
+
+    @Override
+    public byte[] deriveKey(char[] password, byte[] salt, int keyLength) throws GeneralSecurityException {
+        byte[] passwordBytes = getPasswordBytes(password);
+        int blockLength = 128 * blockSize;
+        byte[] b = Pbkdf2KeyDerivation.pbkdf2("HmacSHA256", passwordBytes, salt, 1, parallelism * blockLength);
+
+        int words = 32 * blockSize;
+        int[] x = new int[words];
+        int[] y = new int[words];
+        int[] v = new int[words * cost];
+        int[] salsa = new int[16];
+        try {
+            for (int i = 0; i < parallelism; i++) {
+                smix(b, i * blockLength, x, y, v, salsa);
+            }
+            return Pbkdf2KeyDerivation.pbkdf2("HmacSHA256", passwordBytes, b, 1, keyLength);
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+            Arrays.fill(b, (byte) 0);
+            Arrays.fill(v, 0);
+        }
+    }
+
+
+    /**
+     * The memory-hard part of scrypt (ROMix), done in place on the block
+     * at the given offset.
+     */
+    private void smix(byte[] b, int offset, int[] x, int[] y, int[] v, int[] salsa) throws GeneralSecurityException {
+        int words = x.length;
+        for (int k = 0; k < words; k++) {
+            int i = offset + k * 4;
+            x[k] = (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+        }
+
+        for (int i = 0; i < cost; i++) {
+            if (i % INTERRUPT_CHECK_INTERVAL == 0) {
+                checkInterrupted();
+            }
+            System.arraycopy(x, 0, v, i * words, words);
+            blockMix(x, y, salsa);
+        }
+        for (int i = 0; i < cost; i++) {
+            if (i % INTERRUPT_CHECK_INTERVAL == 0) {
+                checkInterrupted();
+            }
+            int j = x[words - 16] & (cost - 1);
+            for (int k = 0; k < words; k++) {
+                x[k] ^= v[j * words + k];
+            }
+            blockMix(x, y, salsa);
+        }
+
+        for (int k = 0; k < words; k++) {
+            int i = offset + k * 4;
+            b[i] = (byte) x[k];
+            b[i + 1] = (byte) (x[k] >>> 8);
+            b[i + 2] = (byte) (x[k] >>> 16);
+            b[i + 3] = (byte) (x[k] >>> 24);
+        }
+    }
+
+
+    /**
+     * BlockMix with Salsa20/8 as the hash, in place on x using y as
+     * working space.
+     */
+    private void blockMix(int[] x, int[] y, int[] salsa) {
+        System.arraycopy(x, x.length - 16, salsa, 0, 16);
+        for (int i = 0; i < 2 * blockSize; i++) {
+            for (int k = 0; k < 16; k++) {
+                salsa[k] ^= x[i * 16 + k];
+            }
+            salsa8(salsa);
+            System.arraycopy(salsa, 0, y, i * 16, 16);
+        }
+        // The even blocks go in the first half, the odd in the second
+        for (int i = 0; i < blockSize; i++) {
+            System.arraycopy(y, 2 * i * 16, x, i * 16, 16);
+            System.arraycopy(y, (2 * i + 1) * 16, x, (blockSize + i) * 16, 16);
+        }
+    }
+
+
+    private static void salsa8(int[] b) {
+        int x0 = b[0], x1 = b[1], x2 = b[2], x3 = b[3], x4 = b[4], x5 = b[5], x6 = b[6], x7 = b[7];
+        int x8 = b[8], x9 = b[9], x10 = b[10], x11 = b[11], x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+        for (int i = 0; i < 8; i += 2) {
+            // Columns
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);   x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);  x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);    x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);  x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);  x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);  x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);  x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);  x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            // Rows
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);    x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);   x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);    x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);   x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);  x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);  x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7); x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13); x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        b[0] += x0; b[1] += x1; b[2] += x2; b[3] += x3; b[4] += x4; b[5] += x5; b[6] += x6; b[7] += x7;
+        b[8] += x8; b[9] += x9; b[10] += x10; b[11] += x11; b[12] += x12; b[13] += x13; b[14] += x14; b[15] += x15;
+    }
+
+}
@@ -0,0 +1,243 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+
+/**
+ * An inverted index over the userid, URL and notes of each account.
+ *
+ * Each field is folded (see AccountNameIndex.fold()) and split into words
+ * at anything that isn't a letter or digit, e.g. "jo@example.com" is
+ * indexed as "jo", "example" and "com". The words of each field are kept
+ * in sorted order so all the words starting with a prefix can be found
+ * with a range lookup. A search for some text finds the accounts with a
+ * word starting with each word of the text and then checks each of them
+ * contains the text itself at the start of a word, so "jo@example"
+ * doesn't match "example.com" with a userid of "jo". The text matching
+ * from the start of a word is what makes the word lookup safe: "am.example"
+ * doesn't match "cam.example.com" any more than "ample.com" does. Text
+ * starting with a separator (e.g. ".com") can match anywhere.
+ */
+class AccountDetailsIndex {
+
+    static final int USER_ID = 0;
+    static final int URL = 1;
+    static final int NOTES = 2;
+    static final int NUM_FIELDS = 3;
+
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private static final int FEW_CANDIDATES = 256;
+
+    private static final Comparator<String> LONGEST_FIRST = new Comparator<String>() {
+        public int compare(String a, String b) {
+            return b.length() - a.length();
+        }
+    };
+
+    /**
+     * The words of each field (indexed by USER_ID, URL and NOTES) and the
+     * accounts each word is in
+     */
+    private List<TreeMap<String, Set<String>>> words = new ArrayList<TreeMap<String, Set<String>>>(NUM_FIELDS);
+    private HashMap<String, String[]> foldedFields = new HashMap<String, String[]>();
+
+
+    AccountDetailsIndex(Collection<AccountInformation> accounts) {
+        for (int field = 0; field < NUM_FIELDS; field++) {
+            words.add(new TreeMap<String, Set<String>>());
+        }
+        for (AccountInformation ai : accounts) {
+            add(ai);
+        }
+    }
+
+
+    void add(AccountInformation ai) {
+        String accountName = ai.getAccountName();
+        remove(accountName);
+
+        String[] folded = new String[NUM_FIELDS];
+        folded[USER_ID] = fold(ai.getUserId());
+        folded[URL] = fold(ai.getUrl());
+        folded[NOTES] = fold(ai.getNotes());
+        foldedFields.put(accountName, folded);
+
+        for (int field = 0; field < NUM_FIELDS; field++) {
+            for (String word : getWords(folded[field])) {
+                Set<String> accountNames = words.get(field).get(word);
+                if (accountNames == null) {
+                    accountNames = new HashSet<String>(2);
+                    words.get(field).put(word, accountNames);
+                }
+                accountNames.add(accountName);
+            }
+        }
+    }
+
+
+    void remove(String accountName) {
+        String[] folded = foldedFields.remove(accountName);
+        if (folded == null) {
+            return;
+        }
+
+        for (int field = 0; field < NUM_FIELDS; field++) {
+            for (String word : getWords(folded[field])) {
+                Set<String> accountNames = words.get(field).get(word);
+                accountNames.remove(accountName);
+                if (accountNames.isEmpty()) {
+                    words.get(field).remove(word);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @param field The field to search or -1 to search all the fields
+     * @param searchString The text to search for (it doesn't need to be folded)
+     * @return The names of the accounts with the text in the field. The
+     * names aren't in any particular order.
+     */
+    Set<String> find(int field, String searchString) {
+        String folded = fold(searchString);
+        Set<String> found = new HashSet<String>();
+        if (field < 0) {
+            for (int i = 0; i < NUM_FIELDS; i++) {
+                find(i, folded, found);
+            }
+        } else {
+            find(field, folded, found);
+        }
+        return found;
+    }
+
+
+    private void find(int field, String folded, Set<String> found) {
+        // The candidates are the accounts matching the word that matches
+        // the fewest accounts. Longer words usually match fewer accounts so
+        // they're looked up first. A word is skipped without collecting its
+        // accounts if it can't match fewer than the current candidates
+        // (short words like "com" can match most of the database).
+        List<String> searchWords = new ArrayList<String>(getWords(folded));
+        Collections.sort(searchWords, LONGEST_FIRST);
+        Set<String> candidates = null;
+        for (String word : searchWords) {
+            Collection<Set<String>> wordMatches = getWordsStartingWith(field, word).values();
+            int maxMatches = 0;
+            for (Set<String> wordAccountNames : wordMatches) {
+                maxMatches += wordAccountNames.size();
+            }
+            if (candidates != null && maxMatches >= candidates.size()) {
+                continue;
+            }
+
+            candidates = new HashSet<String>(maxMatches * 2);
+            for (Set<String> wordAccountNames : wordMatches) {
+                candidates.addAll(wordAccountNames);
+            }
+            if (candidates.size() <= FEW_CANDIDATES) {
+                break;
+            }
+        }
+        if (candidates == null) {
+            candidates = foldedFields.keySet();
+        }
+
+        for (String accountName : candidates) {
+            if (containsAtWordStart(foldedFields.get(accountName)[field], folded)) {
+                found.add(accountName);
+            }
+        }
+    }
+
+
+    /**
+     * @return Whether the text is in the field at the start of a word (or
+     * anywhere in the field if the text doesn't start with a letter or digit)
+     */
+    private static boolean containsAtWordStart(String foldedField, String folded) {
+        if (folded.length() == 0 || !isWordCharacter(folded.codePointAt(0))) {
+            return foldedField.indexOf(folded) >= 0;
+        }
+        int index = foldedField.indexOf(folded);
+        while (index > 0 && isWordCharacter(foldedField.codePointBefore(index))) {
+            index = foldedField.indexOf(folded, index + 1);
+        }
+        return index >= 0;
+    }
+
+
+    /**
+     * @return Whether the character is part of a word rather than a word
+     * separator (see WORD_SEPARATOR)
+     */
+    private static boolean isWordCharacter(int codePoint) {
+        switch (Character.getType(codePoint)) {
+            case Character.UPPERCASE_LETTER:
+            case Character.LOWERCASE_LETTER:
+            case Character.TITLECASE_LETTER:
+            case Character.MODIFIER_LETTER:
+            case Character.OTHER_LETTER:
+            case Character.DECIMAL_DIGIT_NUMBER:
+            case Character.LETTER_NUMBER:
+            case Character.OTHER_NUMBER:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+
+    private Map<String, Set<String>> getWordsStartingWith(int field, String prefix) {
+        return words.get(field).subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+
+    private static String fold(String s) {
+        return s == null ? "" : AccountNameIndex.fold(s);
+    }
+
+
+    private static Set<String> getWords(String folded) {
+        Set<String> foldedWords = new HashSet<String>();
+        for (String word : WORD_SEPARATOR.split(folded)) {
+            if (word.length() > 0) {
+                foldedWords.add(word);
+            }
+        }
+        return foldedWords;
+    }
+
+}
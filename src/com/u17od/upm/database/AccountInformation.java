@@ -20,12 +20,30 @@
  */
 package com.u17od.upm.database;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 
+import com.u17od.upm.crypto.RecordCipher;
 
+
+/**
+ * An account in the database. Accounts read from a segmented database are
+ * created lazily: only the account name (which comes from the directory)
+ * is known when the database is loaded. The rest of the fields are left in
+ * the decrypted segment and decoded the first time one of them is used.
+ *
+ * In a segment the password and notes are also sealed together (see
+ * seal()). They stay sealed in memory and are only opened when
+ * getPassword() or getNotes() is called, so listing, searching and saving
+ * the accounts never turn them into Strings. Each call opens them again
+ * rather than keeping the plain String.
+ */
 public class AccountInformation extends FlatPackObject {
 
     private String accountName;
@@ -34,6 +52,25 @@ public class AccountInformation extends FlatPackObject {
     private String url;
     private String notes;
 
+    /**
+     * When the account hasn't been decoded yet these point at the fields
+     * after the account name in the decrypted segment
+     */
+    private byte[] data;
+    private int dataOffset;
+    private int dataEnd;
+
+    /**
+     * The cipher the password and notes are sealed with or null if they're
+     * not sealed. They're sealed when sealedSecrets isn't null, in which
+     * case their Strings are null.
+     */
+    private RecordCipher fieldCipher;
+    private byte[] sealedSecrets;
+
+    private static final int PASSWORD_FIELD = 0;
+    private static final int NOTES_FIELD = 1;
+
 
     public AccountInformation() {
         accountName = "";
@@ -54,6 +91,24 @@ public class AccountInformation extends FlatPackObject {
     }
 
 
+    /**
+     * Create an account whose fields other than the name are decoded from
+     * the given buffer when they're first used.
+     * @param data The buffer containing the account's SEALED_ACCOUNT record
+     * @param offset The start of the record's fields
+     * @param end The end of the record
+     * @param fieldCipher The cipher the password and notes in the record
+     * are sealed with
+     */
+    AccountInformation(String accountName, byte[] data, int offset, int end, RecordCipher fieldCipher) {
+        this.accountName = accountName;
+        this.data = data;
+        this.dataOffset = offset;
+        this.dataEnd = end;
+        this.fieldCipher = fieldCipher;
+    }
+
+
     public AccountInformation(InputStream is) throws IOException, ProblemReadingDatabaseFile {
         assemble(is, Charset.forName("UTF-8"));
     }
@@ -65,11 +120,126 @@ public class AccountInformation extends FlatPackObject {
     
     
     public void flatPack(OutputStream os) throws IOException {
-        os.write(flatPack(accountName));
-        os.write(flatPack(userId));
-        os.write(flatPack(password));
-        os.write(flatPack(url));
-        os.write(flatPack(notes));
+        decode();
+        putString(os, accountName);
+        putString(os, userId);
+        putString(os, getPassword());
+        putString(os, url);
+        putString(os, getNotes());
+    }
+
+
+    /**
+     * @return The account as it's written to a segment: the user id, url
+     * and the sealed password and notes. The name is in the directory so
+     * it isn't written. seal() must have been called first.
+     */
+    FlatPackObject getSealedRecord() {
+        return new FlatPackObject() {
+            public void flatPack(OutputStream os) throws IOException {
+                flatPackSealed(os);
+            }
+        };
+    }
+
+
+    private synchronized void flatPackSealed(OutputStream os) throws IOException {
+        if (fieldCipher == null) {
+            throw new IllegalStateException("Account " + accountName + " hasn't been sealed");
+        }
+
+        if (data != null && os instanceof FlatPackOutputStream) {
+            // Still exactly as it was read so there's no need to decode
+            // and re-encode it
+            os.write(data, dataOffset, dataEnd - dataOffset);
+            return;
+        }
+        putString(os, userId);
+        putString(os, url);
+        putBytes(os, sealedSecrets);
+    }
+
+
+    /**
+     * Seal the password and notes with the given cipher, unless they
+     * already are, and forget their plain Strings. If they're sealed with a
+     * different cipher (e.g. the key has changed) they're opened and sealed
+     * again. They're sealed together, as two fields, so an account costs
+     * one nonce and tag rather than one for each. The account name is the
+     * associated data so they can't be swapped for another account's.
+     */
+    synchronized void seal(RecordCipher cipher) throws GeneralSecurityException {
+        if ((data != null || sealedSecrets != null) && fieldCipher == cipher) {
+            // Already sealed with this cipher
+            return;
+        }
+
+        decode();
+        SecretsBuffer buffer = new SecretsBuffer();
+        byte[] plaintext = null;
+        try {
+            FlatPackOutputStream os = new FlatPackOutputStream(buffer);
+            putString(os, getPassword());
+            putString(os, getNotes());
+            plaintext = buffer.toByteArray();
+            sealedSecrets = cipher.seal(plaintext, accountName.getBytes(UTF8));
+        } catch (IOException e) {
+            // Can't happen writing to a byte array
+            throw new IllegalStateException(e);
+        } finally {
+            buffer.wipe();
+            if (plaintext != null) {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+        }
+        fieldCipher = cipher;
+        password = null;
+        notes = null;
+    }
+
+
+    /**
+     * @return The password (field 0) or notes (field 1) from the sealed
+     * secrets
+     */
+    private String openSecret(int field) {
+        byte[] plaintext;
+        try {
+            plaintext = fieldCipher.open(sealedSecrets, accountName.getBytes(UTF8));
+        } catch (GeneralSecurityException e) {
+            // The segment has been authenticated so this should never happen
+            throw new IllegalStateException("Problem opening account " + accountName, e);
+        }
+        try {
+            FlatPackInputStream is = new FlatPackInputStream(new ByteArrayInputStream(plaintext), true);
+            String value = null;
+            for (int i = 0; i <= field; i++) {
+                value = is.readString(UTF8);
+            }
+            return value;
+        } catch (IOException e) {
+            throw new IllegalStateException("Problem opening account " + accountName, e);
+        } catch (ProblemReadingDatabaseFile e) {
+            throw new IllegalStateException("Problem opening account " + accountName, e);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+
+    /**
+     * Open the sealed password and notes and keep them as plain Strings,
+     * e.g. because one of them or the account name they're tied to is
+     * changing.
+     */
+    private void unseal() {
+        decode();
+        if (sealedSecrets != null) {
+            password = openSecret(PASSWORD_FIELD);
+            notes = openSecret(NOTES_FIELD);
+            sealedSecrets = null;
+        }
+        fieldCipher = null;
     }
 
     private void assemble(InputStream is, Charset charset) throws IOException, ProblemReadingDatabaseFile {
@@ -79,45 +249,98 @@ public class AccountInformation extends FlatPackObject {
         url = getString(is, charset);
         notes = getString(is, charset);
     }
+
+
+    /**
+     * Decode the fields of a lazily created account if that hasn't
+     * been done yet.
+     */
+    private synchronized void decode() {
+        if (data == null) {
+            return;
+        }
+
+        FlatPackInputStream is = new FlatPackInputStream(new ByteArrayInputStream(data, dataOffset, dataEnd - dataOffset), true);
+        try {
+            userId = getString(is);
+            url = getString(is);
+            sealedSecrets = getBytes(is);
+        } catch (IOException e) {
+            // The segment has been authenticated so this should never happen
+            throw new IllegalStateException("Problem decoding account " + accountName, e);
+        } catch (ProblemReadingDatabaseFile e) {
+            throw new IllegalStateException("Problem decoding account " + accountName, e);
+        }
+        data = null;
+    }
     
     public String getAccountName() {
         return accountName;
     }
 
-    public void setAccountName(String accountName) {
+    public synchronized void setAccountName(String accountName) {
+        // The sealed fields are tied to the account name
+        unseal();
         this.accountName = accountName;
     }
 
-    public String getNotes() {
+    public synchronized String getNotes() {
+        decode();
+        if (sealedSecrets != null) {
+            return openSecret(NOTES_FIELD);
+        }
         return notes;
     }
 
-    public void setNotes(String notes) {
+    public synchronized void setNotes(String notes) {
+        unseal();
         this.notes = notes;
     }
 
-    public String getPassword() {
+    public synchronized String getPassword() {
+        decode();
+        if (sealedSecrets != null) {
+            return openSecret(PASSWORD_FIELD);
+        }
         return password;
     }
 
-    public void setPassword(String password) {
+    public synchronized void setPassword(String password) {
+        unseal();
         this.password = password;
     }
 
     public String getUrl() {
+        decode();
         return url;
     }
 
     public void setUrl(String url) {
+        decode();
         this.url = url;
     }
 
     public String getUserId() {
+        decode();
         return userId;
     }
 
     public void setUserId(String userId) {
+        decode();
         this.userId = userId;
     }
 
+
+    /**
+     * A buffer for the password and notes that can be wiped once they've
+     * been sealed
+     */
+    private static class SecretsBuffer extends ByteArrayOutputStream {
+
+        void wipe() {
+            Arrays.fill(buf, (byte) 0);
+        }
+
+    }
+
 }
@@ -0,0 +1,208 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+
+/**
+ * The account names in display order, kept up to date as accounts are
+ * added and deleted so getting the sorted names is free.
+ *
+ * Names are ordered by their folded form (see fold()) so case and accents
+ * don't affect where a name appears, e.g. "Émail" sorts with "email" rather
+ * than after "zebra". Names with the same folded form are ordered
+ * ignoring case and then by their natural order.
+ *
+ * The list returned by getNames() is an unmodifiable snapshot. Adding or
+ * removing a name creates a new list so a snapshot a caller is holding
+ * (e.g. in a ListAdapter) never changes underneath it.
+ */
+class AccountNameIndex {
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+    private static final Comparator<String[]> ORDER = new Comparator<String[]>() {
+        public int compare(String[] a, String[] b) {
+            return AccountNameIndex.compare(a[0], a[1], b[0], b[1]);
+        }
+    };
+
+    private ArrayList<String> foldedNames;
+    private List<String> names;
+
+
+    AccountNameIndex(Collection<String> accountNames) {
+        // Fold each name once rather than on every comparison
+        ArrayList<String[]> entries = new ArrayList<String[]>(accountNames.size());
+        for (String accountName : accountNames) {
+            entries.add(new String[] {fold(accountName), accountName});
+        }
+        Collections.sort(entries, ORDER);
+
+        foldedNames = new ArrayList<String>(entries.size());
+        ArrayList<String> sortedNames = new ArrayList<String>(entries.size());
+        for (String[] entry : entries) {
+            foldedNames.add(entry[0]);
+            sortedNames.add(entry[1]);
+        }
+        names = Collections.unmodifiableList(sortedNames);
+    }
+
+
+    List<String> getNames() {
+        return names;
+    }
+
+
+    void add(String accountName) {
+        String folded = fold(accountName);
+        int index = search(folded, accountName);
+        if (index >= 0) {
+            return;
+        }
+        index = -(index + 1);
+
+        foldedNames.add(index, folded);
+        ArrayList<String> newNames = new ArrayList<String>(names.size() + 1);
+        newNames.addAll(names.subList(0, index));
+        newNames.add(accountName);
+        newNames.addAll(names.subList(index, names.size()));
+        names = Collections.unmodifiableList(newNames);
+    }
+
+
+    void remove(String accountName) {
+        int index = search(fold(accountName), accountName);
+        if (index < 0) {
+            return;
+        }
+
+        foldedNames.remove(index);
+        ArrayList<String> newNames = new ArrayList<String>(names);
+        newNames.remove(index);
+        names = Collections.unmodifiableList(newNames);
+    }
+
+
+    /**
+     * @param foldedSearchString A folded search string (see fold())
+     * @return The names whose folded form contains the search string in
+     * display order
+     */
+    List<String> find(String foldedSearchString) {
+        ArrayList<String> found = new ArrayList<String>();
+        for (int i = 0; i < foldedNames.size(); i++) {
+            if (foldedNames.get(i).indexOf(foldedSearchString) >= 0) {
+                found.add(names.get(i));
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * @return The given names in display order
+     */
+    List<String> sort(final Collection<String> accountNames) {
+        ArrayList<String> sorted;
+        if (accountNames.size() > names.size() / 4) {
+            // Picking the names out of the sorted list is quicker than
+            // sorting a lot of them
+            sorted = new ArrayList<String>(accountNames.size());
+            for (String accountName : names) {
+                if (accountNames.contains(accountName)) {
+                    sorted.add(accountName);
+                }
+            }
+        } else {
+            ArrayList<String[]> entries = new ArrayList<String[]>(accountNames.size());
+            for (String accountName : accountNames) {
+                entries.add(new String[] {fold(accountName), accountName});
+            }
+            Collections.sort(entries, ORDER);
+            sorted = new ArrayList<String>(entries.size());
+            for (String[] entry : entries) {
+                sorted.add(entry[1]);
+            }
+        }
+        return sorted;
+    }
+
+
+    /**
+     * A binary search for the given name.
+     * @return The index of the name or, if it's not there, -(insertion point) - 1
+     */
+    private int search(String folded, String accountName) {
+        int low = 0;
+        int high = names.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(foldedNames.get(mid), names.get(mid), folded, accountName);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+
+    static int compare(String folded1, String name1, String folded2, String name2) {
+        int c = folded1.compareTo(folded2);
+        if (c == 0) {
+            c = name1.compareToIgnoreCase(name2);
+        }
+        if (c == 0) {
+            c = name1.compareTo(name2);
+        }
+        return c;
+    }
+
+
+    /**
+     * Fold a name for sorting and searching: accents are removed and the
+     * name is lower cased. Pure ASCII names (the usual case) skip the
+     * Unicode normalisation.
+     */
+    static String fold(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                s = Normalizer.normalize(s, Normalizer.Form.NFD);
+                s = COMBINING_MARKS.matcher(s).replaceAll("");
+                break;
+            }
+        }
+        return s.toLowerCase(Locale.ENGLISH);
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+
+/**
+ * A trigram index over the folded account names (see AccountNameIndex.fold())
+ * for finding the names that contain a search string.
+ *
+ * Each name is given an id and every trigram (3 character substring) of its
+ * folded name maps to the ids of the names containing it. A name contains
+ * the search string only if it contains all the trigrams of the search
+ * string so the candidates are the intersection of a few (usually short) id
+ * lists. Each candidate is then checked with a plain substring match.
+ *
+ * Search strings shorter than a trigram, and searches matching a large
+ * part of the database, are quicker as a scan of the AccountNameIndex so
+ * they're passed on to it.
+ */
+class AccountSearchIndex {
+
+    static final int GRAM_LENGTH = 3;
+
+    private AccountNameIndex nameIndex;
+
+    private ArrayList<String> names;
+    private ArrayList<String> foldedNames;
+    private HashMap<String, Integer> ids;
+    private HashMap<String, IdList> grams;
+    private int deletedCount;
+
+
+    AccountSearchIndex(AccountNameIndex nameIndex) {
+        this.nameIndex = nameIndex;
+        index(nameIndex.getNames());
+    }
+
+
+    private void index(Collection<String> accountNames) {
+        names = new ArrayList<String>(accountNames.size());
+        foldedNames = new ArrayList<String>(accountNames.size());
+        ids = new HashMap<String, Integer>(accountNames.size() * 2);
+        grams = new HashMap<String, IdList>();
+        deletedCount = 0;
+        for (String accountName : accountNames) {
+            add(accountName);
+        }
+    }
+
+
+    /**
+     * Add a name to the index. The AccountNameIndex the index was created
+     * with should already have been updated.
+     */
+    void add(String accountName) {
+        if (ids.containsKey(accountName)) {
+            return;
+        }
+
+        // Ids only ever increase so appending keeps each IdList sorted
+        int id = names.size();
+        String folded = AccountNameIndex.fold(accountName);
+        names.add(accountName);
+        foldedNames.add(folded);
+        ids.put(accountName, id);
+
+        for (String gram : getGrams(folded)) {
+            IdList idList = grams.get(gram);
+            if (idList == null) {
+                idList = new IdList();
+                grams.put(gram, idList);
+            }
+            idList.add(id);
+        }
+    }
+
+
+    /**
+     * Remove a name from the index. The AccountNameIndex the index was
+     * created with should already have been updated.
+     */
+    void remove(String accountName) {
+        Integer id = ids.remove(accountName);
+        if (id == null) {
+            return;
+        }
+
+        for (String gram : getGrams(foldedNames.get(id))) {
+            IdList idList = grams.get(gram);
+            idList.remove(id);
+            if (idList.size() == 0) {
+                grams.remove(gram);
+            }
+        }
+        names.set(id, null);
+        foldedNames.set(id, null);
+
+        // Reclaim the ids of deleted names once they're half the index
+        deletedCount++;
+        if (deletedCount > ids.size()) {
+            index(new ArrayList<String>(ids.keySet()));
+        }
+    }
+
+
+    /**
+     * @param searchString The text to search for (it doesn't need to be folded)
+     * @return The names containing the search string in display order
+     */
+    List<String> find(String searchString) {
+        String folded = AccountNameIndex.fold(searchString);
+        if (folded.length() == 0) {
+            return nameIndex.getNames();
+        }
+        if (folded.length() < GRAM_LENGTH) {
+            return nameIndex.find(folded);
+        }
+
+        // Intersect the id lists, starting with the shortest
+        HashSet<String> queryGrams = getGrams(folded);
+        IdList[] idLists = new IdList[queryGrams.size()];
+        int i = 0;
+        for (String gram : queryGrams) {
+            idLists[i] = grams.get(gram);
+            if (idLists[i] == null) {
+                return Collections.emptyList();
+            }
+            i++;
+        }
+        Arrays.sort(idLists);
+
+        // Sorting a lot of matches into display order costs more than
+        // scanning the names that are already in that order
+        IdList shortest = idLists[0];
+        if (shortest.size() > ids.size() / 4) {
+            return nameIndex.find(folded);
+        }
+
+        final ArrayList<Integer> found = new ArrayList<Integer>();
+        candidates:
+        for (int j = 0; j < shortest.size(); j++) {
+            int id = shortest.get(j);
+            for (int k = 1; k < idLists.length; k++) {
+                if (!idLists[k].contains(id)) {
+                    continue candidates;
+                }
+            }
+            if (foldedNames.get(id).indexOf(folded) >= 0) {
+                found.add(id);
+            }
+        }
+
+        Collections.sort(found, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return AccountNameIndex.compare(foldedNames.get(a), names.get(a), foldedNames.get(b), names.get(b));
+            }
+        });
+        ArrayList<String> foundNames = new ArrayList<String>(found.size());
+        for (Integer id : found) {
+            foundNames.add(names.get(id));
+        }
+        return foundNames;
+    }
+
+
+    private static HashSet<String> getGrams(String folded) {
+        HashSet<String> foldedGrams = new HashSet<String>();
+        for (int i = 0; i + GRAM_LENGTH <= folded.length(); i++) {
+            foldedGrams.add(folded.substring(i, i + GRAM_LENGTH));
+        }
+        return foldedGrams;
+    }
+
+
+    /**
+     * A sorted list of ids, ordered by size so the shortest lists can be
+     * found quickly.
+     */
+    private static class IdList implements Comparable<IdList> {
+
+        private int[] ids = new int[2];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        int get(int i) {
+            return ids[i];
+        }
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        void remove(int id) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i >= 0) {
+                System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+                size--;
+            }
+        }
+
+        boolean contains(int id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+
+        public int compareTo(IdList other) {
+            return size - other.size;
+        }
+
+    }
+
+}
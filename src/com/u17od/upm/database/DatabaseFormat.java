@@ -0,0 +1,391 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+import com.u17od.upm.crypto.CipherSuite;
+import com.u17od.upm.crypto.DESDecryptionService;
+import com.u17od.upm.crypto.EncryptionService;
+import com.u17od.upm.crypto.KeyDerivation;
+import com.u17od.upm.crypto.RecordCipher;
+
+
+/**
+ * The formats a database file can be in (see PasswordDatabase for the
+ * details of each) and how to tell which one a file is in.
+ *
+ * Each format first says whether a file could be in it from the first few
+ * bytes and its length (matches()). Usually only one format does. The
+ * legacy (1.0.0 and 1.1.0) format has no magic number though, it starts
+ * straight away with a random salt, so a file can match it as well as one
+ * of the formats that starts with "UPM". When more than one format matches
+ * each of them tries the password (check()) on a thread of its own and the
+ * first one it works for is used; the rest are cancelled. So however many
+ * formats there are, unlocking takes about as long as the slowest key
+ * derivation rather than the sum of them.
+ */
+abstract class DatabaseFormat {
+
+    /**
+     * Version 4: a header with the key derivation and key check followed by
+     * the sealed directory and segments
+     */
+    static final DatabaseFormat SEGMENTED = new DatabaseFormat() {
+        boolean matches(byte[] head, long fileLength) {
+            return getVersion(head) == PasswordDatabase.DB_VERSION;
+        }
+
+        boolean check(File file, SecretKey secretKey) throws IOException, GeneralSecurityException {
+            DataInputStream is = new DataInputStream(new FileInputStream(file));
+            try {
+                is.skipBytes(PasswordDatabase.FILE_HEADER.length() + 1);
+                byte[] salt = new byte[RecordCipher.SALT_LENGTH];
+                is.readFully(salt);
+                KeyDerivation keyDerivation = KeyDerivation.read(is);
+                int suiteId = is.readUnsignedByte();
+
+                // If the password's right the key is kept in the KeyCache
+                // so it doesn't have to be derived again when the file is read
+                RecordCipher cipher = RecordCipher.createForCheck(secretKey, salt, keyDerivation, CipherSuite.getInstance(suiteId));
+                byte[] header = PasswordDatabase.getSegmentHeader(salt, keyDerivation, suiteId);
+                byte[] keyCheck = new byte[RecordCipher.KEY_CHECK_LENGTH];
+                is.readFully(keyCheck);
+                return cipher.checkKey(keyCheck, header);
+            } finally {
+                is.close();
+            }
+        }
+    };
+
+    /**
+     * Versions 2 and 3: a header with the salt followed by the database
+     * encrypted with AES-CBC
+     */
+    static final DatabaseFormat STREAM = new DatabaseFormat() {
+        boolean matches(byte[] head, long fileLength) {
+            int version = getVersion(head);
+            return version >= 2 && version < PasswordDatabase.DB_VERSION;
+        }
+
+        boolean check(File file, SecretKey secretKey) throws IOException, GeneralSecurityException {
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                int headerLength = PasswordDatabase.FILE_HEADER.length() + 1;
+                fis.skip(headerLength);
+                byte[] salt = new byte[EncryptionService.SALT_LENGTH];
+                readFully(fis, salt);
+                long ciphertextLength = file.length() - headerLength - salt.length;
+                byte[] ciphertext = new byte[(int) Math.min(STREAM_CHECK_LENGTH, ciphertextLength)];
+                readFully(fis, ciphertext);
+
+                // Every version 2 and 3 database starts with its Revision
+                // and DatabaseOptions so, as with LEGACY, only the first few
+                // blocks are decrypted. The padding at the end is checked
+                // when the file is read.
+                Cipher cipher = new EncryptionService(secretKey, salt).createDecryptionCipher();
+                byte[] plaintext;
+                if (ciphertext.length == ciphertextLength) {
+                    try {
+                        plaintext = cipher.doFinal(ciphertext);
+                    } catch (BadPaddingException e) {
+                        return false;
+                    }
+                } else {
+                    plaintext = cipher.update(ciphertext);
+                }
+                return startsWithRevision(plaintext);
+            } finally {
+                fis.close();
+            }
+        }
+    };
+
+    /**
+     * 1.0.0 and 1.1.0: the salt followed by the database encrypted with DES
+     */
+    static final DatabaseFormat LEGACY = new DatabaseFormat() {
+        boolean matches(byte[] head, long fileLength) {
+            // A file that starts with "UPM" and a version from a newer
+            // release is much more likely to be that than a legacy file
+            if (getVersion(head) > PasswordDatabase.DB_VERSION) {
+                return false;
+            }
+            long ciphertextLength = fileLength - EncryptionService.SALT_LENGTH;
+            return ciphertextLength > 0 && ciphertextLength % DES_BLOCK_SIZE == 0;
+        }
+
+        boolean check(File file, SecretKey secretKey) throws IOException, GeneralSecurityException {
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                byte[] salt = new byte[EncryptionService.SALT_LENGTH];
+                readFully(fis, salt);
+                long ciphertextLength = file.length() - salt.length;
+                byte[] ciphertext = new byte[(int) Math.min(LEGACY_CHECK_LENGTH, ciphertextLength)];
+                readFully(fis, ciphertext);
+
+                // Every legacy database starts with the DatabaseHeader for
+                // 1.0.0 or 1.1.0 so only the first few blocks are decrypted.
+                // The cipher holds back the last block it's given in case
+                // it's the padding.
+                Cipher cipher = DESDecryptionService.createDecryptionCipher(secretKey, salt);
+                byte[] plaintext;
+                if (ciphertext.length == ciphertextLength) {
+                    plaintext = cipher.doFinal(ciphertext);
+                } else {
+                    plaintext = cipher.update(ciphertext);
+                }
+                return startsWith(plaintext, LEGACY_HEADER_1_0_0) || startsWith(plaintext, LEGACY_HEADER_1_1_0);
+            } finally {
+                fis.close();
+            }
+        }
+    };
+
+    /**
+     * The formats in the order they're tried when the password doesn't
+     * work for any of them (the first one that matches reports why)
+     */
+    private static final DatabaseFormat[] FORMATS = {SEGMENTED, STREAM, LEGACY};
+
+    private static final int AES_BLOCK_SIZE = 16;
+    private static final int STREAM_CHECK_LENGTH = 3 * AES_BLOCK_SIZE;
+    private static final int DES_BLOCK_SIZE = 8;
+    private static final int LEGACY_CHECK_LENGTH = 3 * DES_BLOCK_SIZE;
+    private static final byte[] LEGACY_HEADER_1_0_0 = flatPackedVersion(1, 0, 0);
+    private static final byte[] LEGACY_HEADER_1_1_0 = flatPackedVersion(1, 1, 0);
+
+
+    /**
+     * @param head The start of the file (at least the magic number and
+     * version if the file's long enough)
+     * @return true if a file starting with the given bytes could be in this
+     * format
+     */
+    abstract boolean matches(byte[] head, long fileLength);
+
+
+    /**
+     * Try the password on a file that matches this format, doing as little
+     * of the work of reading it as possible. Anything that isn't right about
+     * the file can be thrown.
+     * @return true if the file can be decrypted with the given key
+     */
+    abstract boolean check(File file, SecretKey secretKey) throws IOException, GeneralSecurityException;
+
+
+    /**
+     * Work out which format the given file is in. If it could be in more
+     * than one the password is tried in all of them at the same time.
+     * @return The format the password works for or, if it doesn't work for
+     * any, the most likely format
+     * @throws ProblemReadingDatabaseFile if the file can't be in any format
+     */
+    static DatabaseFormat identify(File file, SecretKey secretKey) throws IOException, ProblemReadingDatabaseFile {
+        byte[] head = readHead(file);
+        List<DatabaseFormat> candidates = new ArrayList<DatabaseFormat>();
+        for (DatabaseFormat format : FORMATS) {
+            if (format.matches(head, file.length())) {
+                candidates.add(format);
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            if (getVersion(head) >= 0) {
+                throw new ProblemReadingDatabaseFile("Don't know how to handle database version [" + getVersion(head) + "]");
+            }
+            throw new ProblemReadingDatabaseFile("This file doesn't appear to be a UPM password database");
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        return checkConcurrently(candidates, file, secretKey);
+    }
+
+
+    /**
+     * Run check() for each of the given formats at the same time.
+     * @return The first format the password works for. If there isn't one
+     * then the first format the file was readable in (i.e. the password
+     * is probably wrong) or failing that the first format.
+     */
+    private static DatabaseFormat checkConcurrently(List<DatabaseFormat> candidates, final File file, final SecretKey secretKey) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(candidates.size());
+        CompletionService<DatabaseFormat> completionService = new ExecutorCompletionService<DatabaseFormat>(executor);
+        List<Future<DatabaseFormat>> checks = new ArrayList<Future<DatabaseFormat>>();
+        try {
+            for (final DatabaseFormat format : candidates) {
+                checks.add(completionService.submit(new Callable<DatabaseFormat>() {
+                    public DatabaseFormat call() throws Exception {
+                        return format.check(file, secretKey) ? format : null;
+                    }
+                }));
+            }
+
+            for (int i = 0; i < checks.size(); i++) {
+                try {
+                    DatabaseFormat format = completionService.take().get();
+                    if (format != null) {
+                        return format;
+                    }
+                } catch (ExecutionException e) {
+                    // The file isn't in that format after all
+                }
+            }
+
+            for (int i = 0; i < checks.size(); i++) {
+                try {
+                    checks.get(i).get();
+                    return candidates.get(i);
+                } catch (ExecutionException e) {
+                    // Not readable in this format
+                }
+            }
+            return candidates.get(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            // Cancel the checks that haven't finished. A key derivation
+            // stops the next time it checks for the interruption (see
+            // KeyDerivation.deriveKey()).
+            for (Future<DatabaseFormat> check : checks) {
+                check.cancel(true);
+            }
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * @return The version after the magic number or -1 if the head doesn't
+     * start with the magic number
+     */
+    private static int getVersion(byte[] head) {
+        byte[] magic = PasswordDatabase.FILE_HEADER.getBytes();
+        if (head.length <= magic.length || !startsWith(head, magic)) {
+            return -1;
+        }
+        return head[magic.length] & 0xff;
+    }
+
+
+    private static byte[] readHead(File file) throws IOException {
+        byte[] head = new byte[(int) Math.min(PasswordDatabase.FILE_HEADER.length() + 1, file.length())];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            readFully(fis, head);
+        } finally {
+            fis.close();
+        }
+        return head;
+    }
+
+
+    private static void readFully(InputStream is, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int bytesRead = is.read(buffer, offset, buffer.length - offset);
+            if (bytesRead == -1) {
+                throw new EOFException();
+            }
+            offset += bytesRead;
+        }
+    }
+
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        return bytes != null && bytes.length >= prefix.length
+                && Arrays.equals(Arrays.copyOf(bytes, prefix.length), prefix);
+    }
+
+
+    /**
+     * @return true if the plaintext starts the way a flatpacked Revision and
+     * the field after it do: a length of 1 to 11, that many characters of
+     * an int and then the next field's length
+     */
+    private static boolean startsWithRevision(byte[] plaintext) {
+        int lengthChars = FlatPackObject.LENGTH_FIELD_NUM_CHARS;
+        int revisionLength = parseDigits(plaintext, 0, lengthChars);
+        if (revisionLength < 1 || revisionLength > 11) {
+            return false;
+        }
+        for (int i = lengthChars; i < lengthChars + revisionLength && i < plaintext.length; i++) {
+            boolean digit = plaintext[i] >= '0' && plaintext[i] <= '9';
+            if (!digit && !(plaintext[i] == '-' && i == lengthChars)) {
+                return false;
+            }
+        }
+        return parseDigits(plaintext, lengthChars + revisionLength, lengthChars) >= 0;
+    }
+
+
+    /**
+     * @return The number made up of the ASCII digits at the given offset or
+     * -1 if they aren't all digits
+     */
+    private static int parseDigits(byte[] bytes, int offset, int count) {
+        if (bytes == null || bytes.length < offset + count) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+
+    /**
+     * @return A DatabaseHeader for the given version as it's flatpacked
+     * (see FlatPackObject), e.g. "00011" "00011" "00010" for 1.1.0
+     */
+    private static byte[] flatPackedVersion(int major, int minor, int patch) {
+        return ("0001" + major + "0001" + minor + "0001" + patch).getBytes();
+    }
+
+}
@@ -45,9 +45,9 @@ public class DatabaseHeader extends FlatPackObject {
     
     
     public void flatPack(OutputStream os) throws IOException {
-        os.write(flatPack(String.valueOf(majorVersion)));
-        os.write(flatPack(String.valueOf(minorVersion)));
-        os.write(flatPack(String.valueOf(patchVersion)));
+        putString(os, String.valueOf(majorVersion));
+        putString(os, String.valueOf(minorVersion));
+        putString(os, String.valueOf(patchVersion));
     }
 
     
@@ -0,0 +1,257 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.BadPaddingException;
+
+import com.u17od.upm.crypto.RandomSource;
+import com.u17od.upm.crypto.RecordCipher;
+
+
+/**
+ * An append only, encrypted journal of changes made to a database since it
+ * was last written in full. It lives beside the database file and lets a
+ * change be saved by appending one small record rather than re-encrypting
+ * and rewriting the whole database.
+ *
+ * File format
+ *   MAGIC_NUMBER JOURNAL_VERSION SALT SNAPSHOT_ID ENTRY*
+ *   ENTRY = LENGTH [RECORDS]
+ *
+ *   SALT = The salt used to derive the journal key
+ *   SNAPSHOT_ID = The id of the database snapshot the journal applies to
+ *   LENGTH = The length of the sealed entry as a 4 byte int
+ *   RECORDS = Database records (see FlatPackOutputStream) sealed by a RecordCipher
+ *
+ * Each entry is authenticated along with the journal header and its
+ * position in the journal so entries can't be altered, reordered or moved
+ * to a different journal. If the database file is replaced (e.g. by a sync
+ * or a restore) the snapshot id won't match and the journal is ignored.
+ *
+ * A crash or a full disk can leave the last entry torn: cut short, or
+ * the right length but not all written. A last entry that doesn't read or
+ * authenticate is taken to be torn; the entries before it are kept and
+ * the next append() overwrites it. Only an entry that fails
+ * authentication with more of the journal after it means the journal is
+ * corrupt.
+ *
+ * The journal's key is derived from the database key (see
+ * RecordCipher.deriveCipher()) so it's exactly as hard to guess as the
+ * database's, whatever key derivation the database uses, and opening the
+ * journal doesn't cost a second key derivation.
+ */
+class DatabaseJournal {
+
+    private static final String FILE_HEADER = "UPMJ";
+    private static final int JOURNAL_VERSION = 1;
+    private static final int HEADER_LENGTH = FILE_HEADER.length() + 1 +
+            RecordCipher.SALT_LENGTH + PasswordDatabase.SNAPSHOT_ID_LENGTH;
+    private static final int MAX_ENTRY_LENGTH = 16 * 1024 * 1024;
+
+    private File file;
+    private RecordCipher databaseCipher;
+    private RecordCipher cipher;
+    private byte[] header;
+    private int numEntries;
+    private long validLength;
+
+
+    /**
+     * @param databaseCipher The cipher for the database the journal belongs
+     * to
+     */
+    DatabaseJournal(File file, RecordCipher databaseCipher) {
+        this.file = file;
+        this.databaseCipher = databaseCipher;
+    }
+
+
+    File getFile() {
+        return file;
+    }
+
+
+    /**
+     * Read the entries in the journal.
+     * @param snapshotId The id of the database snapshot that's been loaded
+     * @return The decrypted entries. If there's no journal or it belongs to
+     * a different snapshot an empty list is returned. A torn last entry is
+     * left out.
+     * @throws ProblemReadingDatabaseFile if an entry other than the last
+     * fails authentication
+     */
+    List<byte[]> read(byte[] snapshotId) throws IOException, GeneralSecurityException, ProblemReadingDatabaseFile {
+        List<byte[]> entries = new ArrayList<byte[]>();
+        if (!file.exists() || file.length() < HEADER_LENGTH) {
+            return entries;
+        }
+
+        long fileLength = file.length();
+        DataInputStream is = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] fileHeader = new byte[HEADER_LENGTH];
+            is.readFully(fileHeader);
+            if (!Arrays.equals(Arrays.copyOfRange(fileHeader, 0, FILE_HEADER.length()), FILE_HEADER.getBytes())
+                    || !Arrays.equals(getSnapshotId(fileHeader), snapshotId)) {
+                return entries;
+            }
+
+            int version = fileHeader[FILE_HEADER.length()];
+            if (version == JOURNAL_VERSION) {
+                cipher = databaseCipher.deriveCipher(getSalt(fileHeader));
+            } else {
+                throw new ProblemReadingDatabaseFile("Don't know how to handle database journal version [" + version + "]");
+            }
+            header = fileHeader;
+            numEntries = 0;
+            validLength = HEADER_LENGTH;
+
+            while (true) {
+                // Either we're at the end of the journal or the last entry
+                // is torn. Either way we stop here and the next append()
+                // overwrites whatever's after the last good entry.
+                if (fileLength - validLength < 4) {
+                    break;
+                }
+                int entryLength = is.readInt();
+                long entryEnd = validLength + 4 + entryLength;
+                if (entryLength < 0 || entryLength > MAX_ENTRY_LENGTH || entryEnd > fileLength) {
+                    break;
+                }
+                byte[] sealed = new byte[entryLength];
+                is.readFully(sealed);
+
+                try {
+                    entries.add(cipher.open(sealed, getAssociatedData(numEntries)));
+                } catch (BadPaddingException e) {
+                    if (entryEnd == fileLength) {
+                        break;
+                    }
+                    throw new ProblemReadingDatabaseFile("An entry in the database journal failed authentication", e);
+                }
+                numEntries++;
+                validLength = entryEnd;
+            }
+        } finally {
+            is.close();
+        }
+
+        return entries;
+    }
+
+
+    /**
+     * Append an entry to the journal. If the journal doesn't exist or
+     * belongs to a different snapshot it's started again.
+     * @param snapshotId The id of the database snapshot the entry applies to
+     * @param entry The records to append
+     */
+    void append(byte[] snapshotId, byte[] entry) throws IOException, GeneralSecurityException {
+        if (header == null || !Arrays.equals(getSnapshotId(header), snapshotId)) {
+            start(snapshotId);
+        }
+
+        byte[] sealed = cipher.seal(entry, getAssociatedData(numEntries));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() == 0) {
+                raf.write(header);
+            }
+            raf.seek(validLength);
+            raf.writeInt(sealed.length);
+            raf.write(sealed);
+            raf.setLength(validLength + 4 + sealed.length);
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+
+        numEntries++;
+        validLength += 4 + sealed.length;
+    }
+
+
+    long length() {
+        return file.length();
+    }
+
+
+    void delete() {
+        file.delete();
+        header = null;
+        cipher = null;
+        numEntries = 0;
+        validLength = 0;
+    }
+
+
+    private void start(byte[] snapshotId) throws GeneralSecurityException {
+        file.delete();
+
+        byte[] salt = new byte[RecordCipher.SALT_LENGTH];
+        RandomSource.nextBytes(salt);
+
+        header = new byte[HEADER_LENGTH];
+        System.arraycopy(FILE_HEADER.getBytes(), 0, header, 0, FILE_HEADER.length());
+        System.arraycopy(salt, 0, header, FILE_HEADER.length() + 1, salt.length);
+        System.arraycopy(snapshotId, 0, header, FILE_HEADER.length() + 1 + salt.length, snapshotId.length);
+
+        header[FILE_HEADER.length()] = JOURNAL_VERSION;
+        cipher = databaseCipher.deriveCipher(salt);
+        numEntries = 0;
+        validLength = HEADER_LENGTH;
+    }
+
+
+    private byte[] getAssociatedData(int entryNumber) {
+        byte[] associatedData = new byte[HEADER_LENGTH + 4];
+        System.arraycopy(header, 0, associatedData, 0, HEADER_LENGTH);
+        associatedData[HEADER_LENGTH] = (byte) (entryNumber >>> 24);
+        associatedData[HEADER_LENGTH + 1] = (byte) (entryNumber >>> 16);
+        associatedData[HEADER_LENGTH + 2] = (byte) (entryNumber >>> 8);
+        associatedData[HEADER_LENGTH + 3] = (byte) entryNumber;
+        return associatedData;
+    }
+
+
+    private static byte[] getSalt(byte[] header) {
+        int start = FILE_HEADER.length() + 1;
+        return Arrays.copyOfRange(header, start, start + RecordCipher.SALT_LENGTH);
+    }
+
+
+    private static byte[] getSnapshotId(byte[] header) {
+        int start = FILE_HEADER.length() + 1 + RecordCipher.SALT_LENGTH;
+        return Arrays.copyOfRange(header, start, start + PasswordDatabase.SNAPSHOT_ID_LENGTH);
+    }
+
+}
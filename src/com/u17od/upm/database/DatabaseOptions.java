@@ -56,8 +56,8 @@ public class DatabaseOptions extends FlatPackObject {
     
     
     public void flatPack(OutputStream os) throws IOException {
-        os.write(flatPack(remoteLocation));
-        os.write(flatPack(authDBEntry));
+        putString(os, remoteLocation);
+        putString(os, authDBEntry);
     }
 
 
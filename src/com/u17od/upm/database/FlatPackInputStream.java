@@ -0,0 +1,330 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+
+/**
+ * A stream for reading flatpacked fields. Each field is read in one go into
+ * a buffer that's reused from field to field, the length prefix is parsed
+ * straight from the bytes and Strings are decoded with a reused
+ * CharsetDecoder. This avoids the per byte read() calls and the temporary
+ * objects FlatPackObject.getBytes() creates for every field.
+ *
+ * FlatPackObject uses this stream automatically when it's passed one.
+ *
+ * The stream reads either the 4 character ASCII field lengths used up to
+ * database version 3 or the varint lengths and typed records used from
+ * version 4 (see FlatPackOutputStream). With the older lengths the end of
+ * the stream (an EOFException) marks the end of the accounts. With varint
+ * lengths the stream can only end between records; ending anywhere else
+ * means it's been cut short and a ProblemReadingDatabaseFile is thrown.
+ */
+public class FlatPackInputStream extends FilterInputStream {
+
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    /**
+     * No legitimate record comes anywhere near this size. It stops us trying
+     * to allocate a huge buffer if the stream is corrupt (or was decrypted
+     * with the wrong password).
+     */
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    private byte[] lengthBuffer = new byte[FlatPackObject.LENGTH_FIELD_NUM_CHARS];
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+    private CharBuffer charBuffer = CharBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private Charset decoderCharset;
+    private CharsetDecoder decoder;
+    private boolean varintLengths;
+    private long position;
+    private long recordEnd = -1;
+
+
+    public FlatPackInputStream(InputStream is) {
+        this(is, false);
+    }
+
+
+    /**
+     * @param is The stream to read from
+     * @param varintLengths true if the stream uses the varint lengths and
+     * typed records introduced in database version 4
+     */
+    public FlatPackInputStream(InputStream is, boolean varintLengths) {
+        super(is);
+        this.varintLengths = varintLengths;
+    }
+
+
+    /**
+     * Start reading the next record.
+     * @return The record type or -1 if the end of the stream has been reached
+     */
+    public int readRecordType() throws IOException, ProblemReadingDatabaseFile {
+        int type = in.read();
+        if (type == -1) {
+            return -1;
+        }
+        position++;
+
+        recordEnd = -1;
+        int recordLength = readVarint();
+        if (recordLength > MAX_RECORD_LENGTH) {
+            throw new ProblemReadingDatabaseFile("A record length was invalid");
+        }
+        recordEnd = position + recordLength;
+
+        return type;
+    }
+
+
+    /**
+     * Skip over whatever's left of the current record. This could be fields
+     * added to the record type by a later version of UPM.
+     */
+    public void endRecord() throws IOException, ProblemReadingDatabaseFile {
+        while (position < recordEnd) {
+            long skipped = in.skip(recordEnd - position);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw truncated();
+                }
+                skipped = 1;
+            }
+            position += skipped;
+        }
+        recordEnd = -1;
+    }
+
+
+    /**
+     * @return The number of bytes read from the underlying stream so far
+     */
+    long getPosition() {
+        return position;
+    }
+
+
+    /**
+     * @return The position of the end of the current record or -1 if
+     * there's no current record
+     */
+    long getRecordEnd() {
+        return recordEnd;
+    }
+
+
+    /**
+     * @return true if there are more fields in the current record
+     */
+    boolean hasMoreFields() {
+        return position < recordEnd;
+    }
+
+
+    /**
+     * Read the next field into the internal buffer.
+     * @return The length of the field
+     * @throws EOFException if the end of a stream with the older lengths is
+     * reached
+     * @throws ProblemReadingDatabaseFile if the field length is invalid or
+     * a stream with varint lengths ends part way through the field
+     */
+    private int readField() throws IOException, ProblemReadingDatabaseFile {
+        int fieldLength;
+        if (varintLengths) {
+            fieldLength = readVarint();
+            if (recordEnd != -1 ? fieldLength > recordEnd - position : fieldLength > MAX_RECORD_LENGTH) {
+                throw new ProblemReadingDatabaseFile("A field length was invalid");
+            }
+        } else {
+            if (!readFully(lengthBuffer, lengthBuffer.length)) {
+                throw new EOFException();
+            }
+            fieldLength = parseLength(lengthBuffer);
+        }
+
+        if (buffer.length < fieldLength) {
+            buffer = new byte[Math.max(fieldLength, buffer.length * 2)];
+            byteBuffer = ByteBuffer.wrap(buffer);
+        }
+        if (!readFully(buffer, fieldLength)) {
+            if (varintLengths) {
+                throw truncated();
+            }
+            throw new EOFException();
+        }
+
+        return fieldLength;
+    }
+
+
+    public byte[] readBytes() throws IOException, ProblemReadingDatabaseFile {
+        int fieldLength = readField();
+        byte[] fieldContents = new byte[fieldLength];
+        System.arraycopy(buffer, 0, fieldContents, 0, fieldLength);
+        return fieldContents;
+    }
+
+
+    public String readString(Charset charset) throws IOException, ProblemReadingDatabaseFile {
+        int fieldLength = readField();
+        if (fieldLength == 0) {
+            return "";
+        }
+
+        if (!charset.equals(decoderCharset)) {
+            // Malformed input is replaced rather than reported to match
+            // the behaviour of new String(byte[], charset)
+            decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            decoderCharset = charset;
+        }
+
+        int maxChars = (int) Math.ceil(fieldLength * decoder.maxCharsPerByte());
+        if (charBuffer.capacity() < maxChars) {
+            charBuffer = CharBuffer.allocate(Math.max(maxChars, charBuffer.capacity() * 2));
+        }
+
+        byteBuffer.clear();
+        byteBuffer.limit(fieldLength);
+        charBuffer.clear();
+        decoder.reset();
+        CoderResult result = decoder.decode(byteBuffer, charBuffer, true);
+        if (result.isUnderflow()) {
+            result = decoder.flush(charBuffer);
+        }
+        if (!result.isUnderflow()) {
+            // Can only be an overflow as we've asked for errors to be replaced
+            throw new ProblemReadingDatabaseFile("Problem decoding a field");
+        }
+
+        return new String(charBuffer.array(), 0, charBuffer.position());
+    }
+
+
+    public int readInt() throws IOException, ProblemReadingDatabaseFile {
+        int fieldLength = readField();
+        if (fieldLength == 0) {
+            throw new ProblemReadingDatabaseFile("An integer field was empty");
+        }
+
+        int start = 0;
+        boolean negative = false;
+        if (buffer[0] == '-') {
+            negative = true;
+            start = 1;
+        }
+
+        // An int has at most 10 digits
+        int numDigits = fieldLength - start;
+        if (numDigits == 0 || numDigits > 10) {
+            throw new ProblemReadingDatabaseFile("An integer field had invalid characters");
+        }
+
+        long value = 0;
+        for (int i = start; i < fieldLength; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new ProblemReadingDatabaseFile("An integer field had invalid characters");
+            }
+            value = value * 10 + digit;
+        }
+        if (negative) {
+            value = -value;
+        }
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+            throw new ProblemReadingDatabaseFile("An integer field had invalid characters");
+        }
+
+        return (int) value;
+    }
+
+
+    private static int parseLength(byte[] lengthBytes) throws ProblemReadingDatabaseFile {
+        int length = 0;
+        for (int i = 0; i < lengthBytes.length; i++) {
+            int digit = lengthBytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new ProblemReadingDatabaseFile("A field length had invalid characters");
+            }
+            length = length * 10 + digit;
+        }
+        return length;
+    }
+
+
+    private int readVarint() throws IOException, ProblemReadingDatabaseFile {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw truncated();
+            }
+            position++;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new ProblemReadingDatabaseFile("A field length was invalid");
+    }
+
+
+    private static ProblemReadingDatabaseFile truncated() {
+        return new ProblemReadingDatabaseFile("The database ended part way through a record");
+    }
+
+
+    /**
+     * Fill the first len bytes of the given buffer from the stream.
+     * @return false if the end of the stream was reached before len bytes were read
+     */
+    private boolean readFully(byte[] b, int len) throws IOException {
+        int offset = 0;
+        while (offset < len) {
+            int bytesRead = in.read(b, offset, len - offset);
+            if (bytesRead == -1) {
+                return false;
+            }
+            offset += bytesRead;
+        }
+        position += len;
+        return true;
+    }
+
+}
@@ -38,7 +38,8 @@ import com.u17od.upm.util.Util;
  */
 public abstract class FlatPackObject {
 
-    private static int LENGTH_FIELD_NUM_CHARS = 4;
+    static final int LENGTH_FIELD_NUM_CHARS = 4;
+    static final Charset UTF8 = Charset.forName("UTF-8");
     
     
     /**
@@ -52,6 +53,36 @@ public abstract class FlatPackObject {
     }
     
 
+    /**
+     * Write the given string to the given OutputStream as a field. If the
+     * stream is a FlatPackOutputStream the field is written in the varint
+     * format, otherwise it's written with a 4 character ASCII length.
+     * @param os
+     * @param s
+     * @throws IOException
+     */
+    protected void putString(OutputStream os, String s) throws IOException {
+        if (os instanceof FlatPackOutputStream) {
+            ((FlatPackOutputStream) os).writeField(s.getBytes("UTF-8"));
+        } else {
+            os.write(flatPack(s));
+        }
+    }
+
+
+    /**
+     * Write the given bytes to the given OutputStream as a field.
+     * @see #putString(OutputStream, String)
+     */
+    protected void putBytes(OutputStream os, byte[] bytes) throws IOException {
+        if (os instanceof FlatPackOutputStream) {
+            ((FlatPackOutputStream) os).writeField(bytes);
+        } else {
+            os.write(flatPack(bytes));
+        }
+    }
+
+
     protected byte[] flatPack(byte[] bytesToFlatPack) throws UnsupportedEncodingException {
         //Create a byte array populated with the field length 
         String l = Util.lpad(bytesToFlatPack.length, LENGTH_FIELD_NUM_CHARS, '0');
@@ -69,6 +100,9 @@ public abstract class FlatPackObject {
 
 
     public byte[] getBytes(InputStream is) throws IOException, ProblemReadingDatabaseFile {
+        if (is instanceof FlatPackInputStream) {
+            return ((FlatPackInputStream) is).readBytes();
+        }
         
         byte[] fieldContents = null;
         
@@ -115,16 +149,22 @@ public abstract class FlatPackObject {
     
     
     public int getInt(InputStream is) throws IOException, ProblemReadingDatabaseFile {
+        if (is instanceof FlatPackInputStream) {
+            return ((FlatPackInputStream) is).readInt();
+        }
         return Integer.parseInt(getString(is));
     }
 
 
     public String getString(InputStream is) throws IOException, ProblemReadingDatabaseFile {
-        return new String(getBytes(is), "UTF-8");
+        return getString(is, UTF8);
     }
 
 
     public String getString(InputStream is, Charset charset) throws IOException, ProblemReadingDatabaseFile {
+        if (is instanceof FlatPackInputStream) {
+            return ((FlatPackInputStream) is).readString(charset);
+        }
         return new String(getBytes(is), charset.name());
     }
 
@@ -0,0 +1,127 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * A stream for writing the binary record format used from database
+ * version 4. Each FlatPackObject is written as a typed record
+ *
+ *   RECORD = TYPE LENGTH FIELD*
+ *   FIELD  = LENGTH BYTES
+ *
+ * where TYPE is a single byte and each LENGTH is an unsigned varint (7 bits
+ * per byte, least significant group first, top bit set on all but the last
+ * byte). Unlike the 4 character ASCII lengths of the older format there's no
+ * limit of 9999 bytes on a field. Because each record carries its own length
+ * a reader can skip record types (or trailing fields) it doesn't know about.
+ */
+public class FlatPackOutputStream extends FilterOutputStream {
+
+    private byte[] varintBuffer = new byte[5];
+    private RecordBuffer recordBuffer;
+
+
+    public FlatPackOutputStream(OutputStream os) {
+        super(os);
+    }
+
+
+    /**
+     * Write the given object as a record of the given type.
+     */
+    public void writeRecord(int type, FlatPackObject object) throws IOException {
+        // Flatpack the object into a buffer first so that we know its length
+        if (recordBuffer == null) {
+            recordBuffer = new RecordBuffer();
+        }
+        recordBuffer.reset();
+        object.flatPack(recordBuffer.getFieldStream());
+
+        out.write(type);
+        writeVarint(recordBuffer.size());
+        recordBuffer.writeTo(out);
+    }
+
+
+    /**
+     * Write a record of the given type made up of a single field.
+     */
+    public void writeRecord(int type, byte[] field) throws IOException {
+        out.write(type);
+        writeVarint(varintLength(field.length) + field.length);
+        writeField(field);
+    }
+
+
+    public void writeField(byte[] bytes) throws IOException {
+        writeVarint(bytes.length);
+        out.write(bytes);
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+
+    private void writeVarint(int value) throws IOException {
+        int i = 0;
+        while ((value & ~0x7F) != 0) {
+            varintBuffer[i++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        varintBuffer[i++] = (byte) value;
+        out.write(varintBuffer, 0, i);
+    }
+
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+
+    /**
+     * A reusable buffer that a record is written to before it's length
+     * prefixed and written to the real stream.
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+
+        private FlatPackOutputStream fieldStream = new FlatPackOutputStream(this);
+
+        public FlatPackOutputStream getFieldStream() {
+            return fieldStream;
+        }
+
+    }
+
+}
@@ -20,27 +20,49 @@
  */
 package com.u17od.upm.database;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.SecretKey;
 
+import com.u17od.upm.crypto.CipherSuite;
 import com.u17od.upm.crypto.DESDecryptionService;
+import com.u17od.upm.crypto.DecryptingInputStream;
 import com.u17od.upm.crypto.EncryptionService;
 import com.u17od.upm.crypto.InvalidPasswordException;
+import com.u17od.upm.crypto.KeyCache;
+import com.u17od.upm.crypto.KeyDerivation;
+import com.u17od.upm.crypto.RandomSource;
+import com.u17od.upm.crypto.RecordCipher;
 import com.u17od.upm.util.Util;
 
 
@@ -49,6 +71,9 @@ import com.u17od.upm.util.Util;
  * All interaction with the database file is done using this class.
  * 
  * Database versions and formats. The items between [] brackets are encrypted.
+ *   4     >> MAGIC_NUMBER DB_VERSION SALT KEY_DERIVATION CIPHER_SUITE KEY_CHECK DIRECTORY_LENGTH [DIRECTORY] [SEGMENT]*
+ *      (DIRECTORY and each SEGMENT are typed RECORDS, see FlatPackOutputStream,
+ *      encrypted and authenticated separately)
  *   3     >> MAGIC_NUMBER DB_VERSION SALT [DB_REVISION DB_OPTIONS ACCOUNTS]
  *      (all strings are encoded using UTF-8)
  *   2     >> MAGIC_NUMBER DB_VERSION SALT [DB_REVISION DB_OPTIONS ACCOUNTS]
@@ -64,17 +89,172 @@ import com.u17od.upm.util.Util;
  *   From version 2 the db version is stored unencrypted at the start of the file.
  *   This allows for cryptographic changes in the database structure because beforehand
  *   we had to know how to unencrypt the database before we could find out the version number.
+ *
+ *   Up to version 3 each field is prefixed with its length as a 4 character
+ *   ASCII string which limits a field to 9999 bytes. Version 4 uses typed
+ *   records with varint lengths instead. All older versions can still be
+ *   read and are upgraded to the current version the next time the
+ *   database is saved (or by upgrade()).
+ *
+ *   In version 4 the accounts are split into segments of up to
+ *   SEGMENT_SIZE accounts. The DIRECTORY holds the snapshot id, revision,
+ *   options and an entry for each segment including the names of its
+ *   accounts (see Segment). Each segment is sealed with an AEAD cipher (see
+ *   RecordCipher) so when the database is saved only the segments with
+ *   changed accounts have to be re-encrypted. When the database is loaded
+ *   only the directory is decrypted up front; the account names can be
+ *   listed straight away while the segments are decrypted in the
+ *   background (in parallel). Only the account names are decoded when a
+ *   segment is loaded, the rest of each account is decoded when it's first
+ *   used (see AccountInformation).
+ *
+ *   A segment holds a SEALED_ACCOUNT record for each account, in the order
+ *   of the names in its directory entry, so the name isn't stored twice.
+ *   The password and notes of each account are sealed again together with
+ *   a key derived from the database key (see AccountInformation.seal()).
+ *   They're only opened when they're used so loading, listing and
+ *   searching the database (other than searching the notes, see
+ *   setAccountDetailsIndexed()) never decrypts them.
+ *
+ *   The header is authenticated along with the directory and every
+ *   segment. KEY_DERIVATION is the algorithm and parameters the key is
+ *   derived from the password with (see KeyDerivation.getEncoded()),
+ *   calibrated to take about KEY_DERIVATION_MILLIS on the device whenever
+ *   a new key is made. CIPHER_SUITE is the id (1 byte, see CipherSuite) of
+ *   the AEAD cipher the directory and segments are sealed with. The
+ *   database is always written with AES-GCM, run by the quickest provider
+ *   of it on the device (see CipherSuite.getForWriting()), as a database
+ *   written with ChaCha20-Poly1305 couldn't be opened on devices before
+ *   API 28. Any suite the device has can be read. KEY_CHECK (see
+ *   RecordCipher.getKeyCheck()) rejects a wrong password as soon as the key
+ *   has been derived, without decrypting the directory, so a directory
+ *   that fails authentication can be reported as damaged rather than as a
+ *   wrong password.
+ *
+ *   A version 4 database also carries a random SNAPSHOT_ID that's changed
+ *   every time the file is written. Changes committed with commit() are
+ *   appended to a journal beside the database file (see DatabaseJournal)
+ *   rather than rewriting the whole file. The journal is tied to the
+ *   snapshot id and is replayed over the database when it's loaded.
  */
 public class PasswordDatabase {
 
-    private static final int DB_VERSION = 3;
-    private static final String FILE_HEADER = "UPM";
+    static final int DB_VERSION = 4;
+    static final String FILE_HEADER = "UPM";
+
+    /**
+     * Used as the version of databases from before the version was stored
+     * at the start of the file (1.0.0 and 1.1.0)
+     */
+    private static final int LEGACY_DB_VERSION = 1;
+
+    /**
+     * The types of the records stored from database version 4
+     */
+    public static interface RecordType {
+        public static final int REVISION = 1;
+        public static final int OPTIONS = 2;
+        public static final int ACCOUNT = 3;
+        public static final int DELETED_ACCOUNT = 4;
+        public static final int SNAPSHOT_ID = 5;
+        public static final int SEGMENT = 6;
+        public static final int SEALED_ACCOUNT = 7;
+    }
+
+    /**
+     * The maximum number of accounts in a segment. Small enough that
+     * re-encrypting a segment is cheap and large enough that there aren't
+     * too many segments to keep track of.
+     */
+    private static final int SEGMENT_SIZE = 256;
+
+    /**
+     * No legitimate directory or segment comes anywhere near this size
+     */
+    private static final int MAX_SEALED_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * How long deriving the key for a new database should take. Long enough
+     * to make guessing passwords expensive but not so long that unlocking
+     * the database is annoying.
+     */
+    private static final long KEY_DERIVATION_MILLIS = 500;
+
+    /**
+     * The salt used to derive the key that seals the password and notes of
+     * each account from the segment key
+     */
+    private static final byte[] FIELD_CIPHER_SALT = {'U', 'P', 'M', ' ', 'f', 'i', 'e', 'l', 'd', 's'};
+
+    /**
+     * The key derivation calibrated for this device. Calibrating takes a
+     * few derivations so it's only done once.
+     */
+    private static KeyDerivation calibratedKeyDerivation;
+
+    public static final int SNAPSHOT_ID_LENGTH = 16;
+    public static final String JOURNAL_FILE_SUFFIX = "-journal";
+
+    /**
+     * Once the journal grows beyond this size it should be compacted, i.e.
+     * folded back into the database file.
+     */
+    private static final long JOURNAL_COMPACTION_THRESHOLD = 64 * 1024;
+
+    /**
+     * The prefixes that limit a search term to one of the account's details,
+     * e.g. "url:example.com". The index of each is the AccountDetailsIndex
+     * field it searches.
+     */
+    private static final String[] FIELD_FILTERS = {"user:", "url:", "notes:"};
 
     private File databaseFile;
     private Revision revision;
     private DatabaseOptions dbOptions;
     private HashMap<String, AccountInformation> accounts;
     private EncryptionService encryptionService;
+    private int dbVersion;
+    private byte[] snapshotId;
+    private DatabaseJournal journal;
+    private List<Segment> segments;
+    private HashMap<String, Segment> accountSegments;
+    private Segment openSegment;
+    private AccountNameIndex nameIndex;
+    private AccountSearchIndex searchIndex;
+    private AccountDetailsIndex detailsIndex;
+    private boolean detailsIndexed;
+
+    /**
+     * The accounts changed while the details index is being built in the
+     * background. Null when the index isn't being built.
+     */
+    private List<String> detailsIndexChanges;
+    private int nextSegmentId;
+
+    /**
+     * The key the database file was last read or written with. Once the
+     * database is loaded these, encryptionService, dbVersion, snapshotId
+     * and journal are only replaced while holding the lock on this
+     * database, all at once, so the background threads never see a mix of
+     * an old and a new key. Anything slow (deriving a key, writing the
+     * file) is done before taking the lock.
+     */
+    private byte[] segmentSalt;
+    private KeyDerivation segmentKeyDerivation;
+    private RecordCipher segmentCipher;
+    private RecordCipher fieldCipher;
+
+    /**
+     * Set if a segment that was being decrypted in the background couldn't
+     * be read
+     */
+    private Exception segmentProblem;
+
+    /**
+     * Accounts added, edited (value is the account) or deleted (value is
+     * null) since the last commit
+     */
+    private LinkedHashMap<String, AccountInformation> pendingChanges = new LinkedHashMap<String, AccountInformation>();
 
 
     public PasswordDatabase(File dbFile, SecretKey secretKey) throws IOException, GeneralSecurityException, ProblemReadingDatabaseFile, InvalidPasswordException {
@@ -96,8 +276,9 @@ public class PasswordDatabase {
             databaseFile.createNewFile();
             revision = new Revision();
             dbOptions = new DatabaseOptions();
-            accounts = new HashMap<String, AccountInformation>();
+            clearAccounts();
             encryptionService = new EncryptionService(password);
+            dbVersion = DB_VERSION;
         } else {
             SecretKey secretKey = EncryptionService.createSecretKey(password);
             load(secretKey);
@@ -106,91 +287,565 @@ public class PasswordDatabase {
 
 
     public void changePassword(char[] password) throws GeneralSecurityException {
-        encryptionService = new EncryptionService(password);
+        EncryptionService newEncryptionService = new EncryptionService(password);
+        // Nothing should be opened with the old password's keys now
+        KeyCache.clear();
+        synchronized (this) {
+            encryptionService = newEncryptionService;
+            // The journal key is derived from the password so the journal has
+            // to be started again. The next save() will do that.
+            snapshotId = null;
+            journal = null;
+
+            // Same goes for the segments
+            segmentSalt = null;
+            segmentKeyDerivation = null;
+            segmentCipher = null;
+            fieldCipher = null;
+            for (Segment segment : segments) {
+                segment.setDirty();
+            }
+        }
     }
 
 
-    private void load(SecretKey secretKey) throws IOException, GeneralSecurityException, ProblemReadingDatabaseFile, InvalidPasswordException {
+    /**
+     * Change the password after checking the existing one and save the
+     * database with it. Unlike opening the database file again to check the
+     * password, nothing is read or decrypted: the existing password is
+     * checked against the key check value of the loaded database (which
+     * costs nothing if its key is in the KeyCache) and the accounts already
+     * in memory are written out under a key derived once from the new
+     * password. If the database can't be written it keeps the existing
+     * password.
+     * @throws InvalidPasswordException if the existing password is wrong
+     */
+    public void changePassword(char[] existingPassword, char[] newPassword) throws IOException, GeneralSecurityException, InvalidPasswordException {
+        if (!checkPassword(existingPassword)) {
+            throw new InvalidPasswordException();
+        }
+
+        EncryptionService oldEncryptionService;
+        byte[] oldSnapshotId;
+        DatabaseJournal oldJournal;
+        byte[] oldSegmentSalt;
+        KeyDerivation oldSegmentKeyDerivation;
+        RecordCipher oldSegmentCipher;
+        RecordCipher oldFieldCipher;
+        synchronized (this) {
+            oldEncryptionService = encryptionService;
+            oldSnapshotId = snapshotId;
+            oldJournal = journal;
+            oldSegmentSalt = segmentSalt;
+            oldSegmentKeyDerivation = segmentKeyDerivation;
+            oldSegmentCipher = segmentCipher;
+            oldFieldCipher = fieldCipher;
+        }
+        int oldRevision = revision.getRevision();
+        changePassword(newPassword);
+        boolean saved = false;
+        try {
+            save();
+            saved = true;
+        } finally {
+            if (!saved) {
+                revision.setRevision(oldRevision);
+                synchronized (this) {
+                    encryptionService = oldEncryptionService;
+                    snapshotId = oldSnapshotId;
+                    journal = oldJournal;
+                    segmentSalt = oldSegmentSalt;
+                    segmentKeyDerivation = oldSegmentKeyDerivation;
+                    segmentCipher = oldSegmentCipher;
+                    fieldCipher = oldFieldCipher;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return true if the given password is the database's password
+     */
+    public boolean checkPassword(char[] password) throws GeneralSecurityException {
+        RecordCipher cipher;
+        byte[] salt;
+        KeyDerivation keyDerivation;
+        synchronized (this) {
+            if (segmentCipher == null) {
+                // The database hasn't been read or written in the segmented
+                // format so there's no key check value; all we have is the
+                // password its key was created from
+                return encryptionService.isKeyFor(password);
+            }
+            cipher = segmentCipher;
+            salt = segmentSalt;
+            keyDerivation = segmentKeyDerivation;
+        }
+
+        // The candidate's key is derived without holding the lock
+        CipherSuite suite = cipher.getCipherSuite();
+        byte[] header = getSegmentHeader(salt, keyDerivation, suite.getId());
+        RecordCipher candidate = RecordCipher.createForCheck(EncryptionService.createSecretKey(password), salt, keyDerivation, suite);
+        return cipher.checkKey(candidate.getKeyCheck(header), header);
+    }
+
 
-        //Read in the encrypted bytes
-        byte[] fullDatabase = Util.getBytesFromFile(databaseFile);
+    private void load(SecretKey secretKey) throws IOException, GeneralSecurityException, ProblemReadingDatabaseFile, InvalidPasswordException {
 
         // Check the database is a minimum length
-        if (fullDatabase.length < EncryptionService.SALT_LENGTH) {
+        if (databaseFile.length() < EncryptionService.SALT_LENGTH) {
             throw new ProblemReadingDatabaseFile("This file doesn't appear to be a UPM password database");
         }
 
-        ByteArrayInputStream is = null;
-        Charset charset = Charset.forName("UTF-8");
+        DatabaseFormat format = DatabaseFormat.identify(databaseFile, secretKey);
+
+        // The database is decrypted and parsed as a stream straight off the
+        // file so that we never have to hold the whole file (or the whole
+        // decrypted database) in memory at once
+        FileInputStream fis = new FileInputStream(databaseFile);
+        try {
+            InputStream is = null;
+            Charset charset = Charset.forName("UTF-8");
 
-        // Ensure this is a real UPM database by checking for the existance of the string "UPM" at the start of the file
-        byte[] header = new byte[FILE_HEADER.getBytes().length];
-        System.arraycopy(fullDatabase, 0, header, 0, header.length);
-        if (Arrays.equals(header, FILE_HEADER.getBytes())) {
+            if (format != DatabaseFormat.LEGACY) {
 
-            // Calculate the positions of each item in the file
-            int dbVersionPos      = header.length;
-            int saltPos           = dbVersionPos + 1;
-            int encryptedBytesPos = saltPos + EncryptionService.SALT_LENGTH;
+                // Skip the "UPM" at the start of the file and get the database version
+                readFully(fis, new byte[FILE_HEADER.getBytes().length]);
+                dbVersion = fis.read();
 
-            // Get the database version 
-            byte dbVersion = fullDatabase[dbVersionPos];
+                if (format == DatabaseFormat.SEGMENTED) {
+                    readSegmentedDatabase(fis, secretKey);
+                } else {
+                    byte[] salt = new byte[EncryptionService.SALT_LENGTH];
+                    readFully(fis, salt);
 
-            if (dbVersion == 2 || dbVersion == 3) {
-                byte[] salt = new byte[EncryptionService.SALT_LENGTH];
-                System.arraycopy(fullDatabase, saltPos, salt, 0, EncryptionService.SALT_LENGTH);
-                int encryptedBytesLength = fullDatabase.length - encryptedBytesPos;
-                byte[] encryptedBytes = new byte[encryptedBytesLength]; 
-                System.arraycopy(fullDatabase, encryptedBytesPos, encryptedBytes, 0, encryptedBytesLength);
-
-                // From version 3 onwards Strings in AccountInformation are
-                // encoded using UTF-8. To ensure we can still open older dbs
-                // we default back to the then character set, the system default
-                if (dbVersion < 3) {
-                    charset = Util.defaultCharset();
+                    // From version 3 onwards Strings in AccountInformation are
+                    // encoded using UTF-8. To ensure we can still open older dbs
+                    // we default back to the then character set, the system default
+                    if (dbVersion < 3) {
+                        charset = Util.defaultCharset();
+                    }
+
+                    //Attempt to decrypt the database information
+                    encryptionService = new EncryptionService(secretKey, salt);
+                    is = encryptionService.decrypt(fis);
                 }
 
+            } else {
+
+                // An old database (pre version 2). In this format the file starts with the salt.
+                byte[] salt = new byte[EncryptionService.SALT_LENGTH];
+                readFully(fis, salt);
+
                 //Attempt to decrypt the database information
+                is = new DecryptingInputStream(fis, DESDecryptionService.createDecryptionCipher(secretKey, salt));
+                dbVersion = LEGACY_DB_VERSION;
+
+                // Create the encryption for use later in the save() method
                 encryptionService = new EncryptionService(secretKey, salt);
-                byte[] decryptedBytes = encryptionService.decrypt(encryptedBytes);
+            }
 
-                //If we've got here then the database was successfully decrypted 
-                is = new ByteArrayInputStream(decryptedBytes);
-                revision = new Revision(is);
-                dbOptions = new DatabaseOptions(is);
-            } else {
-                throw new ProblemReadingDatabaseFile("Don't know how to handle database version [" + dbVersion + "]");
+            if (is != null) {
+                readDatabase(new FlatPackInputStream(is), charset);
             }
+        } finally {
+            fis.close();
+        }
 
-        } else {
-            
-            // This might be an old database (pre version 2) so try loading it using the old database format
-            
-            // Check the database is a minimum length
-            if (fullDatabase.length < EncryptionService.SALT_LENGTH) {
-                throw new ProblemReadingDatabaseFile("This file doesn't appear to be a UPM password database");
-            }
-            
-            //Split up the salt and encrypted bytes
-            byte[] salt = new byte[EncryptionService.SALT_LENGTH];
-            System.arraycopy(fullDatabase, 0, salt, 0, EncryptionService.SALT_LENGTH);
-            int encryptedBytesLength = fullDatabase.length - EncryptionService.SALT_LENGTH;
-            byte[] encryptedBytes = new byte[encryptedBytesLength]; 
-            System.arraycopy(fullDatabase, EncryptionService.SALT_LENGTH, encryptedBytes, 0, encryptedBytesLength);
-
-            byte[] decryptedBytes = null;
+        readJournal();
+        indexAccountsInBackground();
+    }
+
+
+    /**
+     * Read a segmented (version 4) database. The key derivation and cipher
+     * suite are read from the header and the password is checked against
+     * the key check value. The directory is decrypted next and then the
+     * segments are read and decrypted in the background.
+     */
+    private void readSegmentedDatabase(InputStream fis, SecretKey secretKey) throws IOException, GeneralSecurityException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        byte[] salt = new byte[RecordCipher.SALT_LENGTH];
+        readFully(fis, salt);
+        encryptionService = new EncryptionService(secretKey, salt);
+
+        DataInputStream dis = new DataInputStream(fis);
+        KeyDerivation keyDerivation;
+        try {
+            keyDerivation = KeyDerivation.read(dis);
+        } catch (GeneralSecurityException e) {
+            throw new ProblemReadingDatabaseFile("Can't use the database's key derivation", e);
+        }
+        int suiteId = dis.readUnsignedByte();
+        CipherSuite suite;
+        try {
+            suite = CipherSuite.getInstance(suiteId);
+        } catch (GeneralSecurityException e) {
+            throw new ProblemReadingDatabaseFile("Can't use the database's cipher suite", e);
+        }
+        RecordCipher cipher = RecordCipher.createForCheck(secretKey, salt, keyDerivation, suite);
+        byte[] header = getSegmentHeader(salt, keyDerivation, suiteId);
+
+        byte[] keyCheck = new byte[RecordCipher.KEY_CHECK_LENGTH];
+        dis.readFully(keyCheck);
+        if (!cipher.checkKey(keyCheck, header)) {
+            throw new InvalidPasswordException();
+        }
+
+        byte[] directory;
+        try {
+            directory = cipher.open(readSealed(dis), header);
+        } catch (BadPaddingException e) {
+            throw new ProblemReadingDatabaseFile("The database directory failed authentication");
+        }
+
+        snapshotId = null;
+        revision = new Revision();
+        dbOptions = new DatabaseOptions();
+        clearAccounts();
+
+        List<Segment> directorySegments = new ArrayList<Segment>();
+        FlatPackInputStream is = new FlatPackInputStream(new ByteArrayInputStream(directory), true);
+        int recordType;
+        while ((recordType = is.readRecordType()) != -1) {
+            switch (recordType) {
+                case RecordType.SNAPSHOT_ID:
+                    snapshotId = is.readBytes();
+                    break;
+                case RecordType.REVISION:
+                    revision = new Revision(is);
+                    break;
+                case RecordType.OPTIONS:
+                    dbOptions = new DatabaseOptions(is);
+                    break;
+                case RecordType.SEGMENT:
+                    directorySegments.add(new Segment(is));
+                    break;
+            }
+            is.endRecord();
+        }
+
+        for (Segment segment : directorySegments) {
+            if (segment.getLength() < 0 || segment.getLength() > MAX_SEALED_LENGTH) {
+                throw new ProblemReadingDatabaseFile("A segment length was invalid");
+            }
+            byte[] sealed = new byte[segment.getLength()];
+            dis.readFully(sealed);
+            segment.readSealed(sealed);
+        }
+
+        segmentSalt = salt;
+        segmentKeyDerivation = keyDerivation;
+        segmentCipher = cipher;
+        fieldCipher = cipher.deriveCipher(FIELD_CIPHER_SALT);
+        loadSegments(directorySegments);
+    }
+
+
+    static byte[] readSealed(DataInputStream is) throws IOException, ProblemReadingDatabaseFile {
+        int length = is.readInt();
+        if (length < 0 || length > MAX_SEALED_LENGTH) {
+            throw new ProblemReadingDatabaseFile("This file doesn't appear to be a UPM password database");
+        }
+        byte[] sealed = new byte[length];
+        is.readFully(sealed);
+        return sealed;
+    }
+
+
+    /**
+     * Start decrypting the given segments in the background. The account
+     * names are in the directory so the database can be used straight
+     * away. Anything that needs an account in a segment that hasn't been
+     * decrypted yet waits for that segment (see awaitSegment()). The
+     * segments are decrypted in parallel if there's more than one
+     * processor.
+     */
+    private void loadSegments(List<Segment> segmentsToLoad) {
+        final RecordCipher cipher = segmentCipher;
+        final RecordCipher accountFieldCipher = fieldCipher;
+        final byte[] header = getSegmentHeader(segmentSalt, segmentKeyDerivation, cipher.getCipherSuite().getId());
+
+        List<FutureTask<List<AccountInformation>>> tasks = new ArrayList<FutureTask<List<AccountInformation>>>();
+        for (Segment segment : segmentsToLoad) {
+            final int segmentId = segment.getId();
+            final byte[] sealed = segment.getSealed();
+            // The names are copied as accounts can be deleted from the
+            // segment while it's being decrypted
+            final List<String> accountNames = new ArrayList<String>(segment.getAccountNames());
+            FutureTask<List<AccountInformation>> task = new FutureTask<List<AccountInformation>>(new Callable<List<AccountInformation>>() {
+                public List<AccountInformation> call() throws Exception {
+                    return openSegment(cipher, accountFieldCipher, header, segmentId, accountNames, sealed);
+                }
+            });
+            segment.setLoading(task);
+
+            for (String accountName : segment.getAccountNames()) {
+                accountSegments.put(accountName, segment);
+            }
+            segments.add(segment);
+            nextSegmentId = Math.max(nextSegmentId, segment.getId() + 1);
+            tasks.add(task);
+        }
+
+        if (!tasks.isEmpty()) {
+            int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), tasks.size());
+            ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            for (FutureTask<List<AccountInformation>> task : tasks) {
+                executor.execute(task);
+            }
+            // Let the threads finish once the segments have been decrypted
+            executor.shutdown();
+        }
+    }
+
+
+    /**
+     * Wait for the given segment to be decrypted (decrypting it on this
+     * thread if it hasn't been started yet) and add its accounts to the
+     * database. Accounts that have been changed or deleted since the
+     * database was loaded (e.g. by the journal) are left as they are.
+     * If the segment can't be decrypted its accounts are left out of the
+     * database and the problem is reported by write().
+     */
+    private synchronized void awaitSegment(Segment segment) {
+        if (segment.getLoading() == null) {
+            return;
+        }
+
+        try {
+            for (AccountInformation ai : getSegmentAccounts(segment)) {
+                String accountName = ai.getAccountName();
+                if (segment.getAccountNames().contains(accountName) && !accounts.containsKey(accountName)) {
+                    accounts.put(accountName, ai);
+                }
+            }
+        } catch (IOException e) {
+            segmentProblem = e;
+        } catch (GeneralSecurityException e) {
+            segmentProblem = e;
+        } catch (ProblemReadingDatabaseFile e) {
+            segmentProblem = e;
+        }
+        segment.setLoading(null);
+    }
+
+
+    private synchronized void awaitSegments() {
+        for (Segment segment : segments) {
+            awaitSegment(segment);
+        }
+    }
+
+
+    private static List<AccountInformation> getSegmentAccounts(Segment segment) throws IOException, GeneralSecurityException, ProblemReadingDatabaseFile {
+        FutureTask<List<AccountInformation>> task = segment.getLoading();
+        // If the segment's still queued decrypt it on this thread rather
+        // than wait for the ones in front of it. If it's already been
+        // decrypted (or is being decrypted) this does nothing.
+        task.run();
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            } else if (e.getCause() instanceof ProblemReadingDatabaseFile) {
+                throw (ProblemReadingDatabaseFile) e.getCause();
+            }
+            throw new ProblemReadingDatabaseFile("Problem reading the database", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+
+    /**
+     * Decrypt a segment. Its SEALED_ACCOUNT records are in the same order
+     * as the account names in the directory.
+     */
+    private static List<AccountInformation> openSegment(RecordCipher cipher, RecordCipher fieldCipher, byte[] header, int segmentId, List<String> accountNames, byte[] sealed) throws IOException, GeneralSecurityException, ProblemReadingDatabaseFile {
+        byte[] plaintext;
+        try {
+            plaintext = cipher.open(sealed, getSegmentAssociatedData(header, segmentId));
+        } catch (BadPaddingException e) {
+            throw new ProblemReadingDatabaseFile("A segment of the database failed authentication", e);
+        }
+
+        List<AccountInformation> segmentAccounts = new ArrayList<AccountInformation>();
+        FlatPackInputStream is = new FlatPackInputStream(new ByteArrayInputStream(plaintext), true);
+        int recordType;
+        while ((recordType = is.readRecordType()) != -1) {
+            if (recordType == RecordType.SEALED_ACCOUNT) {
+                if (segmentAccounts.size() == accountNames.size()) {
+                    throw new ProblemReadingDatabaseFile("A segment of the database doesn't match the directory");
+                }
+                // The account is decoded from the segment when it's needed
+                String accountName = accountNames.get(segmentAccounts.size());
+                segmentAccounts.add(new AccountInformation(accountName, plaintext, (int) is.getPosition(), (int) is.getRecordEnd(), fieldCipher));
+            }
+            is.endRecord();
+        }
+        if (segmentAccounts.size() != accountNames.size()) {
+            throw new ProblemReadingDatabaseFile("A segment of the database doesn't match the directory");
+        }
+        return segmentAccounts;
+    }
+
+
+    /**
+     * The unencrypted start of a segmented database (up to the key check).
+     * It's authenticated as part of the directory and every segment.
+     */
+    static byte[] getSegmentHeader(byte[] salt, KeyDerivation keyDerivation, int suiteId) {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write(FILE_HEADER.getBytes(), 0, FILE_HEADER.length());
+        header.write(DB_VERSION);
+        header.write(salt, 0, salt.length);
+        byte[] encodedKeyDerivation = keyDerivation.getEncoded();
+        header.write(encodedKeyDerivation, 0, encodedKeyDerivation.length);
+        header.write(suiteId);
+        return header.toByteArray();
+    }
+
+
+    /**
+     * Read back a newly written database file and check the header is what
+     * was written, the key check matches and the directory and every
+     * segment open with the database's key. Opening them checks every byte
+     * of the file so one that's been damaged on the way to the disk (e.g.
+     * a full or failing card) never replaces a good database file.
+     */
+    private static void verifyWrite(File file, RecordCipher cipher, byte[] header, List<Segment> writtenSegments) throws IOException, GeneralSecurityException {
+        DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] writtenHeader = new byte[header.length];
+            is.readFully(writtenHeader);
+            byte[] keyCheck = new byte[RecordCipher.KEY_CHECK_LENGTH];
+            is.readFully(keyCheck);
+            if (!Arrays.equals(writtenHeader, header) || !cipher.checkKey(keyCheck, header)) {
+                throw new IOException("The header of " + file + " didn't read back as written");
+            }
+
+            cipher.open(readSealed(is), header);
+            for (Segment writtenSegment : writtenSegments) {
+                byte[] sealed = new byte[writtenSegment.getSealed().length];
+                is.readFully(sealed);
+                cipher.open(sealed, getSegmentAssociatedData(header, writtenSegment.getId()));
+            }
+            if (is.read() != -1) {
+                throw new IOException(file + " is longer than was written");
+            }
+        } catch (BadPaddingException e) {
+            throw new IOException(file + " didn't read back as written", e);
+        } catch (ProblemReadingDatabaseFile e) {
+            throw new IOException(file + " didn't read back as written", e);
+        } finally {
+            is.close();
+        }
+    }
+
+
+    /**
+     * @return The key derivation calibrated for this device
+     */
+    private static synchronized KeyDerivation getCalibratedKeyDerivation() throws GeneralSecurityException {
+        if (calibratedKeyDerivation == null) {
+            calibratedKeyDerivation = KeyDerivation.calibrate(KEY_DERIVATION_MILLIS);
+        }
+        return calibratedKeyDerivation;
+    }
+
+
+    private static byte[] getSegmentAssociatedData(byte[] header, int segmentId) {
+        byte[] associatedData = new byte[header.length + 4];
+        System.arraycopy(header, 0, associatedData, 0, header.length);
+        associatedData[header.length] = (byte) (segmentId >>> 24);
+        associatedData[header.length + 1] = (byte) (segmentId >>> 16);
+        associatedData[header.length + 2] = (byte) (segmentId >>> 8);
+        associatedData[header.length + 3] = (byte) segmentId;
+        return associatedData;
+    }
+
+
+    /**
+     * Replay any changes in the journal over the database we've just loaded.
+     */
+    private void readJournal() throws IOException, ProblemReadingDatabaseFile {
+        journal = null;
+        if (snapshotId == null) {
+            // The journal only applies to a database with a snapshot id
+            return;
+        }
+
+        List<byte[]> entries;
+        try {
+            entries = getJournal().read(snapshotId);
+        } catch (GeneralSecurityException e) {
+            throw new ProblemReadingDatabaseFile("Problem reading the database journal", e);
+        }
+
+        for (byte[] entry : entries) {
+            FlatPackInputStream is = new FlatPackInputStream(new ByteArrayInputStream(entry), true);
             try {
-                //Attempt to decrypt the database information
-                decryptedBytes = DESDecryptionService.decrypt(secretKey, salt, encryptedBytes);
-            } catch (IllegalBlockSizeException e) {
-                throw new ProblemReadingDatabaseFile("Either your password is incorrect or this file isn't a UPM password database");
+                readRecords(is);
+            } catch (RuntimeException e) {
+                throw new ProblemReadingDatabaseFile("Problem reading the database journal", e);
             }
+        }
+    }
+
+
+    private synchronized DatabaseJournal getJournal() {
+        if (journal == null) {
+            File journalFile = new File(databaseFile.getPath() + JOURNAL_FILE_SUFFIX);
+            journal = new DatabaseJournal(journalFile, segmentCipher);
+        }
+        return journal;
+    }
 
-            // Create the encryption for use later in the save() method
-            encryptionService = new EncryptionService(secretKey, salt);
-            
-            //We'll get to here if the password was correct so load up the decryped byte
-            is = new ByteArrayInputStream(decryptedBytes);
+
+    /**
+     * Read the decrypted database from the given stream. Because the
+     * database is decrypted as it's read we won't find out if the password
+     * was wrong (i.e. the padding on the last block was bad) until we reach
+     * the end of the stream. If parsing fails part way through we read on to
+     * the end of the stream to find out whether it was the password or the
+     * file that was at fault.
+     */
+    private void readDatabase(FlatPackInputStream is, Charset charset) throws IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        try {
+            snapshotId = null;
+            revision = new Revision();
+            dbOptions = new DatabaseOptions();
+            clearAccounts();
+            readFields(is, charset);
+
+            // Make sure we really did reach the end of the stream and the
+            // last block decrypted correctly
+            checkDecryption(is);
+        } catch (IOException e) {
+            throw decryptionProblem(e);
+        } catch (ProblemReadingDatabaseFile e) {
+            checkDecryption(is);
+            throw e;
+        } catch (RuntimeException e) {
+            // Garbage from a bad decryption can turn up as a negative or
+            // invalid field length
+            checkDecryption(is);
+            throw new ProblemReadingDatabaseFile("Problem reading the database", e);
+        }
+    }
+
+
+    /**
+     * Read a database from before version 4 where the objects are simply
+     * flatpacked one after the other.
+     */
+    private void readFields(FlatPackInputStream is, Charset charset) throws IOException, ProblemReadingDatabaseFile {
+        if (dbVersion == LEGACY_DB_VERSION) {
             DatabaseHeader dh = new DatabaseHeader(is);
 
             // At this point we'll check to see what version the database is and load it accordingly
@@ -204,84 +859,719 @@ public class PasswordDatabase {
             } else {
                 throw new ProblemReadingDatabaseFile("Don't know how to handle database version [" + dh.getVersion() + "]");
             }
-
+        } else {
+            revision = new Revision(is);
+            dbOptions = new DatabaseOptions(is);
         }
-        
+
         // Read the remainder of the database in now
-        accounts = new HashMap<String, AccountInformation>();
         try {
             while (true) { //keep loading accounts until an EOFException is thrown
                 AccountInformation ai = new AccountInformation(is, charset);
-                addAccount(ai);
+                putAccount(ai);
             }
         } catch (EOFException e) {
             //just means we hit eof
         }
-        is.close();
-        
+    }
+
+
+    /**
+     * Read the typed records of a journal entry. Records types we don't
+     * know about are skipped.
+     */
+    private void readRecords(FlatPackInputStream is) throws IOException, ProblemReadingDatabaseFile {
+        int recordType;
+        while ((recordType = is.readRecordType()) != -1) {
+            switch (recordType) {
+                case RecordType.REVISION:
+                    revision = new Revision(is);
+                    break;
+                case RecordType.OPTIONS:
+                    dbOptions = new DatabaseOptions(is);
+                    break;
+                case RecordType.ACCOUNT:
+                    putAccount(new AccountInformation(is));
+                    break;
+                case RecordType.DELETED_ACCOUNT:
+                    removeAccount(is.readString(FlatPackObject.UTF8));
+                    break;
+                case RecordType.SNAPSHOT_ID:
+                    snapshotId = is.readBytes();
+                    break;
+            }
+            is.endRecord();
+        }
+    }
+
+
+    /**
+     * Read to the end of the decrypted stream. If the final block fails to
+     * decrypt an InvalidPasswordException (or ProblemReadingDatabaseFile)
+     * is thrown, otherwise this method returns normally. 
+     */
+    private void checkDecryption(InputStream is) throws IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        try {
+            while (is.skip(Long.MAX_VALUE) > 0) {
+                // keep reading to the end of the stream
+            }
+        } catch (IOException e) {
+            throw decryptionProblem(e);
+        }
+    }
+
+
+    private IOException decryptionProblem(IOException e) throws ProblemReadingDatabaseFile, InvalidPasswordException {
+        if (e.getCause() instanceof BadPaddingException) {
+            throw new InvalidPasswordException();
+        } else if (e.getCause() instanceof IllegalBlockSizeException) {
+            if (dbVersion == LEGACY_DB_VERSION) {
+                throw new ProblemReadingDatabaseFile("Either your password is incorrect or this file isn't a UPM password database");
+            }
+            throw new ProblemReadingDatabaseFile("This file doesn't appear to be a UPM password database", e);
+        }
+        return e;
+    }
+
+
+    private static void readFully(InputStream is, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int bytesRead = is.read(buffer, offset, buffer.length - offset);
+            if (bytesRead == -1) {
+                throw new EOFException();
+            }
+            offset += bytesRead;
+        }
     }
     
 
-    public void addAccount(AccountInformation ai) {
-        accounts.put(ai.getAccountName(), ai);
+    public synchronized void addAccount(AccountInformation ai) {
+        putAccount(ai);
+        pendingChanges.put(ai.getAccountName(), ai);
     }
     
 
-    public void deleteAccount(String accountName) {
+    public synchronized void deleteAccount(String accountName) {
+        removeAccount(accountName);
+        pendingChanges.put(accountName, null);
+    }
+
+
+    private void clearAccounts() {
+        accounts = new HashMap<String, AccountInformation>();
+        segments = new ArrayList<Segment>();
+        accountSegments = new HashMap<String, Segment>();
+        openSegment = null;
+        nextSegmentId = 0;
+        segmentProblem = null;
+        nameIndex = null;
+        searchIndex = null;
+        detailsIndex = null;
+        detailsIndexChanges = null;
+    }
+
+
+    /**
+     * Add or replace an account, marking the segment it's in as dirty.
+     */
+    private void putAccount(AccountInformation ai) {
+        String accountName = ai.getAccountName();
+        accounts.put(accountName, ai);
+
+        Segment segment = accountSegments.get(accountName);
+        if (segment == null) {
+            segment = getOpenSegment();
+            segment.getAccountNames().add(accountName);
+            accountSegments.put(accountName, segment);
+            if (nameIndex != null) {
+                nameIndex.add(accountName);
+            }
+            if (searchIndex != null) {
+                searchIndex.add(accountName);
+            }
+        }
+        segment.setDirty();
+
+        if (detailsIndex != null) {
+            detailsIndex.add(ai);
+        }
+        if (detailsIndexChanges != null) {
+            detailsIndexChanges.add(accountName);
+        }
+    }
+
+
+    /**
+     * Remove an account, marking the segment it was in as dirty.
+     */
+    private void removeAccount(String accountName) {
         accounts.remove(accountName);
+
+        Segment segment = accountSegments.remove(accountName);
+        if (segment != null) {
+            segment.getAccountNames().remove(accountName);
+            segment.setDirty();
+            if (nameIndex != null) {
+                nameIndex.remove(accountName);
+            }
+            if (searchIndex != null) {
+                searchIndex.remove(accountName);
+            }
+            if (detailsIndex != null) {
+                detailsIndex.remove(accountName);
+            }
+            if (detailsIndexChanges != null) {
+                detailsIndexChanges.add(accountName);
+            }
+            // An edit is a delete followed by an add. Adding the account
+            // back to the same segment means only one segment is dirtied.
+            openSegment = segment;
+        }
+    }
+
+
+    /**
+     * @return The segment new accounts should be added to
+     */
+    private Segment getOpenSegment() {
+        if (openSegment == null || openSegment.getAccountNames().size() >= SEGMENT_SIZE
+                || !segments.contains(openSegment)) {
+            openSegment = null;
+            if (!segments.isEmpty()) {
+                Segment lastSegment = segments.get(segments.size() - 1);
+                if (lastSegment.getAccountNames().size() < SEGMENT_SIZE) {
+                    openSegment = lastSegment;
+                }
+            }
+            if (openSegment == null) {
+                openSegment = new Segment(nextSegmentId++);
+                segments.add(openSegment);
+            }
+        }
+        return openSegment;
     }
 
     
-    public AccountInformation getAccount(String name) {
+    /**
+     * Get an account. If the segment the account is in is still being
+     * decrypted this waits for that segment.
+     * @return The account or null if there's no such account (or the
+     * segment it's in couldn't be read)
+     */
+    public synchronized AccountInformation getAccount(String name) {
+        Segment segment = accountSegments.get(name);
+        if (segment != null) {
+            awaitSegment(segment);
+        }
         return accounts.get(name);
     }
     
     
-    public void save() throws IOException, IllegalBlockSizeException, BadPaddingException {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        
-        // Flatpack the database revision and options
+    /**
+     * Write the whole database out to the database file.
+     */
+    public void save() throws IOException, GeneralSecurityException {
         revision.increment();
-        revision.flatPack(os);
-        dbOptions.flatPack(os);
+        write(false);
+        synchronized (this) {
+            pendingChanges.clear();
+        }
+    }
+
 
-        // Flatpack the accounts
-        Iterator<AccountInformation> it = accounts.values().iterator();
-        while (it.hasNext()) {
-            AccountInformation ai = it.next();
-            ai.flatPack(os);
+    /**
+     * Save the changes made since the last commit (or save) by appending
+     * them to the journal. This only costs as much as the changes themselves
+     * rather than the whole database. If the database doesn't have a
+     * journal yet (e.g. it's just been created or is in an older format)
+     * then the whole database is saved instead.
+     * @return true if the journal should now be compacted
+     */
+    public boolean commit() throws IOException, GeneralSecurityException {
+        // The snapshot id and revision are replaced by write() so they're
+        // read together, along with the changes, while holding the lock
+        byte[] commitSnapshotId;
+        Map<String, AccountInformation> changes;
+        Revision newRevision = new Revision();
+        synchronized (this) {
+            commitSnapshotId = snapshotId;
+            changes = new LinkedHashMap<String, AccountInformation>(pendingChanges);
+            newRevision.setRevision(revision.getRevision() + 1);
+        }
+        if (commitSnapshotId == null) {
+            save();
+            return false;
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        FlatPackOutputStream os = new FlatPackOutputStream(baos);
+        os.writeRecord(RecordType.REVISION, newRevision);
+        os.writeRecord(RecordType.OPTIONS, dbOptions);
+        for (Map.Entry<String, AccountInformation> change : changes.entrySet()) {
+            if (change.getValue() != null) {
+                os.writeRecord(RecordType.ACCOUNT, change.getValue());
+            } else {
+                os.writeRecord(RecordType.DELETED_ACCOUNT, change.getKey().getBytes(FlatPackObject.UTF8));
+            }
         }
         os.close();
-        byte[] dataToEncrypt = os.toByteArray();
 
-        //Now encrypt the database data
-        byte[] encryptedData = encryptionService.encrypt(dataToEncrypt);
+        getJournal().append(commitSnapshotId, baos.toByteArray());
 
-        // Write the salt and the encrypted data out to a temporary file
-        File tempFile = File.createTempFile("upmdb", null);
-        FileOutputStream fos = new FileOutputStream(tempFile);
-        fos.write(FILE_HEADER.getBytes());
-        fos.write(DB_VERSION);
-        fos.write(encryptionService.getSalt());
-        fos.write(encryptedData);
-        fos.close();
+        // Only now the changes are safely on disk can we forget about them.
+        // Anything changed again while we were writing stays pending. If
+        // the database file was written in the meantime the entry is for
+        // the old snapshot and will be ignored, so the changes stay pending
+        // for the next commit.
+        synchronized (this) {
+            if (Arrays.equals(snapshotId, commitSnapshotId)) {
+                revision = newRevision;
+                for (Map.Entry<String, AccountInformation> change : changes.entrySet()) {
+                    if (pendingChanges.get(change.getKey()) == change.getValue()) {
+                        pendingChanges.remove(change.getKey());
+                    }
+                }
+            }
+        }
 
-        // Rename the tempfile to the real database file
-        // The reason for this is to protect against the write thread being
-        // terminated thus corrupting the file.
-        tempFile.renameTo(databaseFile);
+        return isCompactionRequired();
     }
 
-    
-    public ArrayList<AccountInformation> getAccounts() {
+
+    /**
+     * @return true if the journal has grown big enough that it should be
+     * folded back into the database file with compact()
+     */
+    public synchronized boolean isCompactionRequired() {
+        return snapshotId != null && getJournal().length() > JOURNAL_COMPACTION_THRESHOLD;
+    }
+
+
+    /**
+     * Fold the journal back into the database file so that the database
+     * file holds all committed changes, e.g. before it's uploaded or backed
+     * up. The revision isn't changed as the contents of the database are
+     * the same. Changes that haven't been committed are not included.
+     */
+    public void compact() throws IOException, GeneralSecurityException {
+        boolean journaled;
+        synchronized (this) {
+            journaled = snapshotId != null && getJournal().getFile().exists();
+        }
+        if (journaled) {
+            write(false);
+        }
+    }
+
+
+    /**
+     * @return true if the database file is in an older format than the one
+     * save() writes
+     */
+    public boolean isUpgradeRequired() {
+        return dbVersion < DB_VERSION;
+    }
+
+
+    /**
+     * Rewrite the database file in the current format. The revision isn't
+     * changed as the contents of the database are the same. As every
+     * account is re-encrypted with a new key the new file is read back and
+     * checked before it replaces the old one; if anything's wrong the old
+     * file is left alone and an IOException thrown.
+     */
+    public void upgrade() throws IOException, GeneralSecurityException {
+        if (isUpgradeRequired()) {
+            write(true);
+        }
+    }
+
+
+    /**
+     * Write the database out in the segmented format. Segments that haven't
+     * changed since they were last read or written are copied as they are;
+     * only the dirty segments are re-encrypted.
+     * @param verify If true the new file is read back and checked (see
+     * verifyWrite()) before it replaces the database file
+     */
+    private void write(boolean verify) throws IOException, GeneralSecurityException {
+        // Take a copy of the segments to write and the accounts in any
+        // dirty segments so the accounts can be changed while we're writing
+        List<Segment> segmentsToWrite = new ArrayList<Segment>();
+        List<Integer> modCounts = new ArrayList<Integer>();
+        List<List<AccountInformation>> dirtyAccounts = new ArrayList<List<AccountInformation>>();
+        List<Segment> writtenSegments = new ArrayList<Segment>();
+        CipherSuite suite = CipherSuite.getForWriting();
+        boolean newKey;
+        SecretKey secretKey;
+        RecordCipher cipher;
+        RecordCipher accountFieldCipher;
+        byte[] salt;
+        KeyDerivation keyDerivation;
+        synchronized (this) {
+            // Never write out a database that's missing accounts
+            awaitSegments();
+            if (segmentProblem != null) {
+                throw new IOException("Problem reading the database", segmentProblem);
+            }
+
+            // A new database, a new password, a database in an older format
+            // or one sealed with a suite we don't write any more gets a new
+            // key, and every segment is re-encrypted with it
+            newKey = segmentCipher == null
+                    || segmentCipher.getCipherSuite().getId() != suite.getId();
+            secretKey = encryptionService.getSecretKey();
+            cipher = segmentCipher;
+            accountFieldCipher = fieldCipher;
+            salt = segmentSalt;
+            keyDerivation = segmentKeyDerivation;
+
+            for (Segment segment : segments) {
+                if (segment.getAccountNames().isEmpty()) {
+                    continue;
+                }
+                segmentsToWrite.add(segment);
+                modCounts.add(segment.getModCount());
+                Segment writtenSegment = new Segment(segment.getId());
+                writtenSegment.getAccountNames().addAll(segment.getAccountNames());
+                writtenSegments.add(writtenSegment);
+                List<AccountInformation> segmentAccounts = null;
+                if (segment.isDirty() || newKey) {
+                    segmentAccounts = new ArrayList<AccountInformation>();
+                    for (String accountName : segment.getAccountNames()) {
+                        segmentAccounts.add(accounts.get(accountName));
+                    }
+                }
+                dirtyAccounts.add(segmentAccounts);
+            }
+        }
+
+        // The new key is only used by the rest of the database once the
+        // file written with it has replaced the database file
+        if (newKey) {
+            salt = new byte[RecordCipher.SALT_LENGTH];
+            RandomSource.nextBytes(salt);
+            keyDerivation = getCalibratedKeyDerivation();
+            cipher = new RecordCipher(secretKey, salt, keyDerivation, suite);
+            accountFieldCipher = cipher.deriveCipher(FIELD_CIPHER_SALT);
+        }
+        byte[] header = getSegmentHeader(salt, keyDerivation, cipher.getCipherSuite().getId());
+
+        // Encrypt the dirty segments
+        for (int i = 0; i < segmentsToWrite.size(); i++) {
+            Segment segment = segmentsToWrite.get(i);
+            Segment writtenSegment = writtenSegments.get(i);
+            if (dirtyAccounts.get(i) != null) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                FlatPackOutputStream os = new FlatPackOutputStream(baos);
+                for (AccountInformation ai : dirtyAccounts.get(i)) {
+                    ai.seal(accountFieldCipher);
+                    os.writeRecord(RecordType.SEALED_ACCOUNT, ai.getSealedRecord());
+                }
+                os.close();
+                writtenSegment.setSealed(cipher.seal(baos.toByteArray(), getSegmentAssociatedData(header, segment.getId())));
+            } else {
+                writtenSegment.setSealed(segment.getSealed());
+            }
+        }
+
+        // Each time the database is written it gets a new snapshot id so
+        // that any existing journal no longer applies to it
+        byte[] newSnapshotId = new byte[SNAPSHOT_ID_LENGTH];
+        RandomSource.nextBytes(newSnapshotId);
+
+        // Flatpack and encrypt the directory
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        FlatPackOutputStream os = new FlatPackOutputStream(baos);
+        os.writeRecord(RecordType.SNAPSHOT_ID, newSnapshotId);
+        os.writeRecord(RecordType.REVISION, revision);
+        os.writeRecord(RecordType.OPTIONS, dbOptions);
+        for (Segment writtenSegment : writtenSegments) {
+            os.writeRecord(RecordType.SEGMENT, writtenSegment);
+        }
+        os.close();
+        byte[] sealedDirectory = cipher.seal(baos.toByteArray(), header);
+
+        // Write the header, directory and segments out to a temporary file
+        // beside the database file (so it can be renamed over it) and make
+        // sure it's on the disk before going any further
+        File tempFile = File.createTempFile("upmdb", null, databaseFile.getAbsoluteFile().getParentFile());
+        boolean replaced = false;
+        try {
+            FileOutputStream fileOS = new FileOutputStream(tempFile);
+            DataOutputStream fos = new DataOutputStream(new BufferedOutputStream(fileOS));
+            try {
+                fos.write(header);
+                fos.write(cipher.getKeyCheck(header));
+                fos.writeInt(sealedDirectory.length);
+                fos.write(sealedDirectory);
+                for (Segment writtenSegment : writtenSegments) {
+                    fos.write(writtenSegment.getSealed());
+                }
+                fos.flush();
+                fileOS.getFD().sync();
+            } finally {
+                fos.close();
+            }
+
+            if (verify) {
+                verifyWrite(tempFile, cipher, header, writtenSegments);
+            }
+
+            // Rename the tempfile to the real database file
+            // The reason for this is to protect against the write thread being
+            // terminated thus corrupting the file. The rename replaces the
+            // file in one step so there's always a complete database file.
+            if (!tempFile.renameTo(databaseFile)) {
+                throw new IOException("Couldn't replace " + databaseFile + " with " + tempFile);
+            }
+            replaced = true;
+        } finally {
+            if (!replaced) {
+                tempFile.delete();
+            }
+        }
+
+        // Keep the encrypted segments for next time unless they've been
+        // changed in the meantime
+        synchronized (this) {
+            for (int i = 0; i < segmentsToWrite.size(); i++) {
+                Segment segment = segmentsToWrite.get(i);
+                if (segment.getModCount() == modCounts.get(i)) {
+                    segment.setSealed(writtenSegments.get(i).getSealed());
+                }
+            }
+            Iterator<Segment> it = segments.iterator();
+            while (it.hasNext()) {
+                if (it.next().getAccountNames().isEmpty()) {
+                    it.remove();
+                }
+            }
+
+            if (newKey) {
+                segmentCipher = cipher;
+                fieldCipher = accountFieldCipher;
+                segmentSalt = salt;
+                segmentKeyDerivation = keyDerivation;
+                // The journal's key is derived from the segment key
+                journal = null;
+            }
+            dbVersion = DB_VERSION;
+
+            // The database file now contains everything in the journal
+            snapshotId = newSnapshotId;
+        }
+        getJournal().delete();
+    }
+
+
+    public synchronized ArrayList<AccountInformation> getAccounts() {
+        awaitSegments();
         return new ArrayList<AccountInformation>(accounts.values());
     }
     
     
-    public ArrayList<String> getAccountNames() {
-        ArrayList<String> accountNames = new ArrayList<String>(accounts.keySet());
-        Collections.sort(accountNames, String.CASE_INSENSITIVE_ORDER);
-        return accountNames;
+    /**
+     * The account names are known as soon as the database is loaded so
+     * unlike getAccount() this never has to wait for a segment.
+     * @return The account names in display order. The list can't be
+     * modified and doesn't change when accounts are added or deleted; call
+     * this method again to get the latest names.
+     */
+    public synchronized List<String> getAccountNames() {
+        return getNameIndex().getNames();
+    }
+
+
+    /**
+     * Find the accounts whose names contain the given text, ignoring case
+     * and accents. This is quick enough to call on every keystroke.
+     *
+     * If the account details are indexed (see setAccountDetailsIndexed())
+     * accounts with the text in their userid, URL or notes are found too.
+     * A search can also be limited to one of those fields with a term like
+     * "user:jo@example.com", "url:example.com" or "notes:pin". If there
+     * are several terms an account has to match them all.
+     * @return The matching account names in display order
+     */
+    public synchronized List<String> findAccountNames(String searchString) {
+        StringBuilder text = new StringBuilder();
+        ArrayList<Integer> filterFields = new ArrayList<Integer>();
+        ArrayList<String> filterValues = new ArrayList<String>();
+        for (String term : searchString.trim().split("\\s+")) {
+            int field = getFilterField(term);
+            if (field < 0) {
+                if (text.length() > 0) {
+                    text.append(' ');
+                }
+                text.append(term);
+            } else if (term.length() > FIELD_FILTERS[field].length()) {
+                filterFields.add(field);
+                filterValues.add(term.substring(FIELD_FILTERS[field].length()));
+            }
+        }
+
+        if (filterFields.isEmpty() && !detailsIndexed) {
+            return getSearchIndex().find(searchString);
+        }
+
+        Set<String> found = null;
+        if (text.length() > 0) {
+            found = new HashSet<String>(getSearchIndex().find(text.toString()));
+            // Until the details index is ready only the names are searched
+            if (detailsIndexed && detailsIndex != null) {
+                found.addAll(detailsIndex.find(-1, text.toString()));
+            }
+        }
+        for (int i = 0; i < filterFields.size(); i++) {
+            Set<String> matches = getDetailsIndex().find(filterFields.get(i), filterValues.get(i));
+            if (found == null) {
+                found = matches;
+            } else {
+                found.retainAll(matches);
+            }
+        }
+
+        if (found == null) {
+            return getAccountNames();
+        }
+        return getNameIndex().sort(found);
+    }
+
+
+    /**
+     * @return The AccountDetailsIndex field the term is limited to or -1
+     * if it's not limited to a field
+     */
+    private static int getFilterField(String term) {
+        for (int i = 0; i < FIELD_FILTERS.length; i++) {
+            if (term.regionMatches(true, 0, FIELD_FILTERS[i], 0, FIELD_FILTERS[i].length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Set whether findAccountNames() searches the account details as well
+     * as the names. Indexing the details means decrypting and decoding every
+     * account so it's done on a background thread. That includes opening
+     * the sealed notes of every account, which is otherwise never done
+     * without the user asking to see them.
+     */
+    public synchronized void setAccountDetailsIndexed(boolean detailsIndexed) {
+        this.detailsIndexed = detailsIndexed;
+        if (detailsIndexed) {
+            indexAccountDetailsInBackground();
+        } else {
+            detailsIndex = null;
+            detailsIndexChanges = null;
+        }
+    }
+
+
+    public synchronized boolean isAccountDetailsIndexed() {
+        return detailsIndexed;
+    }
+
+
+    /**
+     * The indexes are built the first time they're needed and then kept up
+     * to date as accounts are added and deleted.
+     */
+    private AccountNameIndex getNameIndex() {
+        if (nameIndex == null) {
+            nameIndex = new AccountNameIndex(accountSegments.keySet());
+        }
+        return nameIndex;
+    }
+
+
+    private AccountSearchIndex getSearchIndex() {
+        if (searchIndex == null) {
+            searchIndex = new AccountSearchIndex(getNameIndex());
+        }
+        return searchIndex;
+    }
+
+
+    private AccountDetailsIndex getDetailsIndex() {
+        if (detailsIndex == null) {
+            awaitSegments();
+            detailsIndex = new AccountDetailsIndex(accounts.values());
+            // Any index being built in the background is now out of date
+            detailsIndexChanges = null;
+        }
+        return detailsIndex;
+    }
+
+
+    /**
+     * Build the details index on a background thread. The lock on the
+     * database is only held at the start and the end so the database can be
+     * used (and changed) while the index is being built. Any accounts
+     * changed in the meantime are re-indexed at the end.
+     */
+    private synchronized void indexAccountDetailsInBackground() {
+        if (detailsIndex != null || detailsIndexChanges != null) {
+            return;
+        }
+        final List<String> changes = new ArrayList<String>();
+        detailsIndexChanges = changes;
+
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                AccountDetailsIndex index = null;
+                try {
+                    index = new AccountDetailsIndex(getAccounts());
+                } catch (IllegalStateException e) {
+                    // An account couldn't be decoded. Leave the details
+                    // unindexed until a search with a field filter needs them.
+                }
+                synchronized (PasswordDatabase.this) {
+                    // Give up if the index was dropped or built some other
+                    // way while this one was being built
+                    if (detailsIndexChanges != changes) {
+                        return;
+                    }
+                    detailsIndexChanges = null;
+                    if (index == null) {
+                        return;
+                    }
+                    for (String accountName : changes) {
+                        index.remove(accountName);
+                        AccountInformation ai = accounts.get(accountName);
+                        if (ai != null) {
+                            index.add(ai);
+                        }
+                    }
+                    detailsIndex = index;
+                }
+            }
+        }, "Account details index");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Build the search index on a background thread so the first search
+     * after the database is opened doesn't have to wait for it.
+     */
+    private void indexAccountsInBackground() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                synchronized (PasswordDatabase.this) {
+                    getSearchIndex();
+                }
+            }
+        }, "Account index");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
     }
 
 
@@ -298,8 +1588,9 @@ public class PasswordDatabase {
      * one and then repoint this PassswordDatabase at the main db file.  
      * @param file
      */
-    public void setDatabaseFile(File file) {
+    public synchronized void setDatabaseFile(File file) {
         databaseFile = file;
+        journal = null;
     }
 
 
@@ -351,6 +1642,14 @@ public class PasswordDatabase {
         return isPasswordDatabase;
     }
 
+    /**
+     * @return The format version of the database file. Databases from
+     * before the version was stored in the file (1.0.0 and 1.1.0) return 1.
+     */
+    public int getDbVersion() {
+        return dbVersion;
+    }
+
     public EncryptionService getEncryptionService () {
         return encryptionService;
     }
@@ -44,7 +44,7 @@ public class Revision extends FlatPackObject {
 
     
     public void flatPack(OutputStream os) throws IOException {
-        os.write(flatPack(String.valueOf(revision)));
+        putString(os, String.valueOf(revision));
     }
 
     
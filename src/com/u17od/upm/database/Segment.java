@@ -0,0 +1,158 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.FutureTask;
+
+import com.u17od.upm.crypto.RecordCipher;
+
+
+/**
+ * A group of accounts that's encrypted and authenticated independently of
+ * the rest of the database (see PasswordDatabase). The directory entry for
+ * a segment (its id, encrypted length, nonce and the names of the accounts
+ * in it) is flatpacked into the database directory. Because the nonce is different every time a segment
+ * is encrypted, and the directory is itself authenticated, an older copy of
+ * a segment can't be swapped in for the current one.
+ *
+ * While the database is open a segment keeps its encrypted bytes from the
+ * last time it was read or written. When an account in the segment changes
+ * these are dropped (the segment is "dirty") so only dirty segments have to
+ * be re-encrypted when the database is saved.
+ */
+class Segment extends FlatPackObject {
+
+    private int id;
+    private int length;
+    private byte[] nonce;
+
+    private Set<String> accountNames = new LinkedHashSet<String>();
+    private byte[] sealed;
+    private int modCount;
+    private FutureTask<List<AccountInformation>> loading;
+
+
+    Segment(int id) {
+        this.id = id;
+    }
+
+
+    Segment(FlatPackInputStream is) throws IOException, ProblemReadingDatabaseFile {
+        id = getInt(is);
+        length = getInt(is);
+        nonce = getBytes(is);
+        while (is.hasMoreFields()) {
+            accountNames.add(getString(is));
+        }
+    }
+
+
+    public void flatPack(OutputStream os) throws IOException {
+        putString(os, String.valueOf(id));
+        putString(os, String.valueOf(length));
+        putBytes(os, nonce);
+        for (String accountName : accountNames) {
+            putString(os, accountName);
+        }
+    }
+
+
+    int getId() {
+        return id;
+    }
+
+
+    int getLength() {
+        return length;
+    }
+
+
+    Set<String> getAccountNames() {
+        return accountNames;
+    }
+
+
+    boolean isDirty() {
+        return sealed == null;
+    }
+
+
+    void setDirty() {
+        sealed = null;
+        modCount++;
+    }
+
+
+    /**
+     * A count of the changes made to the segment. Used to tell if the
+     * segment was changed while it was being written.
+     */
+    int getModCount() {
+        return modCount;
+    }
+
+
+    /**
+     * @return The task decrypting the segment or null if the segment's
+     * accounts have been added to the database
+     */
+    FutureTask<List<AccountInformation>> getLoading() {
+        return loading;
+    }
+
+
+    void setLoading(FutureTask<List<AccountInformation>> loading) {
+        this.loading = loading;
+    }
+
+
+    byte[] getSealed() {
+        return sealed;
+    }
+
+
+    void setSealed(byte[] sealed) {
+        this.sealed = sealed;
+        this.length = sealed.length;
+        this.nonce = RecordCipher.getNonce(sealed);
+    }
+
+
+    /**
+     * Set the encrypted contents of the segment as read from the database
+     * file, checking they're the ones the directory says they should be.
+     * @throws ProblemReadingDatabaseFile if the nonce doesn't match the one
+     * in the directory
+     */
+    void readSealed(byte[] sealed) throws ProblemReadingDatabaseFile {
+        if (!Arrays.equals(nonce, RecordCipher.getNonce(sealed))) {
+            throw new ProblemReadingDatabaseFile("A segment of the database doesn't match the directory");
+        }
+        this.sealed = sealed;
+    }
+
+}
@@ -21,43 +21,61 @@
 package com.u17od.upm.transport;
 
 import com.u17od.upm.util.Base64;
-import com.u17od.upm.util.Util;
 
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-
-import javax.net.ssl.HostnameVerifier;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.Properties;
+
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManagerFactory;
 
 
+/**
+ * Talks to a UPM server over HTTP(S). Connections whose response has been
+ * read to the end are left open (rather than disconnected) so the next
+ * request to the same server, from this or any other HTTPTransport, can
+ * reuse them. The TLS set up is shared through TransportContext.
+ */
 public class HTTPTransport extends Transport {
 
     private static final String BOUNDRY = "==================================";
 
+    /**
+     * The most that's copied from the file to the connection in one go
+     */
+    private static final int TRANSFER_SIZE = 8192;
+
+    /**
+     * The size of the buffer downloads are copied to disk through
+     */
+    private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The file in tmpDir holding the validators (ETag and Last-Modified) of
+     * the last successful download from each URL
+     */
+    private static final String VALIDATORS_FILE_NAME = "http-validators.properties";
+    private static final String ETAG = ".etag";
+    private static final String LAST_MODIFIED = ".lastModified";
+
     private File certFile;
-    private SSLSocketFactory sslFactory;
     private String trustedHost;
     private File tmpDir;
+    private byte[] downloadBuffer;
+    private boolean remoteFileUnchanged;
 
 
     public HTTPTransport(File certFile, String trustedHost, File tmpDir) {
@@ -70,9 +88,16 @@ public class HTTPTransport extends Transport {
         put(targetLocation, file, null, null);
     }    
     
+    /**
+     * Upload the file as a multipart form. The file is streamed straight
+     * from the disk to the connection so however big it is only a small
+     * buffer of it is in memory at a time.
+     */
     public void put(String targetLocation, File file, String username, String password) throws TransportException {
 
         HttpURLConnection conn = null; 
+        FileInputStream fis = null;
+        boolean completed = false;
 
         try {
             targetLocation = addTrailingSlash(targetLocation) + "upload.php";
@@ -81,21 +106,30 @@ public class HTTPTransport extends Transport {
             String contentDisposition = "Content-Disposition: form-data; name=\"userfile\"; filename=\"" + file.getName() + "\"";
             String contentType = "Content-Type: application/octet-stream";
 
-            // This is the standard format for a multipart request
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            baos.write("--".getBytes());
-            baos.write(BOUNDRY.getBytes());
-            baos.write("\n".getBytes());
-            baos.write(contentDisposition.getBytes());
-            baos.write("\n".getBytes());
-            baos.write(contentType.getBytes());
-            baos.write("\n".getBytes());
-            baos.write("\n".getBytes());
-            baos.write(Util.getBytesFromFile(file));
-            baos.write("\n".getBytes());
-            baos.write("--".getBytes());
-            baos.write(BOUNDRY.getBytes());
-            baos.write("--".getBytes());
+            // This is the standard format for a multipart request. The
+            // file goes between the head and the tail.
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            head.write("--".getBytes());
+            head.write(BOUNDRY.getBytes());
+            head.write("\n".getBytes());
+            head.write(contentDisposition.getBytes());
+            head.write("\n".getBytes());
+            head.write(contentType.getBytes());
+            head.write("\n".getBytes());
+            head.write("\n".getBytes());
+            ByteArrayOutputStream tail = new ByteArrayOutputStream();
+            tail.write("\n".getBytes());
+            tail.write("--".getBytes());
+            tail.write(BOUNDRY.getBytes());
+            tail.write("--".getBytes());
+
+            fis = new FileInputStream(file);
+            FileChannel fileChannel = fis.getChannel();
+            long fileLength = fileChannel.size();
+            long contentLength = head.size() + fileLength + tail.size();
+            if (contentLength > Integer.MAX_VALUE) {
+                throw new TransportException(String.format("%s is too big to upload", file));
+            }
 
             // Make a connect to the server
             URL url = new URL(targetLocation);
@@ -111,12 +145,17 @@ public class HTTPTransport extends Transport {
             conn.setUseCaches(false);
             conn.setRequestMethod("POST");
             conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDRY);
+            // Without this the connection buffers the whole body to find
+            // out its length
+            conn.setFixedLengthStreamingMode((int) contentLength);
 
             // Send the body
-            DataOutputStream dataOS = new DataOutputStream(conn.getOutputStream());
-            baos.writeTo(dataOS);
-            dataOS.flush();
-            dataOS.close();
+            OutputStream os = conn.getOutputStream();
+            head.writeTo(os);
+            transfer(fileChannel, fileLength, Channels.newChannel(os));
+            tail.writeTo(os);
+            os.flush();
+            os.close();
 
             // Ensure we got the HTTP 200 response code
             int responseCode = conn.getResponseCode();
@@ -128,16 +167,26 @@ public class HTTPTransport extends Transport {
             InputStream is = conn.getInputStream();
             byte[] bytesReceived = readFromResponseStream(is);
             is.close();
+            completed = true;
             String response = new String(bytesReceived);
             
             if (!response.toString().equals("OK")) {
                 throw new TransportException(String.format("Received the response code %s from the URL %s", response, url));
             }
 
+        } catch (TransportException e) {
+            throw e;
         } catch (Exception e) {
             throw new TransportException(e);
         } finally {
-            if (conn != null) {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    // It was only being read so there's nothing to lose
+                }
+            }
+            if (conn != null && !completed) {
                 conn.disconnect();
             }
         }
@@ -145,31 +194,197 @@ public class HTTPTransport extends Transport {
     }
 
 
-    public byte[] get(String urlToGet) throws TransportException {
-        return get(urlToGet, null, null);
+    /**
+     * Replace the remote copy of the file with a single PUT to the file's
+     * URL, so the server never has no copy. If the expected revision
+     * (an ETag, see getRemoteRevision()) is given the PUT is conditional on
+     * it (If-Match) and the server refuses it (412) if the file has been
+     * changed since.
+     *
+     * Servers that turn the PUT down (501 or any 4xx other than 412 or 401,
+     * e.g. 405 or 403) get the file with delete() and put() instead. In that
+     * case the expected revision is checked with a HEAD request first,
+     * though someone could still change the file in between. Only a server
+     * that doesn't support PUT at all (405 or 501) isn't asked again; any
+     * other refusal (e.g. 403 or 404) could be down to this file or this
+     * moment, so the next upload tries the PUT again.
+     */
+    public void replace(String targetLocation, File file, String expectedRevision, String username, String password) throws TransportException {
+        targetLocation = addTrailingSlash(targetLocation);
+        String fileLocation = targetLocation + file.getName();
+
+        if (TransportContext.isReplaceSupported(targetLocation)) {
+            int responseCode = putFile(fileLocation, file, expectedRevision, username, password);
+            if (responseCode >= 200 && responseCode <= 299) {
+                return;
+            }
+            if (responseCode == 405 || responseCode == 501) {
+                TransportContext.setReplaceUnsupported(targetLocation);
+            }
+        }
+
+        checkRevision(fileLocation, expectedRevision, username, password);
+        delete(targetLocation, file.getName(), username, password);
+        put(targetLocation, file, username, password);
+        // We don't know the new file's validators
+        setValidators(loadValidators(), fileLocation, null, null);
     }
-    
-    
-    public byte[] get(String urlToGet, String username, String password) throws TransportException {
 
-        byte[] bytesReceived = null;
 
-        HttpURLConnection conn = null; 
+    /**
+     * PUT the file at the given URL, streaming it from the disk.
+     * @return The response code: 2xx if the file was put, otherwise the 4xx
+     * or 501 the server turned the PUT down with for any reason other than
+     * the file having changed (412) or the credentials (401)
+     */
+    private int putFile(String fileLocation, File file, String expectedRevision, String username, String password) throws TransportException {
+
+        HttpURLConnection conn = null;
+        FileInputStream fis = null;
+        boolean completed = false;
 
         try {
+            fis = new FileInputStream(file);
+            FileChannel fileChannel = fis.getChannel();
+            long fileLength = fileChannel.size();
+            if (fileLength > Integer.MAX_VALUE) {
+                throw new TransportException(String.format("%s is too big to upload", file));
+            }
+
             // Make a connect to the server
-            URL url = new URL(urlToGet);
+            URL url = new URL(fileLocation);
             conn = getConnection(url);
 
             // Put the authentication details in the request
-            if (username != null && !username.trim().equals("")) {
+            if (username != null) {
                 conn.setRequestProperty ("Authorization", createAuthenticationString(username, password));
             }
+            if (expectedRevision != null) {
+                conn.setRequestProperty("If-Match", expectedRevision);
+            }
 
-            conn.setDoOutput(false);
+            conn.setDoOutput(true);
             conn.setDoInput(true);
             conn.setUseCaches(false);
-            conn.setRequestMethod("GET");
+            conn.setRequestMethod("PUT");
+            conn.setRequestProperty("Content-Type", "application/octet-stream");
+            conn.setFixedLengthStreamingMode((int) fileLength);
+
+            // Send the body
+            OutputStream os = conn.getOutputStream();
+            transfer(fileChannel, fileLength, Channels.newChannel(os));
+            os.close();
+
+            int responseCode = conn.getResponseCode();
+            discardResponse(conn);
+            completed = true;
+            if (responseCode == 412) {
+                throw new StaleRevisionException(String.format("%s has been changed since it was downloaded", url));
+            } else if (responseCode == 401) {
+                throw new TransportException(String.format("Received the response code %d from the URL %s", responseCode, url));
+            } else if ((responseCode >= 400 && responseCode <= 499) || responseCode == 501) {
+                return responseCode;
+            } else if (responseCode < 200 || responseCode > 299) {
+                throw new TransportException(String.format("Received the response code %d from the URL %s", responseCode, url));
+            }
+
+            // If the server told us the new file's ETag the next download
+            // can be skipped if nobody else changes it
+            setValidators(loadValidators(), fileLocation, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+            return responseCode;
+
+        } catch (TransportException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new TransportException(e);
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    // It was only being read so there's nothing to lose
+                }
+            }
+            if (conn != null && !completed) {
+                conn.disconnect();
+            }
+        }
+
+    }
+
+
+    /**
+     * @throws StaleRevisionException if the server gives the file at the
+     * given URL an ETag other than the expected one. If there's no file
+     * (404) there's nothing to overwrite so that's not stale.
+     */
+    private void checkRevision(String fileLocation, String expectedRevision, String username, String password) throws TransportException {
+        if (expectedRevision == null) {
+            return;
+        }
+
+        HttpURLConnection conn = null;
+        boolean completed = false;
+
+        try {
+            URL url = new URL(fileLocation);
+            conn = getConnectionForGet(url, username, password);
+            conn.setRequestMethod("HEAD");
+
+            int responseCode = conn.getResponseCode();
+            String etag = conn.getHeaderField("ETag");
+            discardResponse(conn);
+            completed = true;
+            if (responseCode == 200 && etag != null && !etag.equals(expectedRevision)) {
+                throw new StaleRevisionException(String.format("%s has been changed since it was downloaded", url));
+            }
+
+        } catch (MalformedURLException e) {
+            throw new TransportException(e);
+        } catch (IOException e) {
+            throw new TransportException(e);
+        } finally {
+            if (conn != null && !completed) {
+                conn.disconnect();
+            }
+        }
+    }
+
+
+    /**
+     * Copy the given number of bytes from the start of the file to the
+     * target, TRANSFER_SIZE bytes at a time.
+     * @throws IOException if the file is shorter than expected (e.g. it
+     * was changed during the upload)
+     */
+    private void transfer(FileChannel fileChannel, long length, WritableByteChannel target) throws IOException {
+        long position = 0;
+        while (position < length) {
+            long transferred = fileChannel.transferTo(position, Math.min(TRANSFER_SIZE, length - position), target);
+            if (transferred <= 0) {
+                throw new IOException("The file being uploaded got shorter");
+            }
+            position += transferred;
+        }
+    }
+
+
+    public byte[] get(String urlToGet) throws TransportException {
+        return get(urlToGet, null, null);
+    }
+    
+    
+    public byte[] get(String urlToGet, String username, String password) throws TransportException {
+
+        byte[] bytesReceived = null;
+
+        HttpURLConnection conn = null; 
+        boolean completed = false;
+
+        try {
+            // Make a connect to the server
+            URL url = new URL(urlToGet);
+            conn = getConnectionForGet(url, username, password);
 
             // Ensure we get the either 200 or 404
             // 200 is OK
@@ -181,7 +396,11 @@ public class HTTPTransport extends Transport {
                 bytesReceived = readFromResponseStream(is);
                 is.close();
                 conn.getInputStream().close();
-            } else if (responseCode != 404) {
+                completed = true;
+            } else if (responseCode == 404) {
+                discardResponse(conn);
+                completed = true;
+            } else {
                 throw new TransportException(String.format("Received the response code %d from the URL %s", responseCode, url));
             }
 
@@ -190,7 +409,7 @@ public class HTTPTransport extends Transport {
         } catch (IOException e) {
             throw new TransportException(e);
         } finally {
-            if (conn != null) {
+            if (conn != null && !completed) {
                 conn.disconnect();
             }
         }
@@ -200,6 +419,22 @@ public class HTTPTransport extends Transport {
     }
 
     
+    private HttpURLConnection getConnectionForGet(URL url, String username, String password) throws TransportException, IOException {
+        HttpURLConnection conn = getConnection(url);
+
+        // Put the authentication details in the request
+        if (username != null && !username.trim().equals("")) {
+            conn.setRequestProperty ("Authorization", createAuthenticationString(username, password));
+        }
+
+        conn.setDoOutput(false);
+        conn.setDoInput(true);
+        conn.setUseCaches(false);
+        conn.setRequestMethod("GET");
+        return conn;
+    }
+
+    
     private HttpURLConnection getConnection(URL url) throws TransportException {
         HttpURLConnection conn;
         try {
@@ -211,57 +446,36 @@ public class HTTPTransport extends Transport {
 //            HttpURLConnection conn = (HttpURLConnection) url.openConnection(proxy);
 
             if(conn instanceof HttpsURLConnection) {
-                if (certFile.exists() && sslFactory == null) {
-                    buildSSLFactory();
-                }
+                SSLSocketFactory sslFactory = TransportContext.getSSLSocketFactory(certFile);
                 if (sslFactory != null) {
                     ((HttpsURLConnection) conn).setSSLSocketFactory(sslFactory);
                     // If we've been provided with a hostname we should always
                     // trust then add a HostnameVerifier for that hostname
                     if (trustedHost != null) {
                         ((HttpsURLConnection) conn).setHostnameVerifier(
-                                new HostnameVerifier() {
-                                    @Override
-                                    public boolean verify(String hostname, SSLSession session) {
-                                        return hostname.equals(trustedHost);
-                                    }
-                                }
-                        );
+                                TransportContext.getHostnameVerifier(trustedHost));
                     }
                 }
             }
         } catch (IOException e) {
             throw new TransportException(e);
-        } catch (KeyManagementException e) {
-            throw new TransportException(e);
-        } catch (CertificateException e) {
-            throw new TransportException(e);
-        } catch (KeyStoreException e) {
-            throw new TransportException(e);
-        } catch (NoSuchAlgorithmException e) {
+        } catch (GeneralSecurityException e) {
             throw new TransportException(e);
         }
 
         return conn;
     }
 
-    private void buildSSLFactory() throws CertificateException, KeyStoreException, NoSuchAlgorithmException, IOException, KeyManagementException {
-        FileInputStream fileStream = new FileInputStream(certFile);
-
-        CertificateFactory certFactory  = CertificateFactory.getInstance("X.509");
-        Certificate cert = certFactory.generateCertificate(fileStream);
-            
-        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-        keyStore.load(null);
-        keyStore.setCertificateEntry("cert0", cert);
-            
-        TrustManagerFactory trustManager = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        trustManager.init(keyStore);
-            
-        SSLContext context = SSLContext.getInstance("TLS");
-        context.init(null, trustManager.getTrustManagers(), null);
-
-        sslFactory = context.getSocketFactory();
+    /**
+     * Read the rest of a response we don't want and close it so the
+     * connection can be reused.
+     */
+    private void discardResponse(HttpURLConnection conn) throws IOException {
+        InputStream is = conn.getResponseCode() >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        if (is != null) {
+            readFromResponseStream(is);
+            is.close();
+        }
     }
 
     private byte[] readFromResponseStream(InputStream is) throws IOException {
@@ -283,31 +497,224 @@ public class HTTPTransport extends Transport {
 
 
     public File getRemoteFile(String remoteLocation, String fileName, String httpUsername, String httpPassword) throws TransportException {
+        return getRemoteFile(remoteLocation, fileName, httpUsername, httpPassword, null);
+    }
+
+
+    public File getRemoteFile(String remoteLocation, String fileName, String httpUsername, String httpPassword, ProgressListener listener) throws TransportException {
         remoteLocation = addTrailingSlash(remoteLocation);
-        return getRemoteFile(remoteLocation + fileName, httpUsername, httpPassword);
+        return getRemoteFile(remoteLocation + fileName, httpUsername, httpPassword, listener);
     }
 
 
     public File getRemoteFile(String remoteLocation, String httpUsername, String httpPassword) throws TransportException {
+        return getRemoteFile(remoteLocation, httpUsername, httpPassword, (ProgressListener) null);
+    }
+
+
+    /**
+     * Download the file at the given URL to a temporary file. The response
+     * is copied straight to the file through a buffer so the whole file is
+     * never in memory. If the server sent a Content-Length the download
+     * has to be that long.
+     * @param listener Told how much has been downloaded as it goes, can be
+     * null
+     * @return The downloaded file or null if there's no file at the URL
+     */
+    public File getRemoteFile(String remoteLocation, String httpUsername, String httpPassword, ProgressListener listener) throws TransportException {
+        return download(remoteLocation, httpUsername, httpPassword, listener, false);
+    }
+
+
+    /**
+     * The same as getRemoteFile() except that the request is conditional on
+     * the file having changed since it was last downloaded from the URL. If
+     * the server says it hasn't (304 Not Modified) nothing is downloaded,
+     * null is returned and isRemoteFileUnchanged() returns true.
+     */
+    public File getRemoteFileIfModified(String remoteLocation, String fileName, String httpUsername, String httpPassword, ProgressListener listener) throws TransportException {
+        remoteLocation = addTrailingSlash(remoteLocation);
+        return download(remoteLocation + fileName, httpUsername, httpPassword, listener, true);
+    }
+
+
+    /**
+     * @return true if the last call to getRemoteFileIfModified() found the
+     * file hadn't changed since it was last downloaded
+     */
+    public boolean isRemoteFileUnchanged() {
+        return remoteFileUnchanged;
+    }
+
+
+    private File download(String remoteLocation, String httpUsername, String httpPassword, ProgressListener listener, boolean conditional) throws TransportException {
+
+        HttpURLConnection conn = null;
+        File downloadedFile = null;
+        boolean downloaded = false;
+        boolean completed = false;
+        remoteFileUnchanged = false;
+
         try {
-            File downloadedFile = null;
-            byte[] remoteFile = get(remoteLocation, httpUsername, httpPassword);
-            if (remoteFile != null) {
-                downloadedFile = File.createTempFile("upm", null, tmpDir);
+            // Make a connect to the server
+            URL url = new URL(remoteLocation);
+            conn = getConnectionForGet(url, httpUsername, httpPassword);
+
+            // Ask the server to only send the file if it's changed since
+            // the last time we downloaded it
+            Properties validators = loadValidators();
+            if (conditional) {
+                String etag = validators.getProperty(remoteLocation + ETAG);
+                if (etag != null) {
+                    conn.setRequestProperty("If-None-Match", etag);
+                }
+                String lastModified = validators.getProperty(remoteLocation + LAST_MODIFIED);
+                if (lastModified != null) {
+                    conn.setRequestProperty("If-Modified-Since", lastModified);
+                }
+            }
+
+            // 404 means file doesn't exist. This is a valid result so we just return null
+            int responseCode = conn.getResponseCode();
+            if (responseCode == 304 && conditional) {
+                discardResponse(conn);
+                completed = true;
+                remoteFileUnchanged = true;
+                return null;
+            } else if (responseCode == 404) {
+                discardResponse(conn);
+                completed = true;
+                setValidators(validators, remoteLocation, null, null);
+                return null;
+            } else if (responseCode != 200) {
+                throw new TransportException(String.format("Received the response code %d from the URL %s", responseCode, url));
+            }
+
+            long contentLength = conn.getContentLength();
+            downloadedFile = File.createTempFile("upm", null, tmpDir);
+            InputStream is = conn.getInputStream();
+            try {
                 FileOutputStream fos = new FileOutputStream(downloadedFile);
-                fos.write(remoteFile);
-                fos.close();
+                try {
+                    long bytesReceived = copy(is, fos, contentLength, listener);
+                    if (contentLength >= 0 && bytesReceived != contentLength) {
+                        throw new TransportException(String.format("Received %d of the %d bytes from the URL %s", bytesReceived, contentLength, url));
+                    }
+                    completed = true;
+                } finally {
+                    fos.close();
+                }
+            } finally {
+                is.close();
             }
+            downloaded = true;
+            setValidators(validators, remoteLocation, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
             return downloadedFile;
+
+        } catch (MalformedURLException e) {
+            throw new TransportException(e);
         } catch (IOException e) {
             throw new TransportException(e);
+        } finally {
+            if (!downloaded && downloadedFile != null) {
+                downloadedFile.delete();
+            }
+            if (conn != null && !completed) {
+                conn.disconnect();
+            }
+        }
+    }
+
+
+    /**
+     * @return The revision of the file to pass to replace(): its ETag when
+     * it was last downloaded. null if that isn't known or is a weak ETag
+     * (which a server can't use for If-Match).
+     */
+    public String getRemoteRevision(String remoteLocation, String fileName) {
+        String etag = loadValidators().getProperty(addTrailingSlash(remoteLocation) + fileName + ETAG);
+        if (etag == null || etag.startsWith("W/")) {
+            return null;
+        }
+        return etag;
+    }
+
+
+    private Properties loadValidators() {
+        Properties validators = new Properties();
+        File validatorsFile = new File(tmpDir, VALIDATORS_FILE_NAME);
+        if (validatorsFile.exists()) {
+            try {
+                FileInputStream fis = new FileInputStream(validatorsFile);
+                try {
+                    validators.load(fis);
+                } finally {
+                    fis.close();
+                }
+            } catch (IOException e) {
+                // Without the validators the next download just isn't
+                // conditional
+                validators.clear();
+            }
+        }
+        return validators;
+    }
+
+
+    /**
+     * Remember the given validators for the URL (or forget them if they're
+     * null) and save them if they've changed.
+     */
+    private void setValidators(Properties validators, String remoteLocation, String etag, String lastModified) {
+        boolean changed = setProperty(validators, remoteLocation + ETAG, etag);
+        changed |= setProperty(validators, remoteLocation + LAST_MODIFIED, lastModified);
+        if (!changed) {
+            return;
+        }
+        try {
+            FileOutputStream fos = new FileOutputStream(new File(tmpDir, VALIDATORS_FILE_NAME));
+            try {
+                validators.store(fos, null);
+            } finally {
+                fos.close();
+            }
+        } catch (IOException e) {
+            // The validators we already had are for an older version of the
+            // file so the server won't match them; the next download just
+            // won't be skipped
+        }
+    }
+
+
+    private boolean setProperty(Properties properties, String key, String value) {
+        if (value == null) {
+            return properties.remove(key) != null;
+        }
+        return !value.equals(properties.setProperty(key, value));
+    }
+
+
+    private long copy(InputStream is, OutputStream os, long length, ProgressListener listener) throws IOException {
+        if (downloadBuffer == null) {
+            downloadBuffer = new byte[DOWNLOAD_BUFFER_SIZE];
+        }
+        long bytesCopied = 0;
+        int bytesRead;
+        while ((bytesRead = is.read(downloadBuffer)) != -1) {
+            os.write(downloadBuffer, 0, bytesRead);
+            bytesCopied += bytesRead;
+            if (listener != null) {
+                listener.onProgress(bytesCopied, length);
+            }
         }
+        return bytesCopied;
     }
 
 
     public void delete(String sharedDbURL, String fileToDelete, String username, String password) throws TransportException {
 
         HttpURLConnection conn = null;
+        boolean completed = false;
         String targetURL = addTrailingSlash(sharedDbURL) + "deletefile.php";
 
         String requestBody = String.format("fileToDelete=%s&Delete=Submit+Query", fileToDelete);
@@ -348,6 +755,7 @@ public class HTTPTransport extends Transport {
             InputStream is = conn.getInputStream();
             byte[] bytesReceived = readFromResponseStream(is);
             is.close();
+            completed = true;
             String response = new String(bytesReceived);
 
             // If we don't get OK or FILE_DOESNT_EXIST then thrown an error
@@ -358,7 +766,7 @@ public class HTTPTransport extends Transport {
         } catch (Exception e) {
             throw new TransportException(e);
         } finally {
-            if (conn != null) {
+            if (conn != null && !completed) {
                 conn.disconnect();
             }
         }
@@ -0,0 +1,37 @@
+/*
+ * Universal Password Manager
+ * Copyright (c) 2010-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.transport;
+
+
+/**
+ * Told how a transfer is going as it goes, e.g. to update a progress bar.
+ * It's called on the thread doing the transfer.
+ */
+public interface ProgressListener {
+
+    /**
+     * @param bytesTransferred The number of bytes transferred so far
+     * @param totalBytes The number of bytes there are to transfer or -1 if
+     * that isn't known
+     */
+    public void onProgress(long bytesTransferred, long totalBytes);
+
+}
@@ -33,6 +33,17 @@ public abstract class Transport {
     
     public abstract void put(String targetLocation, File file) throws TransportException;
 
+    /**
+     * Replace the remote copy of the file in a single operation so there's
+     * never a time when the remote location has no copy.
+     * @param expectedRevision The revision of the remote file being replaced
+     * (as returned by the transport when it was downloaded) or null to
+     * replace whatever is there
+     * @throws StaleRevisionException if the remote file is no longer at the
+     * expected revision. Nothing is uploaded.
+     */
+    public abstract void replace(String targetLocation, File file, String expectedRevision, String username, String password) throws TransportException;
+
     public abstract byte[] get(String url) throws TransportException;
 
     public abstract byte[] get(String url, String username, String password) throws TransportException;
@@ -41,6 +52,8 @@ public abstract class Transport {
 
     public abstract File getRemoteFile(String remoteLocation, String username, String password) throws TransportException;
 
+    public abstract File getRemoteFile(String remoteLocation, String username, String password, ProgressListener listener) throws TransportException;
+
     public static boolean isASupportedProtocol(String protocol) {
         boolean supported = false;
         if (protocol.equals("http")) {
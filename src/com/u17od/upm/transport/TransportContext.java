@@ -0,0 +1,151 @@
+/*
+ * Universal Password Manager
+ * Copyright (c) 2010-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.transport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+
+/**
+ * The TLS set up shared by every HTTPTransport in the process. Building the
+ * SSLSocketFactory for the imported certificate means parsing it and
+ * creating a KeyStore and SSLContext, so it's only done again when the
+ * certificate file changes. Sharing the factory also shares its TLS session
+ * cache, so a new connection to the same server can resume the session
+ * rather than doing a full handshake.
+ *
+ * HttpURLConnection only reuses a pooled connection for a request with the
+ * same SSLSocketFactory and HostnameVerifier, so the verifier for the
+ * trusted hostname is shared in the same way.
+ *
+ * It also remembers which servers don't support a single request upload
+ * (see HTTPTransport.replace()) so they aren't asked again.
+ */
+class TransportContext {
+
+    private static final int SESSION_CACHE_SIZE = 8;
+
+    /**
+     * How long a TLS session can be resumed for in seconds
+     */
+    private static final int SESSION_TIMEOUT = 60 * 60;
+
+    private static File certFile;
+    private static long certLastModified;
+    private static long certLength;
+    private static SSLSocketFactory sslFactory;
+
+    private static String trustedHost;
+    private static HostnameVerifier hostnameVerifier;
+
+    private static Set<String> replaceUnsupported = new HashSet<String>();
+
+
+    /**
+     * @return A factory that trusts the certificate in the given file or null
+     * if there's no such file (in which case the system's trusted
+     * certificates are used)
+     */
+    static synchronized SSLSocketFactory getSSLSocketFactory(File file) throws GeneralSecurityException, IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        if (sslFactory == null || !file.equals(certFile)
+                || file.lastModified() != certLastModified || file.length() != certLength) {
+            long lastModified = file.lastModified();
+            long length = file.length();
+            sslFactory = buildSSLFactory(file);
+            certFile = file;
+            certLastModified = lastModified;
+            certLength = length;
+        }
+        return sslFactory;
+    }
+
+
+    static synchronized HostnameVerifier getHostnameVerifier(final String host) {
+        if (hostnameVerifier == null || !host.equals(trustedHost)) {
+            hostnameVerifier = new HostnameVerifier() {
+                @Override
+                public boolean verify(String hostname, SSLSession session) {
+                    return hostname.equals(host);
+                }
+            };
+            trustedHost = host;
+        }
+        return hostnameVerifier;
+    }
+
+
+    static synchronized boolean isReplaceSupported(String location) {
+        return !replaceUnsupported.contains(location);
+    }
+
+
+    static synchronized void setReplaceUnsupported(String location) {
+        replaceUnsupported.add(location);
+    }
+
+
+    private static SSLSocketFactory buildSSLFactory(File file) throws GeneralSecurityException, IOException {
+        Certificate cert;
+        FileInputStream fileStream = new FileInputStream(file);
+        try {
+            CertificateFactory certFactory  = CertificateFactory.getInstance("X.509");
+            cert = certFactory.generateCertificate(fileStream);
+        } finally {
+            fileStream.close();
+        }
+
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null);
+        keyStore.setCertificateEntry("cert0", cert);
+
+        TrustManagerFactory trustManager = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManager.init(keyStore);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManager.getTrustManagers(), null);
+
+        SSLSessionContext sessions = context.getClientSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT);
+        }
+
+        return context.getSocketFactory();
+    }
+
+}
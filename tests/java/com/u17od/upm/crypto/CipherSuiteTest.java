@@ -0,0 +1,44 @@
+/*
+ * Universal Password Manager
+ * Copyright (c) 2010-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.crypto;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+
+public class CipherSuiteTest {
+
+    @Test
+    public void writesWithAesGcm() throws Exception {
+        assertEquals(CipherSuite.AES_GCM, CipherSuite.getForWriting().getId());
+    }
+
+
+    @Test
+    public void readingDoesNotBenchmark() throws Exception {
+        // Nothing writes with ChaCha20-Poly1305 so it's never benchmarked
+        CipherSuite suite = CipherSuite.getInstance(CipherSuite.CHACHA20_POLY1305);
+        assertEquals(CipherSuite.CHACHA20_POLY1305, suite.getId());
+        assertEquals(0, suite.getBenchmarkNanos());
+    }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Universal Password Manager
+ * Copyright (c) 2010-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Security;
+import java.util.Arrays;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.u17od.upm.database.AccountInformation;
+import com.u17od.upm.database.PasswordDatabase;
+
+
+/**
+ * Keys kept in the KeyCache and the passwords they're handed out for
+ */
+public class KeyCacheTest {
+
+    private static final byte[] SALT = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+    private static final char[] PASSWORD = "right password".toCharArray();
+    private static final char[] WRONG_PASSWORD = "wrong password".toCharArray();
+
+    private CountingKeyDerivation keyDerivation = new CountingKeyDerivation();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    @BeforeClass
+    public static void addProvider() {
+        // Android has it built in
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+
+    @After
+    public void clearKeyCache() {
+        KeyCache.clear();
+    }
+
+
+    @Test
+    public void keyIsOnlyDerivedOnce() throws Exception {
+        byte[] key = KeyCache.deriveKey(keyDerivation, PASSWORD, SALT, 32);
+        assertArrayEquals(key, KeyCache.deriveKey(keyDerivation, PASSWORD, SALT, 32));
+        assertEquals(1, keyDerivation.count);
+    }
+
+
+    @Test
+    public void keyIsNotHandedOutForAnotherPassword() throws Exception {
+        byte[] key = KeyCache.deriveKey(keyDerivation, PASSWORD, SALT, 32);
+        assertFalse(Arrays.equals(key, KeyCache.deriveKey(keyDerivation, WRONG_PASSWORD, SALT, 32)));
+        assertEquals(2, keyDerivation.count);
+    }
+
+
+    @Test
+    public void checkingAWrongPasswordKeepsTheRightKey() throws Exception {
+        byte[] key = KeyCache.deriveKey(keyDerivation, PASSWORD, SALT, 32);
+        KeyCache.deriveKey(keyDerivation, WRONG_PASSWORD, SALT, 32, false);
+        assertArrayEquals(key, KeyCache.deriveKey(keyDerivation, PASSWORD, SALT, 32));
+        assertEquals(2, keyDerivation.count);
+    }
+
+
+    @Test
+    public void keyDerivedForACheckIsNotKept() throws Exception {
+        KeyCache.deriveKey(keyDerivation, PASSWORD, SALT, 32, false);
+        KeyCache.deriveKey(keyDerivation, PASSWORD, SALT, 32);
+        assertEquals(2, keyDerivation.count);
+    }
+
+
+    @Test
+    public void openingADatabaseWithAWrongPasswordKeepsTheRightKey() throws Exception {
+        File dbFile = createDatabase();
+        assertWrongPasswordRejected(dbFile);
+
+        // The key saved with is still there and the wrong one wasn't kept
+        CountingKeyDerivation databaseKeyDerivation = readKeyDerivation(dbFile);
+        byte[] salt = readSalt(dbFile);
+        KeyCache.deriveKey(databaseKeyDerivation, PASSWORD, salt, 32, false);
+        assertEquals(0, databaseKeyDerivation.count);
+        KeyCache.deriveKey(databaseKeyDerivation, WRONG_PASSWORD, salt, 32, false);
+        assertEquals(1, databaseKeyDerivation.count);
+    }
+
+
+    @Test
+    public void keyIsOnlyKeptOnceThePasswordIsChecked() throws Exception {
+        File dbFile = createDatabase();
+        KeyCache.clear();
+        CountingKeyDerivation databaseKeyDerivation = readKeyDerivation(dbFile);
+        byte[] salt = readSalt(dbFile);
+
+        assertWrongPasswordRejected(dbFile);
+        KeyCache.deriveKey(databaseKeyDerivation, WRONG_PASSWORD, salt, 32, false);
+        assertEquals(1, databaseKeyDerivation.count);
+
+        new PasswordDatabase(dbFile, PASSWORD);
+        KeyCache.deriveKey(databaseKeyDerivation, PASSWORD, salt, 32, false);
+        assertEquals(1, databaseKeyDerivation.count);
+    }
+
+
+    private File createDatabase() throws Exception {
+        File dbFile = new File(folder.getRoot(), "test.db");
+        PasswordDatabase db = new PasswordDatabase(dbFile, PASSWORD);
+        db.addAccount(new AccountInformation("a", "user", "password", "", ""));
+        db.save();
+        return dbFile;
+    }
+
+
+    private static void assertWrongPasswordRejected(File dbFile) throws Exception {
+        try {
+            new PasswordDatabase(dbFile, WRONG_PASSWORD);
+            fail("Opened the database with the wrong password");
+        } catch (InvalidPasswordException e) {
+            // expected
+        }
+    }
+
+
+    /**
+     * @return The salt from the header of a database (after "UPM" and the
+     * version)
+     */
+    private static byte[] readSalt(File dbFile) throws IOException {
+        DataInputStream is = new DataInputStream(new FileInputStream(dbFile));
+        try {
+            is.skipBytes(4);
+            byte[] salt = new byte[RecordCipher.SALT_LENGTH];
+            is.readFully(salt);
+            return salt;
+        } finally {
+            is.close();
+        }
+    }
+
+
+    /**
+     * @return A CountingKeyDerivation with the same id in the KeyCache as
+     * the database's key derivation
+     */
+    private static CountingKeyDerivation readKeyDerivation(File dbFile) throws IOException, GeneralSecurityException {
+        DataInputStream is = new DataInputStream(new FileInputStream(dbFile));
+        try {
+            is.skipBytes(4 + RecordCipher.SALT_LENGTH);
+            return new CountingKeyDerivation(KeyDerivation.read(is));
+        } finally {
+            is.close();
+        }
+    }
+
+
+    /**
+     * A key derivation that counts how many keys it's derived
+     */
+    private static class CountingKeyDerivation extends KeyDerivation {
+
+        private KeyDerivation keyDerivation;
+        private int count;
+
+        /**
+         * A cheap PBKDF2
+         */
+        CountingKeyDerivation() {
+            this(new Pbkdf2KeyDerivation(PBKDF2_HMAC_SHA256, 1000));
+        }
+
+        CountingKeyDerivation(KeyDerivation keyDerivation) {
+            this.keyDerivation = keyDerivation;
+        }
+
+        @Override
+        public int getAlgorithm() {
+            return keyDerivation.getAlgorithm();
+        }
+
+        @Override
+        public byte[] deriveKey(char[] password, byte[] salt, int keyLength) throws GeneralSecurityException {
+            count++;
+            return keyDerivation.deriveKey(password, salt, keyLength);
+        }
+
+        @Override
+        protected void writeParameters(DataOutputStream os) throws IOException {
+            keyDerivation.writeParameters(os);
+        }
+
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Universal Password Manager
+ * Copyright (c) 2010-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+
+import org.junit.Test;
+
+
+/**
+ * The limits on the key derivation parameters read from a database header
+ * and stopping a key derivation part way through
+ */
+public class KeyDerivationTest {
+
+    @Test
+    public void readsTheMostCalibrateWouldChoose() throws Exception {
+        // 128 * 8 * 2^13 bytes is the 8MB calibrate() allows
+        KeyDerivation scrypt = read(new ScryptKeyDerivation(1 << 13, 8, ScryptKeyDerivation.MAX_PARALLELISM));
+        assertEquals(1 << 13, ((ScryptKeyDerivation) scrypt).getCost());
+
+        KeyDerivation pbkdf2 = read(new Pbkdf2KeyDerivation(KeyDerivation.PBKDF2_HMAC_SHA256, Pbkdf2KeyDerivation.MAX_ITERATIONS));
+        assertEquals(Pbkdf2KeyDerivation.MAX_ITERATIONS, ((Pbkdf2KeyDerivation) pbkdf2).getIterations());
+    }
+
+
+    @Test
+    public void rejectsScryptNeedingTooMuchMemory() throws Exception {
+        // 128 * 32 * 2^20 bytes is 4GB
+        assertRejected(new ScryptKeyDerivation(1 << 20, 32, 1));
+    }
+
+
+    @Test
+    public void rejectsScryptNeedingTooMuchWork() throws Exception {
+        assertRejected(new ScryptKeyDerivation(1 << 13, 8, 128));
+    }
+
+
+    @Test
+    public void rejectsTooManyPbkdf2Iterations() throws Exception {
+        assertRejected(new Pbkdf2KeyDerivation(KeyDerivation.PBKDF2_HMAC_SHA256, 100000000));
+    }
+
+
+    @Test(timeout = 10000)
+    public void interruptedDerivationStops() throws Exception {
+        // The most work calibrate() would choose and, for PBKDF2, far more
+        assertStopsWhenInterrupted(new Pbkdf2KeyDerivation(KeyDerivation.PBKDF2_HMAC_SHA256, Integer.MAX_VALUE));
+        assertStopsWhenInterrupted(new ScryptKeyDerivation(1 << 13, 8, ScryptKeyDerivation.MAX_PARALLELISM));
+    }
+
+
+    private static void assertStopsWhenInterrupted(KeyDerivation keyDerivation) {
+        Thread.currentThread().interrupt();
+        try {
+            keyDerivation.deriveKey("password".toCharArray(), new byte[16], 32);
+            fail(keyDerivation.getClass().getSimpleName() + " wasn't interrupted");
+        } catch (GeneralSecurityException e) {
+            // The thread is left interrupted
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+
+    private static KeyDerivation read(KeyDerivation keyDerivation) throws IOException, GeneralSecurityException {
+        return KeyDerivation.read(new DataInputStream(new ByteArrayInputStream(keyDerivation.getEncoded())));
+    }
+
+
+    private static void assertRejected(KeyDerivation keyDerivation) throws IOException, GeneralSecurityException {
+        try {
+            read(keyDerivation);
+            fail("Read " + keyDerivation.getClass().getSimpleName() + " with parameters that are too expensive");
+        } catch (InvalidAlgorithmParameterException e) {
+            // Expected
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Universal Password Manager
+ * Copyright (c) 2010-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.crypto;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+
+/**
+ * Times generating 12 byte nonces from RandomSource against the ways salts
+ * and nonces used to be generated. It isn't a unit test; run main() on the
+ * unit test classpath, e.g. from the IDE. Each line is the best of the
+ * rounds, so the first rounds warming up the JIT don't count.
+ *
+ * Arguments: [nonces] [rounds], 1000000 and 6 by default
+ */
+public class RandomSourceBenchmark {
+
+    private static final int NONCE_SIZE = 12;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+
+        // Creating a SecureRandom is slow so this one does fewer
+        double fresh = 0;
+        for (int round = 0; round < rounds; round++) {
+            fresh = Math.max(fresh, newSecureRandomEach(count / 20));
+        }
+        System.out.println(String.format("new SecureRandom per nonce:        %.0f/s", fresh));
+
+        double shared = 0;
+        for (int round = 0; round < rounds; round++) {
+            shared = Math.max(shared, oneSecureRandom(new SecureRandom(), count));
+        }
+        System.out.println(String.format("one default SecureRandom:          %.0f/s", shared));
+
+        double sha1 = 0;
+        for (int round = 0; round < rounds; round++) {
+            sha1 = Math.max(sha1, oneSecureRandom(SecureRandom.getInstance("SHA1PRNG"), count));
+        }
+        System.out.println(String.format("one SHA1PRNG:                      %.0f/s", sha1));
+
+        double pooled = 0;
+        for (int round = 0; round < rounds; round++) {
+            pooled = Math.max(pooled, randomSource(count));
+        }
+        System.out.println(String.format("RandomSource:                      %.0f/s", pooled));
+
+        // What each RecordCipher used to cost
+        double seeded = Double.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            seeded = Math.min(seeded, newSHA1PRNGEach(2000));
+        }
+        System.out.println(String.format("new SHA1PRNG and its first nonce:  %.1fus", seeded));
+    }
+
+
+    private static double newSecureRandomEach(int count) {
+        byte[] nonce = new byte[NONCE_SIZE];
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            new SecureRandom().nextBytes(nonce);
+        }
+        return count / ((System.nanoTime() - start) / 1e9);
+    }
+
+
+    private static double oneSecureRandom(SecureRandom random, int count) {
+        byte[] nonce = new byte[NONCE_SIZE];
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(nonce);
+        }
+        return count / ((System.nanoTime() - start) / 1e9);
+    }
+
+
+    private static double randomSource(int count) {
+        byte[] nonce = new byte[NONCE_SIZE];
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            RandomSource.nextBytes(nonce);
+        }
+        return count / ((System.nanoTime() - start) / 1e9);
+    }
+
+
+    /**
+     * @return The average microseconds for each
+     */
+    private static double newSHA1PRNGEach(int count) throws NoSuchAlgorithmException {
+        byte[] nonce = new byte[NONCE_SIZE];
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            SecureRandom.getInstance("SHA1PRNG").nextBytes(nonce);
+        }
+        return (System.nanoTime() - start) / 1e3 / count;
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * AccountDetailsIndex checked against scanning the details of every account
+ * after random changes
+ */
+public class AccountDetailsIndexTest {
+
+    /**
+     * Few enough characters that words often share a prefix and a search
+     * often matches, with separators both inside and between words
+     */
+    private static final String[] DETAIL_CHARS = {"a", "b", "e", "E", "\u00e9", "1", " ", ".", "@", "-"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    @BeforeClass
+    public static void addProvider() {
+        // Android has it built in
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+
+    @Test
+    public void randomChangesMatchABruteForceSearch() {
+        Random random = new Random(10);
+        for (int round = 0; round < 10; round++) {
+            Map<String, AccountInformation> expected = new HashMap<String, AccountInformation>();
+            for (int i = random.nextInt(30); i > 0; i--) {
+                AccountInformation ai = randomAccount(random);
+                expected.put(ai.getAccountName(), ai);
+            }
+            AccountDetailsIndex index = new AccountDetailsIndex(expected.values());
+
+            for (int step = 0; step < 300; step++) {
+                int change = random.nextInt(3);
+                if (change == 0 || expected.isEmpty()) {
+                    AccountInformation ai = randomAccount(random);
+                    index.add(ai);
+                    expected.put(ai.getAccountName(), ai);
+                } else if (change == 1) {
+                    // Change the details of an account that's there
+                    AccountInformation ai = randomAccount(random, pick(expected.keySet(), random));
+                    index.add(ai);
+                    expected.put(ai.getAccountName(), ai);
+                } else {
+                    // Usually remove an account that's there
+                    String accountName = random.nextBoolean() ? pick(expected.keySet(), random) : "missing";
+                    index.remove(accountName);
+                    expected.remove(accountName);
+                }
+
+                for (int field = -1; field < AccountDetailsIndex.NUM_FIELDS; field++) {
+                    String searchString = randomSearchString(expected, field, random);
+                    assertEquals(field + " " + searchString, found(expected, field, searchString), index.find(field, searchString));
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void textMatchesFromTheStartOfAWord() {
+        AccountDetailsIndex index = new AccountDetailsIndex(Arrays.asList(
+                new AccountInformation("Cam", "jo", "password", "cam.example.com", ""),
+                new AccountInformation("Example", "jo@example", "password", "example.com", "")));
+
+        assertEquals(names(), index.find(AccountDetailsIndex.URL, "am.example"));
+        assertEquals(names(), index.find(AccountDetailsIndex.URL, "ample.com"));
+        assertEquals(names("Cam"), index.find(AccountDetailsIndex.URL, "cam.ex"));
+        assertEquals(names("Cam", "Example"), index.find(AccountDetailsIndex.URL, "example.c"));
+        assertEquals(names("Cam"), index.find(AccountDetailsIndex.URL, ".example"));
+        assertEquals(names("Cam", "Example"), index.find(AccountDetailsIndex.URL, ".com"));
+
+        // Each word of the text is in a different account
+        assertEquals(names("Example"), index.find(AccountDetailsIndex.USER_ID, "jo@example"));
+        assertEquals(names("Example"), index.find(-1, "jo@example"));
+    }
+
+
+    @Test
+    public void caseAndAccentsAreFolded() {
+        AccountDetailsIndex index = new AccountDetailsIndex(Arrays.asList(
+                new AccountInformation("Caf\u00e9", "RENEE", "password", "", "Cr\u00e8me br\u00fbl\u00e9e"),
+                new AccountInformation("Cafe", "ren\u00e9e", "password", "", "CREME BRULEE")));
+
+        assertEquals(names("Caf\u00e9", "Cafe"), index.find(AccountDetailsIndex.USER_ID, "Ren\u00c9e"));
+        assertEquals(names("Caf\u00e9", "Cafe"), index.find(AccountDetailsIndex.NOTES, "creme BR\u00dbL"));
+        assertEquals(names(), index.find(AccountDetailsIndex.NOTES, "reme"));
+        assertEquals(names(), index.find(AccountDetailsIndex.URL, "creme"));
+    }
+
+
+    @Test
+    public void renamingAnAccountMovesItsDetails() throws Exception {
+        PasswordDatabase db = new PasswordDatabase(new File(folder.getRoot(), "test.db"), "secret".toCharArray());
+        db.addAccount(new AccountInformation("Bank", "alice", "password", "bank.example.com", ""));
+        db.addAccount(new AccountInformation("Mail", "alice@example.com", "password", "mail.example.com", "PIN 1234"));
+        assertEquals(Arrays.asList("Bank", "Mail"), db.findAccountNames("user:alice"));
+
+        // As AddEditAccount does it, changing the userid at the same time
+        db.deleteAccount("Mail");
+        db.addAccount(new AccountInformation("\u00c9mail", "bob@example.com", "password", "mail.example.com", "PIN 1234"));
+
+        assertEquals(Arrays.asList("Bank"), db.findAccountNames("user:alice"));
+        assertEquals(Arrays.asList("\u00c9mail"), db.findAccountNames("user:bob"));
+        assertEquals(Arrays.asList("\u00c9mail"), db.findAccountNames("url:mail.example notes:pin"));
+        assertEquals(Arrays.asList("\u00c9mail"), db.findAccountNames("email notes:1234"));
+
+        db.deleteAccount("\u00c9mail");
+
+        assertEquals(Collections.emptyList(), db.findAccountNames("user:bob"));
+        assertEquals(Arrays.asList("Bank"), db.findAccountNames("url:example"));
+    }
+
+
+    private static AccountInformation randomAccount(Random random) {
+        return randomAccount(random, "account " + random.nextInt(60));
+    }
+
+
+    private static AccountInformation randomAccount(Random random, String accountName) {
+        return new AccountInformation(accountName, randomDetail(random, 8), "password", randomDetail(random, 12), randomDetail(random, 20));
+    }
+
+
+    private static String randomDetail(Random random, int maxLength) {
+        StringBuilder detail = new StringBuilder();
+        for (int i = random.nextInt(maxLength + 1); i > 0; i--) {
+            detail.append(DETAIL_CHARS[random.nextInt(DETAIL_CHARS.length)]);
+        }
+        return detail.toString();
+    }
+
+
+    /**
+     * @return Usually part of one of the account's details, with its case
+     * changed, so the search matches something; otherwise random characters
+     */
+    private static String randomSearchString(Map<String, AccountInformation> accounts, int field, Random random) {
+        if (accounts.isEmpty() || random.nextInt(4) == 0) {
+            return randomDetail(random, 4);
+        }
+        AccountInformation ai = accounts.get(pick(accounts.keySet(), random));
+        String detail = getField(ai, field < 0 ? random.nextInt(AccountDetailsIndex.NUM_FIELDS) : field);
+        int start = random.nextInt(detail.length() + 1);
+        int end = start + random.nextInt(detail.length() - start + 1);
+        String searchString = detail.substring(start, end);
+        return random.nextBoolean() ? searchString.toUpperCase() : searchString;
+    }
+
+
+    /**
+     * @return The accounts with the search string in the field (or any
+     * field if it's -1) at the start of a word, ignoring case and accents
+     */
+    private static Set<String> found(Map<String, AccountInformation> accounts, int field, String searchString) {
+        String folded = AccountNameIndex.fold(searchString);
+        Pattern pattern = Pattern.compile("(?<![\\p{L}\\p{N}])" + Pattern.quote(folded));
+        Set<String> found = new HashSet<String>();
+        for (AccountInformation ai : accounts.values()) {
+            for (int i = 0; i < AccountDetailsIndex.NUM_FIELDS; i++) {
+                if (field >= 0 && field != i) {
+                    continue;
+                }
+                String foldedField = AccountNameIndex.fold(getField(ai, i));
+                if (pattern.matcher(foldedField).find() || (!startsWithWord(folded) && foldedField.contains(folded))) {
+                    found.add(ai.getAccountName());
+                }
+            }
+        }
+        return found;
+    }
+
+
+    private static boolean startsWithWord(String folded) {
+        return folded.length() > 0 && Pattern.compile("^[\\p{L}\\p{N}]").matcher(folded).find();
+    }
+
+
+    private static String getField(AccountInformation ai, int field) {
+        switch (field) {
+            case AccountDetailsIndex.USER_ID:
+                return ai.getUserId();
+            case AccountDetailsIndex.URL:
+                return ai.getUrl();
+            default:
+                return ai.getNotes();
+        }
+    }
+
+
+    private static String pick(Set<String> accountNames, Random random) {
+        return new ArrayList<String>(accountNames).get(random.nextInt(accountNames.size()));
+    }
+
+
+    private static Set<String> names(String... accountNames) {
+        return new HashSet<String>(Arrays.asList(accountNames));
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * AccountNameIndex checked against sorting and scanning all the names after
+ * random changes
+ */
+public class AccountNameIndexTest {
+
+    /**
+     * Few enough characters that names often share a folded form (e.g.
+     * "e", "E", "é" and "É") and a search often matches
+     */
+    private static final String[] NAME_CHARS = {"a", "b", "c", "A", "B", "e", "E", "\u00e9", "\u00c9", " ", "-"};
+
+    private static final Comparator<String> DISPLAY_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            int c = AccountNameIndex.fold(a).compareTo(AccountNameIndex.fold(b));
+            if (c == 0) {
+                c = a.compareToIgnoreCase(b);
+            }
+            if (c == 0) {
+                c = a.compareTo(b);
+            }
+            return c;
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    @BeforeClass
+    public static void addProvider() {
+        // Android has it built in
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+
+    @Test
+    public void randomChangesMatchABruteForceSort() {
+        Random random = new Random(8);
+        for (int round = 0; round < 20; round++) {
+            Set<String> expected = new HashSet<String>();
+            for (int i = random.nextInt(30); i > 0; i--) {
+                expected.add(randomName(random));
+            }
+            AccountNameIndex index = new AccountNameIndex(expected);
+            assertEquals(sorted(expected), index.getNames());
+
+            for (int step = 0; step < 300; step++) {
+                String accountName = randomName(random);
+                int change = random.nextInt(3);
+                if (change == 0) {
+                    index.add(accountName);
+                    expected.add(accountName);
+                } else if (change == 1 && !expected.isEmpty()) {
+                    // Remove a name that's there rather than one that
+                    // (usually) isn't
+                    accountName = new ArrayList<String>(expected).get(random.nextInt(expected.size()));
+                    index.remove(accountName);
+                    expected.remove(accountName);
+                } else {
+                    index.remove(accountName);
+                    expected.remove(accountName);
+                }
+
+                assertEquals(sorted(expected), index.getNames());
+                String searchString = randomSearchString(random);
+                assertEquals(searchString, found(expected, searchString), index.find(AccountNameIndex.fold(searchString)));
+            }
+        }
+    }
+
+
+    @Test
+    public void sortMatchesABruteForceSort() {
+        Random random = new Random(9);
+        Set<String> accountNames = new HashSet<String>();
+        while (accountNames.size() < 200) {
+            accountNames.add(randomName(random));
+        }
+        AccountNameIndex index = new AccountNameIndex(accountNames);
+
+        // Both a few names (sorted) and most of them (picked out of the index)
+        for (int size : new int[] {0, 1, 10, 49, 51, 150, 200}) {
+            List<String> subset = new ArrayList<String>(accountNames);
+            Collections.shuffle(subset, random);
+            subset = subset.subList(0, size);
+            assertEquals(sorted(subset), index.sort(new HashSet<String>(subset)));
+        }
+    }
+
+
+    @Test
+    public void snapshotsDontChange() {
+        AccountNameIndex index = new AccountNameIndex(Arrays.asList("b", "d"));
+        List<String> snapshot = index.getNames();
+        index.add("a");
+        index.add("c");
+        index.remove("d");
+        assertEquals(Arrays.asList("b", "d"), snapshot);
+        assertEquals(Arrays.asList("a", "b", "c"), index.getNames());
+    }
+
+
+    @Test
+    public void caseAndAccentsAreFolded() {
+        AccountNameIndex index = new AccountNameIndex(Arrays.asList("zebra", "\u00c9mail", "email", "Apple", "\u00c9COLE", "Caf\u00e9"));
+        assertEquals(Arrays.asList("Apple", "Caf\u00e9", "\u00c9COLE", "email", "\u00c9mail", "zebra"), index.getNames());
+        assertEquals("email", AccountNameIndex.fold("\u00c9mail"));
+        assertEquals(Arrays.asList("email", "\u00c9mail"), index.find(AccountNameIndex.fold("EM")));
+        assertEquals(Arrays.asList("Caf\u00e9"), index.find(AccountNameIndex.fold("CAF\u00c9")));
+    }
+
+
+    @Test
+    public void renamingAnAccountMovesItsName() throws Exception {
+        PasswordDatabase db = new PasswordDatabase(new File(folder.getRoot(), "test.db"), "secret".toCharArray());
+        for (String accountName : new String[] {"Bank", "Mail", "Work"}) {
+            db.addAccount(new AccountInformation(accountName, "user", "password", "", ""));
+        }
+        List<String> before = db.getAccountNames();
+
+        // As AddEditAccount does it
+        db.deleteAccount("Mail");
+        db.addAccount(new AccountInformation("\u00c9cole", "user", "password", "", ""));
+
+        assertEquals(Arrays.asList("Bank", "Mail", "Work"), before);
+        assertEquals(Arrays.asList("Bank", "\u00c9cole", "Work"), db.getAccountNames());
+    }
+
+
+    static String randomName(Random random) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 1 + random.nextInt(7); i > 0; i--) {
+            name.append(NAME_CHARS[random.nextInt(NAME_CHARS.length)]);
+        }
+        return name.toString();
+    }
+
+
+    /**
+     * @return Up to 4 of the characters names are made of
+     */
+    static String randomSearchString(Random random) {
+        StringBuilder searchString = new StringBuilder();
+        for (int i = random.nextInt(5); i > 0; i--) {
+            searchString.append(NAME_CHARS[random.nextInt(NAME_CHARS.length)]);
+        }
+        return searchString.toString();
+    }
+
+
+    static List<String> sorted(Collection<String> accountNames) {
+        List<String> sorted = new ArrayList<String>(accountNames);
+        Collections.sort(sorted, DISPLAY_ORDER);
+        return sorted;
+    }
+
+
+    /**
+     * @return The names containing the search string, ignoring case and
+     * accents, in display order
+     */
+    static List<String> found(Collection<String> accountNames, String searchString) {
+        String folded = AccountNameIndex.fold(searchString);
+        List<String> found = new ArrayList<String>();
+        for (String accountName : accountNames) {
+            if (AccountNameIndex.fold(accountName).contains(folded)) {
+                found.add(accountName);
+            }
+        }
+        return sorted(found);
+    }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * AccountSearchIndex checked against scanning all the names (see
+ * AccountNameIndexTest) after random changes
+ */
+public class AccountSearchIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    @BeforeClass
+    public static void addProvider() {
+        // Android has it built in
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+
+    @Test
+    public void randomChangesMatchABruteForceSearch() {
+        Random random = new Random(9);
+        for (int round = 0; round < 10; round++) {
+            Set<String> expected = new HashSet<String>();
+            for (int i = random.nextInt(50); i > 0; i--) {
+                expected.add(AccountNameIndexTest.randomName(random));
+            }
+            AccountNameIndex nameIndex = new AccountNameIndex(expected);
+            AccountSearchIndex searchIndex = new AccountSearchIndex(nameIndex);
+
+            for (int step = 0; step < 300; step++) {
+                String accountName = AccountNameIndexTest.randomName(random);
+                if (random.nextBoolean()) {
+                    add(nameIndex, searchIndex, accountName);
+                    expected.add(accountName);
+                } else {
+                    if (!expected.isEmpty() && random.nextBoolean()) {
+                        accountName = pick(expected, random);
+                    }
+                    remove(nameIndex, searchIndex, accountName);
+                    expected.remove(accountName);
+                }
+
+                for (int i = 0; i < 3; i++) {
+                    String searchString = randomSearchString(expected, random);
+                    assertEquals(searchString, AccountNameIndexTest.found(expected, searchString), searchIndex.find(searchString));
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void removingMostNamesRebuildsTheIndex() {
+        Random random = new Random(10);
+        Set<String> expected = new HashSet<String>();
+        while (expected.size() < 100) {
+            expected.add(AccountNameIndexTest.randomName(random) + AccountNameIndexTest.randomName(random));
+        }
+        AccountNameIndex nameIndex = new AccountNameIndex(expected);
+        AccountSearchIndex searchIndex = new AccountSearchIndex(nameIndex);
+
+        // The index is rebuilt when the 51st name is removed, at which
+        // point the deleted names outnumber the rest
+        List<String> removed = new ArrayList<String>();
+        for (int i = 0; i < 80; i++) {
+            String accountName = pick(expected, random);
+            remove(nameIndex, searchIndex, accountName);
+            expected.remove(accountName);
+            removed.add(accountName);
+            assertSearchesMatch(searchIndex, expected, random);
+        }
+
+        // Names added after the rebuild get new ids
+        for (String accountName : removed) {
+            add(nameIndex, searchIndex, accountName);
+            expected.add(accountName);
+            assertSearchesMatch(searchIndex, expected, random);
+        }
+    }
+
+
+    @Test
+    public void shortAndCommonSearchesScanTheNameIndex() {
+        Set<String> accountNames = new HashSet<String>();
+        for (int i = 0; i < 100; i++) {
+            accountNames.add("Account " + i);
+        }
+        accountNames.add("Zebra");
+        CountingNameIndex nameIndex = new CountingNameIndex(accountNames);
+        AccountSearchIndex searchIndex = new AccountSearchIndex(nameIndex);
+
+        // Shorter than a trigram
+        assertEquals(AccountNameIndexTest.found(accountNames, "1"), searchIndex.find("1"));
+        assertEquals(1, nameIndex.finds);
+        assertEquals(AccountNameIndexTest.found(accountNames, "Ze"), searchIndex.find("Ze"));
+        assertEquals(2, nameIndex.finds);
+
+        // Every trigram matches more than a quarter of the names
+        assertEquals(AccountNameIndexTest.found(accountNames, "count"), searchIndex.find("count"));
+        assertEquals(3, nameIndex.finds);
+
+        // Selective enough to use the trigrams
+        assertEquals(Arrays.asList("Zebra"), searchIndex.find("ebr"));
+        assertEquals(Arrays.asList("Account 42"), searchIndex.find("t 42"));
+        assertEquals(3, nameIndex.finds);
+
+        // Nothing to search for
+        assertEquals(nameIndex.getNames(), searchIndex.find(""));
+    }
+
+
+    @Test
+    public void caseAndAccentsAreFolded() {
+        List<String> accountNames = Arrays.asList("Caf\u00e9 Cr\u00e8me", "CAFE CREME", "cafe", "Cr\u00e9merie", "Cr me");
+        AccountSearchIndex searchIndex = new AccountSearchIndex(new AccountNameIndex(accountNames));
+        assertEquals(Arrays.asList("CAFE CREME", "Caf\u00e9 Cr\u00e8me", "Cr\u00e9merie"), searchIndex.find("cr\u00e8me"));
+        assertEquals(Arrays.asList("cafe", "CAFE CREME", "Caf\u00e9 Cr\u00e8me"), searchIndex.find("CAF\u00c9"));
+        assertEquals(Arrays.asList("CAFE CREME", "Caf\u00e9 Cr\u00e8me"), searchIndex.find("E CRE"));
+    }
+
+
+    @Test
+    public void renamingAnAccountMovesItsName() throws Exception {
+        PasswordDatabase db = new PasswordDatabase(new File(folder.getRoot(), "test.db"), "secret".toCharArray());
+        for (String accountName : new String[] {"Bank", "Mail", "Work"}) {
+            db.addAccount(new AccountInformation(accountName, "user", "password", "", ""));
+        }
+        assertEquals(Arrays.asList("Mail"), db.findAccountNames("mail"));
+
+        // As AddEditAccount does it
+        db.deleteAccount("Mail");
+        db.addAccount(new AccountInformation("Email Caf\u00e9", "user", "password", "", ""));
+
+        assertEquals(Arrays.asList("Email Caf\u00e9"), db.findAccountNames("mail"));
+        assertEquals(Arrays.asList("Email Caf\u00e9"), db.findAccountNames("CAFE"));
+
+        db.deleteAccount("Email Caf\u00e9");
+        db.addAccount(new AccountInformation("Post", "user", "password", "", ""));
+
+        assertEquals(Collections.emptyList(), db.findAccountNames("mail"));
+        assertEquals(Collections.emptyList(), db.findAccountNames("ai"));
+        assertEquals(Arrays.asList("Post"), db.findAccountNames("pos"));
+    }
+
+
+    /**
+     * Update both indexes the way PasswordDatabase does
+     */
+    private static void add(AccountNameIndex nameIndex, AccountSearchIndex searchIndex, String accountName) {
+        nameIndex.add(accountName);
+        searchIndex.add(accountName);
+    }
+
+
+    private static void remove(AccountNameIndex nameIndex, AccountSearchIndex searchIndex, String accountName) {
+        nameIndex.remove(accountName);
+        searchIndex.remove(accountName);
+    }
+
+
+    private static void assertSearchesMatch(AccountSearchIndex searchIndex, Collection<String> accountNames, Random random) {
+        for (int i = 0; i < 10; i++) {
+            String searchString = randomSearchString(accountNames, random);
+            assertEquals(searchString, AccountNameIndexTest.found(accountNames, searchString), searchIndex.find(searchString));
+        }
+    }
+
+
+    /**
+     * @return Usually part of one of the names, with its case changed, so
+     * the search matches something; otherwise random characters
+     */
+    private static String randomSearchString(Collection<String> accountNames, Random random) {
+        if (accountNames.isEmpty() || random.nextInt(4) == 0) {
+            return AccountNameIndexTest.randomSearchString(random);
+        }
+        String accountName = pick(accountNames, random);
+        int start = random.nextInt(accountName.length());
+        int end = start + random.nextInt(accountName.length() - start + 1);
+        String searchString = accountName.substring(start, end);
+        return random.nextBoolean() ? searchString.toUpperCase() : searchString;
+    }
+
+
+    private static String pick(Collection<String> accountNames, Random random) {
+        return new ArrayList<String>(accountNames).get(random.nextInt(accountNames.size()));
+    }
+
+
+    /**
+     * Counts the searches passed on to the name index
+     */
+    private static class CountingNameIndex extends AccountNameIndex {
+
+        private int finds;
+
+        CountingNameIndex(Collection<String> accountNames) {
+            super(accountNames);
+        }
+
+        @Override
+        List<String> find(String foldedSearchString) {
+            finds++;
+            return super.find(foldedSearchString);
+        }
+
+    }
+
+}
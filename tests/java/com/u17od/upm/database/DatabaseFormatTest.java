@@ -0,0 +1,133 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.Security;
+
+import javax.crypto.SecretKey;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.u17od.upm.crypto.EncryptionService;
+
+
+/**
+ * Telling which format a database is in and checking the password against
+ * it (see the fixtures in DatabaseUpgradeTest)
+ */
+public class DatabaseFormatTest {
+
+    private static final char[] PASSWORD = "fixture".toCharArray();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    @BeforeClass
+    public static void addProvider() {
+        // Android has it built in
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+
+    @Test
+    public void streamCheckTriesThePassword() throws Exception {
+        for (String fixture : new String[] {"version3.db", "version2.db"}) {
+            File dbFile = copyFixture(fixture);
+            assertTrue(fixture, DatabaseFormat.STREAM.check(dbFile, key(PASSWORD)));
+            assertFalse(fixture, DatabaseFormat.STREAM.check(dbFile, key("wrong".toCharArray())));
+        }
+    }
+
+
+    @Test
+    public void streamCheckOnlyDecryptsTheStart() throws Exception {
+        File dbFile = copyFixture("version3.db");
+
+        // Damage the padding in the last block
+        RandomAccessFile raf = new RandomAccessFile(dbFile, "rw");
+        try {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        assertTrue(DatabaseFormat.STREAM.check(dbFile, key(PASSWORD)));
+    }
+
+
+    @Test
+    public void legacyDatabaseWhoseSaltLooksLikeAHeaderIsIdentified() throws Exception {
+        // The salt starts with "UPM" and 3 so the file could also be a
+        // version 3 database
+        File dbFile = copyFixture("version1.1.0-header-salt.db");
+        assertTrue(DatabaseFormat.STREAM.matches(new byte[] {'U', 'P', 'M', 3}, dbFile.length()));
+        assertSame(DatabaseFormat.LEGACY, DatabaseFormat.identify(dbFile, key(PASSWORD)));
+
+        PasswordDatabase db = new PasswordDatabase(dbFile, PASSWORD);
+        assertEquals(3, db.getAccounts().size());
+        assertEquals("hunter2", db.getAccount("Mail").getPassword());
+    }
+
+
+    private static SecretKey key(char[] password) throws Exception {
+        return EncryptionService.createSecretKey(password);
+    }
+
+
+    private File copyFixture(String fixture) throws IOException {
+        File file = new File(folder.getRoot(), fixture);
+        InputStream is = getClass().getResourceAsStream(fixture);
+        assertNotNull("Missing fixture " + fixture, is);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) != -1) {
+                os.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            is.close();
+            os.close();
+        }
+        return file;
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Reading a database whose journal has been damaged
+ */
+public class DatabaseJournalTest {
+
+    private static final char[] PASSWORD = "secret".toCharArray();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dbFile;
+    private File journalFile;
+    private long firstEntryEnd;
+
+
+    @BeforeClass
+    public static void addProvider() {
+        // Android has it built in
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+
+    /**
+     * A database with "a" in the file and two journal entries, adding "b"
+     * and then "c"
+     */
+    @Before
+    public void createDatabase() throws Exception {
+        dbFile = new File(folder.getRoot(), "test.db");
+        journalFile = new File(folder.getRoot(), "test.db" + PasswordDatabase.JOURNAL_FILE_SUFFIX);
+        PasswordDatabase db = new PasswordDatabase(dbFile, PASSWORD);
+        db.addAccount(new AccountInformation("a", "user", "password", "", ""));
+        db.save();
+        db.addAccount(new AccountInformation("b", "user", "password", "", ""));
+        db.commit();
+        firstEntryEnd = journalFile.length();
+        db.addAccount(new AccountInformation("c", "user", "password", "", ""));
+        db.commit();
+    }
+
+
+    @Test
+    public void readsBothEntries() throws Exception {
+        PasswordDatabase db = new PasswordDatabase(dbFile, PASSWORD);
+        assertNotNull(db.getAccount("b"));
+        assertNotNull(db.getAccount("c"));
+    }
+
+
+    @Test
+    public void lastEntryCutShortIsIgnored() throws Exception {
+        setLength(journalFile, (firstEntryEnd + journalFile.length()) / 2);
+
+        PasswordDatabase db = new PasswordDatabase(dbFile, PASSWORD);
+        assertNotNull(db.getAccount("a"));
+        assertNotNull(db.getAccount("b"));
+        assertNull(db.getAccount("c"));
+    }
+
+
+    @Test
+    public void lastEntryNotWrittenIsIgnored() throws Exception {
+        // The length was written but the sealed entry wasn't
+        zero(journalFile, firstEntryEnd + 4, journalFile.length());
+
+        PasswordDatabase db = new PasswordDatabase(dbFile, PASSWORD);
+        assertNotNull(db.getAccount("b"));
+        assertNull(db.getAccount("c"));
+    }
+
+
+    @Test
+    public void tornEntryIsOverwrittenByTheNextCommit() throws Exception {
+        zero(journalFile, firstEntryEnd + 4, journalFile.length());
+
+        PasswordDatabase db = new PasswordDatabase(dbFile, PASSWORD);
+        db.addAccount(new AccountInformation("d", "user", "password", "", ""));
+        db.commit();
+
+        db = new PasswordDatabase(dbFile, PASSWORD);
+        assertNotNull(db.getAccount("b"));
+        assertNull(db.getAccount("c"));
+        assertEquals("user", db.getAccount("d").getUserId());
+    }
+
+
+    @Test
+    public void damagedEntryBeforeTheLastIsAnError() throws Exception {
+        zero(journalFile, firstEntryEnd - 1, firstEntryEnd);
+
+        try {
+            new PasswordDatabase(dbFile, PASSWORD);
+            fail("Read a journal with a damaged entry in the middle");
+        } catch (ProblemReadingDatabaseFile e) {
+            // Expected
+        }
+    }
+
+
+    private static void setLength(File file, long length) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    private static void zero(File file, long start, long end) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(start);
+            raf.write(new byte[(int) (end - start)]);
+        } finally {
+            raf.close();
+        }
+    }
+
+}
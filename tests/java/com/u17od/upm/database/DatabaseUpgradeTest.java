@@ -0,0 +1,214 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.u17od.upm.crypto.InvalidPasswordException;
+
+
+/**
+ * Reading databases written by older versions of UPM and upgrading them to
+ * the current format. Each fixture holds the same three accounts (in
+ * version 3 the first one's name has an accented character). Versions 2
+ * and 3 are encrypted with AES-CBC, 1.1.0 and 1.0.0 with DES.
+ */
+public class DatabaseUpgradeTest {
+
+    private static final char[] PASSWORD = "fixture".toCharArray();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    @BeforeClass
+    public static void addProvider() {
+        // Android has it built in
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+
+    @Test
+    public void readsVersion3() throws Exception {
+        PasswordDatabase db = open("version3.db");
+        assertEquals(3, db.getDbVersion());
+        assertAccounts(db, "Caf\u00e9 Bank");
+        assertOptions(db);
+    }
+
+
+    @Test
+    public void readsVersion2() throws Exception {
+        PasswordDatabase db = open("version2.db");
+        assertEquals(2, db.getDbVersion());
+        assertAccounts(db, "Bank");
+        assertOptions(db);
+    }
+
+
+    @Test
+    public void readsVersion1_1_0() throws Exception {
+        PasswordDatabase db = open("version1.1.0.db");
+        assertEquals(1, db.getDbVersion());
+        assertAccounts(db, "Bank");
+        assertOptions(db);
+    }
+
+
+    @Test
+    public void readsVersion1_0_0() throws Exception {
+        PasswordDatabase db = open("version1.0.0.db");
+        assertEquals(1, db.getDbVersion());
+        assertAccounts(db, "Bank");
+        assertEquals(0, db.getRevision());
+    }
+
+
+    @Test
+    public void upgradesVersion3() throws Exception {
+        assertUpgrades("version3.db", "Caf\u00e9 Bank");
+    }
+
+
+    @Test
+    public void upgradesVersion2() throws Exception {
+        assertUpgrades("version2.db", "Bank");
+    }
+
+
+    @Test
+    public void upgradesVersion1_1_0() throws Exception {
+        assertUpgrades("version1.1.0.db", "Bank");
+    }
+
+
+    @Test
+    public void upgradesVersion1_0_0() throws Exception {
+        assertUpgrades("version1.0.0.db", "Bank");
+    }
+
+
+    @Test
+    public void wrongPasswordIsRejected() throws Exception {
+        String[] fixtures = {"version3.db", "version2.db", "version1.1.0.db", "version1.0.0.db"};
+        for (String fixture : fixtures) {
+            try {
+                new PasswordDatabase(copyFixture(fixture), "wrong".toCharArray());
+                fail("Opened " + fixture + " with the wrong password");
+            } catch (InvalidPasswordException e) {
+                // expected
+            }
+        }
+    }
+
+
+    /**
+     * Upgrade the fixture and check the upgraded file reads back with the
+     * same contents
+     */
+    private void assertUpgrades(String fixture, String firstAccountName) throws Exception {
+        File dbFile = copyFixture(fixture);
+        PasswordDatabase db = new PasswordDatabase(dbFile, PASSWORD);
+        int revision = db.getRevision();
+        String remoteLocation = db.getDbOptions().getRemoteLocation();
+        assertTrue(db.isUpgradeRequired());
+
+        db.upgrade();
+
+        PasswordDatabase upgraded = new PasswordDatabase(dbFile, PASSWORD);
+        assertEquals(PasswordDatabase.DB_VERSION, upgraded.getDbVersion());
+        assertFalse(upgraded.isUpgradeRequired());
+        assertEquals(revision, upgraded.getRevision());
+        assertEquals(remoteLocation, upgraded.getDbOptions().getRemoteLocation());
+        assertAccounts(upgraded, firstAccountName);
+    }
+
+
+    private static void assertAccounts(PasswordDatabase db, String firstAccountName) {
+        assertEquals(3, db.getAccounts().size());
+        assertAccount(db, firstAccountName, "alice", "s3cret!", "https://bank.example.com", "PIN 1234\nsecond line");
+        assertAccount(db, "Mail", "alice@example.com", "hunter2", "", "");
+        assertAccount(db, "Work VPN", "asmith", "correct horse battery staple", "vpn.example.com", "");
+    }
+
+
+    private static void assertAccount(PasswordDatabase db, String accountName, String userId, String password, String url, String notes) {
+        AccountInformation ai = db.getAccount(accountName);
+        assertNotNull(accountName, ai);
+        assertEquals(userId, ai.getUserId());
+        assertEquals(password, ai.getPassword());
+        assertEquals(url, ai.getUrl());
+        assertEquals(notes, ai.getNotes());
+    }
+
+
+    private static void assertOptions(PasswordDatabase db) {
+        assertEquals(5, db.getRevision());
+        assertEquals("http://example.com/upm/", db.getDbOptions().getRemoteLocation());
+        assertEquals("", db.getDbOptions().getAuthDBEntry());
+    }
+
+
+    private PasswordDatabase open(String fixture) throws Exception {
+        return new PasswordDatabase(copyFixture(fixture), PASSWORD);
+    }
+
+
+    /**
+     * Copy a fixture to the temporary folder so upgrading it (and the
+     * journal) doesn't touch the original
+     */
+    private File copyFixture(String fixture) throws IOException {
+        File file = new File(folder.getRoot(), fixture);
+        InputStream is = getClass().getResourceAsStream(fixture);
+        assertNotNull("Missing fixture " + fixture, is);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) != -1) {
+                os.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            is.close();
+            os.close();
+        }
+        return file;
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+
+/**
+ * Times decoding flatpacked accounts with FlatPackInputStream against the
+ * byte at a time decoder FlatPackObject uses for any other InputStream.
+ * It isn't a unit test; run main() on the unit test classpath, e.g. from
+ * the IDE. The first few rounds are the JIT warming up.
+ *
+ * Arguments: [accounts] [rounds], 40000 and 8 by default
+ */
+public class FlatPackBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numAccounts = args.length > 0 ? Integer.parseInt(args[0]) : 40000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (int i = 0; i < numAccounts; i++) {
+            new AccountInformation("account " + i, "user" + i + "@example.com", "p@ssw0rd" + i,
+                    "https://host" + i + ".example.com/login", "some notes about account " + i).flatPack(os);
+        }
+        byte[] data = os.toByteArray();
+
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            int oldCount = decode(new BufferedInputStream(new ByteArrayInputStream(data)));
+            long oldNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int newCount = decode(new FlatPackInputStream(new BufferedInputStream(new ByteArrayInputStream(data))));
+            long newNanos = System.nanoTime() - start;
+
+            System.out.println(String.format("byte at a time: %d accounts in %.1fms   FlatPackInputStream: %d accounts in %.1fms",
+                    oldCount, oldNanos / 1e6, newCount, newNanos / 1e6));
+        }
+    }
+
+
+    private static int decode(InputStream is) throws IOException, ProblemReadingDatabaseFile {
+        Charset charset = Charset.forName("UTF-8");
+        int count = 0;
+        try {
+            while (true) {
+                new AccountInformation(is, charset);
+                count++;
+            }
+        } catch (EOFException e) {
+            // The end of the accounts
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+
+/**
+ * The varint record format written by FlatPackOutputStream and read by
+ * FlatPackInputStream
+ */
+public class FlatPackStreamTest {
+
+    private static final int KNOWN_TYPE = 1;
+    private static final int UNKNOWN_TYPE = 99;
+
+
+    @Test
+    public void fieldLengthsRoundTripAtVarintBoundaries() throws Exception {
+        int[] lengths = {0, 1, 127, 128, 16383, 16384, 2097151, 2097152};
+        int[] varintLengths = {1, 1, 1, 2, 2, 3, 3, 4};
+        for (int i = 0; i < lengths.length; i++) {
+            byte[] field = field(lengths[i]);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            new FlatPackOutputStream(buffer).writeField(field);
+            assertEquals("length " + lengths[i], varintLengths[i] + field.length, buffer.size());
+
+            FlatPackInputStream is = new FlatPackInputStream(new ByteArrayInputStream(buffer.toByteArray()), true);
+            assertArrayEquals("length " + lengths[i], field, is.readBytes());
+            assertEquals(-1, is.read());
+        }
+    }
+
+
+    @Test
+    public void recordLengthsRoundTripAtVarintBoundaries() throws Exception {
+        // A record holding one field of n bytes is n + 1 or n + 2 bytes long
+        int[] fieldLengths = {125, 126, 16380, 16381, 1000000};
+        for (int fieldLength : fieldLengths) {
+            final byte[] field = field(fieldLength);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            FlatPackOutputStream os = new FlatPackOutputStream(buffer);
+            os.writeRecord(KNOWN_TYPE, field);
+            os.writeRecord(UNKNOWN_TYPE, new FlatPackObject() {
+                public void flatPack(OutputStream os) throws IOException {
+                    putBytes(os, field);
+                }
+            });
+
+            FlatPackInputStream is = new FlatPackInputStream(new ByteArrayInputStream(buffer.toByteArray()), true);
+            for (int type : new int[] {KNOWN_TYPE, UNKNOWN_TYPE}) {
+                assertEquals(type, is.readRecordType());
+                assertArrayEquals("length " + fieldLength, field, is.readBytes());
+                assertFalse(is.hasMoreFields());
+                is.endRecord();
+            }
+            assertEquals(-1, is.readRecordType());
+        }
+    }
+
+
+    @Test
+    public void fieldsCanBeLongerThan9999Bytes() throws Exception {
+        StringBuilder notes = new StringBuilder();
+        while (notes.length() < 30000) {
+            notes.append("line ").append(notes.length()).append('\n');
+        }
+        AccountInformation account = new AccountInformation("long", "user", "password", "", notes.toString());
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        new FlatPackOutputStream(buffer).writeRecord(PasswordDatabase.RecordType.ACCOUNT, account);
+
+        FlatPackInputStream is = new FlatPackInputStream(new ByteArrayInputStream(buffer.toByteArray()), true);
+        assertEquals(PasswordDatabase.RecordType.ACCOUNT, is.readRecordType());
+        AccountInformation read = new AccountInformation(is);
+        is.endRecord();
+        assertEquals(notes.toString(), read.getNotes());
+        assertEquals(-1, is.readRecordType());
+    }
+
+
+    @Test
+    public void unknownRecordsAndTrailingFieldsAreSkipped() throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        FlatPackOutputStream os = new FlatPackOutputStream(buffer);
+        os.writeRecord(UNKNOWN_TYPE, fields("from", "a later", "version"));
+        os.writeRecord(KNOWN_TYPE, fields("first", "added later", "and another"));
+        os.writeRecord(UNKNOWN_TYPE, new byte[0]);
+        os.writeRecord(KNOWN_TYPE, fields("second"));
+
+        FlatPackInputStream is = new FlatPackInputStream(new ByteArrayInputStream(buffer.toByteArray()), true);
+        int recordType;
+        StringBuilder read = new StringBuilder();
+        while ((recordType = is.readRecordType()) != -1) {
+            if (recordType == KNOWN_TYPE) {
+                // Only the first field is known about
+                read.append(is.readString(FlatPackObject.UTF8)).append(' ');
+            }
+            is.endRecord();
+        }
+        assertEquals("first second ", read.toString());
+    }
+
+
+    @Test(timeout = 10000)
+    public void truncatedRecordsAreReported() throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        FlatPackOutputStream os = new FlatPackOutputStream(buffer);
+        os.writeRecord(KNOWN_TYPE, fields("first", "record"));
+        int firstRecordEnd = buffer.size();
+        os.writeRecord(KNOWN_TYPE, fields(new String(field(200), "UTF-8"), "second"));
+        byte[] records = buffer.toByteArray();
+
+        for (int length = 0; length < records.length; length++) {
+            FlatPackInputStream is = new FlatPackInputStream(new ByteArrayInputStream(Arrays.copyOf(records, length)), true);
+            try {
+                int recordCount = readAll(is);
+                assertTrue("cut at " + length, length == 0 || length == firstRecordEnd);
+                assertEquals(length == 0 ? 0 : 1, recordCount);
+            } catch (ProblemReadingDatabaseFile e) {
+                assertTrue("cut at " + length, length != 0 && length != firstRecordEnd);
+            }
+        }
+    }
+
+
+    @Test(timeout = 10000)
+    public void hugeLengthsAreRejected() throws Exception {
+        // A field claiming to be 2GB long outside of any record
+        byte[] field = {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07, 'x'};
+        assertRejected(field, false);
+
+        // A record claiming to be 2GB long
+        byte[] record = {KNOWN_TYPE, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07, 0x01, 'x'};
+        assertRejected(record, true);
+
+        // A field longer than the record it's in
+        byte[] fieldOverrun = {KNOWN_TYPE, 0x02, 0x7f, 'x'};
+        assertRejected(fieldOverrun, true);
+
+        // A varint that never ends
+        byte[] endless = new byte[64];
+        Arrays.fill(endless, (byte) 0x80);
+        endless[0] = KNOWN_TYPE;
+        assertRejected(endless, true);
+    }
+
+
+    private static void assertRejected(byte[] bytes, boolean inRecord) throws IOException {
+        FlatPackInputStream is = new FlatPackInputStream(new ByteArrayInputStream(bytes), true);
+        try {
+            if (inRecord) {
+                readAll(is);
+            } else {
+                is.readBytes();
+            }
+            fail("Read " + Arrays.toString(bytes));
+        } catch (ProblemReadingDatabaseFile e) {
+            // expected
+        }
+    }
+
+
+    /**
+     * Read every field of every record in the stream
+     * @return The number of records
+     */
+    private static int readAll(FlatPackInputStream is) throws IOException, ProblemReadingDatabaseFile {
+        int recordCount = 0;
+        while (is.readRecordType() != -1) {
+            while (is.hasMoreFields()) {
+                is.readBytes();
+            }
+            is.endRecord();
+            recordCount++;
+        }
+        return recordCount;
+    }
+
+
+    private static byte[] field(int length) {
+        byte[] field = new byte[length];
+        for (int i = 0; i < length; i++) {
+            field[i] = (byte) ('a' + i % 26);
+        }
+        return field;
+    }
+
+
+    private static FlatPackObject fields(final String... values) {
+        return new FlatPackObject() {
+            public void flatPack(OutputStream os) throws IOException {
+                for (String value : values) {
+                    putString(os, value);
+                }
+            }
+        };
+    }
+
+}
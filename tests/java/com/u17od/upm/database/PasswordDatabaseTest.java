@@ -0,0 +1,124 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.u17od.upm.crypto.InvalidPasswordException;
+
+
+/**
+ * Changing the password of a database
+ */
+public class PasswordDatabaseTest {
+
+    private static final char[] PASSWORD = "secret".toCharArray();
+    private static final char[] NEW_PASSWORD = "new secret".toCharArray();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dbFile;
+    private PasswordDatabase db;
+
+
+    @BeforeClass
+    public static void addProvider() {
+        // Android has it built in
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+
+    @Before
+    public void createDatabase() throws Exception {
+        dbFile = new File(folder.getRoot(), "test.db");
+        db = new PasswordDatabase(dbFile, PASSWORD);
+        db.addAccount(new AccountInformation("a", "user", "password", "", ""));
+        db.save();
+    }
+
+
+    @Test
+    public void changedPasswordOpensTheDatabase() throws Exception {
+        db.changePassword(PASSWORD, NEW_PASSWORD);
+        assertNotNull(new PasswordDatabase(dbFile, NEW_PASSWORD).getAccount("a"));
+        try {
+            new PasswordDatabase(dbFile, PASSWORD);
+            fail("Opened the database with the old password");
+        } catch (InvalidPasswordException e) {
+            // Expected
+        }
+    }
+
+
+    @Test
+    public void wrongExistingPasswordIsRejected() throws Exception {
+        try {
+            db.changePassword(NEW_PASSWORD, NEW_PASSWORD);
+            fail("Changed the password without the existing one");
+        } catch (InvalidPasswordException e) {
+            // Expected
+        }
+        assertTrue(db.checkPassword(PASSWORD));
+    }
+
+
+    @Test
+    public void failedSaveKeepsTheExistingPassword() throws Exception {
+        int revision = db.getRevision();
+
+        // There's nowhere to write the database
+        db.setDatabaseFile(new File(new File(folder.getRoot(), "missing"), "test.db"));
+        try {
+            db.changePassword(PASSWORD, NEW_PASSWORD);
+            fail("Saved the database in a directory that doesn't exist");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(revision, db.getRevision());
+        assertTrue(db.checkPassword(PASSWORD));
+        assertFalse(db.checkPassword(NEW_PASSWORD));
+
+        // Changes still go in the journal of the database on disk
+        db.setDatabaseFile(dbFile);
+        db.addAccount(new AccountInformation("b", "user", "password", "", ""));
+        db.commit();
+        PasswordDatabase reopened = new PasswordDatabase(dbFile, PASSWORD);
+        assertNotNull(reopened.getAccount("b"));
+        assertEquals(revision + 1, reopened.getRevision());
+    }
+
+}
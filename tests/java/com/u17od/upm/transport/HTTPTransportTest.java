@@ -0,0 +1,746 @@
+/*
+ * Universal Password Manager
+ * Copyright (c) 2010-2011 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.u17od.upm.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.u17od.upm.util.Base64;
+
+
+/**
+ * HTTPTransport talking to a fake UPM server on the loopback interface
+ */
+public class HTTPTransportTest {
+
+    private static final String DB_NAME = "upm.db";
+
+    /**
+     * Each test's server gets its own path as the servers that don't
+     * support PUT are remembered for the whole process
+     */
+    private static int serverCount;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeServer fakeServer;
+    private HttpServer server;
+    private String location;
+    private File tmpDir;
+    private HTTPTransport transport;
+
+
+    @Before
+    public void startServer() throws IOException {
+        fakeServer = new FakeServer();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        String path = "/upm" + (++serverCount) + "/";
+        server.createContext(path, fakeServer);
+        server.start();
+        location = "http://127.0.0.1:" + server.getAddress().getPort() + path;
+        tmpDir = folder.newFolder("tmp");
+        transport = new HTTPTransport(new File(folder.getRoot(), "no-cert.crt"), null, tmpDir);
+    }
+
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+
+    @Test
+    public void putStreamsTheFileWithAFixedLength() throws Exception {
+        byte[] contents = randomBytes(1024 * 1024 + 3);
+        transport.put(location, writeFile(DB_NAME, contents), "user", "pass");
+
+        Request request = fakeServer.getOnlyRequest();
+        assertEquals("POST", request.method);
+        assertEquals("upload.php", request.path);
+        assertEquals(String.valueOf(request.body.length), request.headers.getFirst("Content-Length"));
+        assertNull(request.headers.getFirst("Transfer-Encoding"));
+        assertEquals("Basic " + Base64.encodeBytes("user:pass".getBytes()), request.headers.getFirst("Authorization"));
+        assertArrayEquals(contents, fakeServer.file);
+        assertEquals(DB_NAME, fakeServer.uploadedFileName);
+    }
+
+
+    @Test
+    public void putSendsAnEmptyFile() throws Exception {
+        transport.put(location, writeFile(DB_NAME, new byte[0]));
+        assertArrayEquals(new byte[0], fakeServer.file);
+        assertNull(fakeServer.getOnlyRequest().headers.getFirst("Authorization"));
+    }
+
+
+    @Test
+    public void putReportsAFailedUpload() throws Exception {
+        File file = writeFile(DB_NAME, randomBytes(100));
+
+        fakeServer.uploadResponse = "FILE_TOO_BIG";
+        assertPutFails(file);
+
+        fakeServer.uploadResponse = "OK";
+        fakeServer.responseCode = 500;
+        assertPutFails(file);
+    }
+
+
+    @Test
+    public void getRemoteFileStreamsTheResponseToDisk() throws Exception {
+        fakeServer.setFile(randomBytes(3 * 1024 * 1024 + 5));
+        RecordingListener listener = new RecordingListener();
+        File downloaded = transport.getRemoteFile(location + DB_NAME, "user", "pass", listener);
+
+        assertEquals(tmpDir, downloaded.getParentFile());
+        assertArrayEquals(fakeServer.file, readFile(downloaded));
+        assertEquals("Basic " + Base64.encodeBytes("user:pass".getBytes()), fakeServer.getOnlyRequest().headers.getFirst("Authorization"));
+
+        // Several calls, each with more than the last, ending with all of it
+        long length = fakeServer.file.length;
+        assertTrue(listener.progress.size() > 1);
+        long previous = 0;
+        for (long[] progress : listener.progress) {
+            assertTrue(progress[0] > previous);
+            assertEquals(length, progress[1]);
+            previous = progress[0];
+        }
+        assertEquals(length, previous);
+    }
+
+
+    @Test
+    public void getRemoteFileWithoutAContentLength() throws Exception {
+        fakeServer.setFile(randomBytes(100000));
+        fakeServer.chunked = true;
+        RecordingListener listener = new RecordingListener();
+        File downloaded = transport.getRemoteFile(location + DB_NAME, null, null, listener);
+
+        assertArrayEquals(fakeServer.file, readFile(downloaded));
+        long[] last = listener.progress.get(listener.progress.size() - 1);
+        assertEquals(fakeServer.file.length, last[0]);
+        assertEquals(-1, last[1]);
+    }
+
+
+    @Test
+    public void getRemoteFileRejectsAShortResponse() throws Exception {
+        fakeServer.setFile(randomBytes(200000));
+        fakeServer.truncateTo = 150000;
+        try {
+            transport.getRemoteFile(location + DB_NAME);
+            fail("Accepted a short download");
+        } catch (TransportException e) {
+            // The connection just ends early so it's the Content-Length
+            // that gives it away
+            assertTrue(e.getMessage(), e.getMessage().contains("150000 of the 200000 bytes"));
+        }
+        assertEquals(0, tmpDir.listFiles().length);
+    }
+
+
+    @Test
+    public void getRemoteFileOfAMissingFile() throws Exception {
+        assertNull(transport.getRemoteFile(location + DB_NAME));
+        assertEquals(0, tmpDir.listFiles().length);
+    }
+
+
+    @Test
+    public void getRemoteFileReportsAServerError() throws Exception {
+        fakeServer.setFile(randomBytes(100));
+        fakeServer.responseCode = 500;
+        try {
+            transport.getRemoteFile(location + DB_NAME);
+            fail("Accepted a server error");
+        } catch (TransportException e) {
+            // expected
+        }
+        assertEquals(0, tmpDir.listFiles().length);
+    }
+
+
+    @Test
+    public void unchangedFileIsntDownloadedAgain() throws Exception {
+        fakeServer.setFile(randomBytes(1000));
+        File downloaded = transport.getRemoteFileIfModified(location, DB_NAME, null, null, null);
+        assertArrayEquals(fakeServer.file, readFile(downloaded));
+        assertFalse(transport.isRemoteFileUnchanged());
+        assertNull(fakeServer.lastRequest().headers.getFirst("If-None-Match"));
+        assertNull(fakeServer.lastRequest().headers.getFirst("If-Modified-Since"));
+        downloaded.delete();
+
+        assertNull(transport.getRemoteFileIfModified(location, DB_NAME, null, null, null));
+        assertTrue(transport.isRemoteFileUnchanged());
+        assertEquals(fakeServer.etag(), fakeServer.lastRequest().headers.getFirst("If-None-Match"));
+        assertEquals(fakeServer.lastModified(), fakeServer.lastRequest().headers.getFirst("If-Modified-Since"));
+        assertDownloadsDeleted();
+
+        // The validators are saved in the temporary directory so a new
+        // transport (e.g. the next sync) uses them too
+        HTTPTransport nextTransport = new HTTPTransport(new File(folder.getRoot(), "no-cert.crt"), null, tmpDir);
+        assertNull(nextTransport.getRemoteFileIfModified(location, DB_NAME, null, null, null));
+        assertTrue(nextTransport.isRemoteFileUnchanged());
+    }
+
+
+    @Test
+    public void changedFileIsDownloadedWithItsNewValidators() throws Exception {
+        fakeServer.setFile(randomBytes(1000));
+        transport.getRemoteFileIfModified(location, DB_NAME, null, null, null).delete();
+        String firstETag = fakeServer.etag();
+
+        fakeServer.setFile(randomBytes(2000));
+        File downloaded = transport.getRemoteFileIfModified(location, DB_NAME, null, null, null);
+        assertEquals(firstETag, fakeServer.lastRequest().headers.getFirst("If-None-Match"));
+        assertArrayEquals(fakeServer.file, readFile(downloaded));
+        assertFalse(transport.isRemoteFileUnchanged());
+        downloaded.delete();
+
+        assertNull(transport.getRemoteFileIfModified(location, DB_NAME, null, null, null));
+        assertEquals(fakeServer.etag(), fakeServer.lastRequest().headers.getFirst("If-None-Match"));
+        assertTrue(transport.isRemoteFileUnchanged());
+    }
+
+
+    @Test
+    public void validatorsAreForgottenWhenTheServerStopsSendingThem() throws Exception {
+        fakeServer.setFile(randomBytes(1000));
+        transport.getRemoteFileIfModified(location, DB_NAME, null, null, null).delete();
+
+        // A response without validators replaces the ones we had
+        fakeServer.setFile(randomBytes(2000));
+        fakeServer.sendValidators = false;
+        transport.getRemoteFileIfModified(location, DB_NAME, null, null, null).delete();
+        File downloaded = transport.getRemoteFileIfModified(location, DB_NAME, null, null, null);
+        assertNull(fakeServer.lastRequest().headers.getFirst("If-None-Match"));
+        assertNull(fakeServer.lastRequest().headers.getFirst("If-Modified-Since"));
+        assertArrayEquals(fakeServer.file, readFile(downloaded));
+        downloaded.delete();
+
+        // So does the file going missing
+        fakeServer.sendValidators = true;
+        transport.getRemoteFileIfModified(location, DB_NAME, null, null, null).delete();
+        byte[] file = fakeServer.file;
+        fakeServer.file = null;
+        assertNull(transport.getRemoteFileIfModified(location, DB_NAME, null, null, null));
+        assertFalse(transport.isRemoteFileUnchanged());
+        fakeServer.file = file;
+        transport.getRemoteFileIfModified(location, DB_NAME, null, null, null).delete();
+        assertNull(fakeServer.lastRequest().headers.getFirst("If-None-Match"));
+    }
+
+
+    @Test
+    public void getRemoteFileIsntConditional() throws Exception {
+        fakeServer.setFile(randomBytes(1000));
+        transport.getRemoteFileIfModified(location, DB_NAME, null, null, null).delete();
+
+        File downloaded = transport.getRemoteFile(location + DB_NAME);
+        assertNull(fakeServer.lastRequest().headers.getFirst("If-None-Match"));
+        assertArrayEquals(fakeServer.file, readFile(downloaded));
+    }
+
+
+    @Test
+    public void remoteRevisionIsTheStrongETag() throws Exception {
+        assertNull(transport.getRemoteRevision(location, DB_NAME));
+
+        fakeServer.setFile(randomBytes(1000));
+        transport.getRemoteFileIfModified(location, DB_NAME, null, null, null).delete();
+        assertEquals(fakeServer.etag(), transport.getRemoteRevision(location, DB_NAME));
+
+        // A weak ETag only says the file is equivalent, not the same bytes,
+        // so it can't be used for If-Match
+        fakeServer.setFile(randomBytes(2000));
+        fakeServer.weakETags = true;
+        transport.getRemoteFileIfModified(location, DB_NAME, null, null, null).delete();
+        assertTrue(fakeServer.etag().startsWith("W/"));
+        assertNull(transport.getRemoteRevision(location, DB_NAME));
+    }
+
+
+    @Test
+    public void replacePutsTheFileInOneRequest() throws Exception {
+        fakeServer.setFile(randomBytes(1000));
+        transport.getRemoteFileIfModified(location, DB_NAME, null, null, null).delete();
+        String revision = transport.getRemoteRevision(location, DB_NAME);
+
+        byte[] contents = randomBytes(300000);
+        transport.replace(location, writeFile(DB_NAME, contents), revision, "user", "pass");
+
+        Request request = fakeServer.lastRequest();
+        assertEquals("PUT", request.method);
+        assertEquals(DB_NAME, request.path);
+        assertEquals(revision, request.headers.getFirst("If-Match"));
+        assertEquals(String.valueOf(contents.length), request.headers.getFirst("Content-Length"));
+        assertNull(request.headers.getFirst("Transfer-Encoding"));
+        assertEquals("Basic " + Base64.encodeBytes("user:pass".getBytes()), request.headers.getFirst("Authorization"));
+        assertEquals(2, fakeServer.requests.size());
+        assertArrayEquals(contents, fakeServer.file);
+
+        // The new file's ETag came back with the PUT so there's no need to
+        // download what we just uploaded
+        assertEquals(fakeServer.etag(), transport.getRemoteRevision(location, DB_NAME));
+        assertNull(transport.getRemoteFileIfModified(location, DB_NAME, null, null, null));
+        assertTrue(transport.isRemoteFileUnchanged());
+    }
+
+
+    @Test
+    public void replaceWithoutARevisionOverwritesAnything() throws Exception {
+        fakeServer.setFile(randomBytes(1000));
+        byte[] contents = randomBytes(2000);
+        transport.replace(location, writeFile(DB_NAME, contents), null, null, null);
+        assertNull(fakeServer.getOnlyRequest().headers.getFirst("If-Match"));
+        assertArrayEquals(contents, fakeServer.file);
+    }
+
+
+    @Test
+    public void replacingAChangedFileIsStale() throws Exception {
+        fakeServer.setFile(randomBytes(1000));
+        transport.getRemoteFileIfModified(location, DB_NAME, null, null, null).delete();
+        String revision = transport.getRemoteRevision(location, DB_NAME);
+
+        // Someone else uploads a new version
+        byte[] theirs = randomBytes(2000);
+        fakeServer.setFile(theirs);
+
+        assertStale(writeFile(DB_NAME, randomBytes(3000)), revision);
+        assertEquals("PUT", fakeServer.lastRequest().method);
+        assertEquals(412, fakeServer.lastResponseCode);
+        assertArrayEquals(theirs, fakeServer.file);
+        assertEquals(2, fakeServer.requests.size());
+    }
+
+
+    @Test
+    public void serverWithoutPutIsRemembered() throws Exception {
+        for (int responseCode : new int[] {405, 501}) {
+            String uploadLocation = location + responseCode + "/";
+            fakeServer.putResponseCode = responseCode;
+            fakeServer.requests.clear();
+            byte[] contents = randomBytes(1000 + responseCode);
+            transport.replace(uploadLocation, writeFile(DB_NAME, contents), null, null, null);
+            assertMethods("PUT", "POST deletefile.php", "POST upload.php");
+            assertArrayEquals(contents, fakeServer.file);
+
+            // Straight to the fallback next time
+            fakeServer.requests.clear();
+            transport.replace(uploadLocation, writeFile(DB_NAME, contents), null, null, null);
+            assertMethods("POST deletefile.php", "POST upload.php");
+            assertTrue(TransportContext.isReplaceSupported(location));
+        }
+    }
+
+
+    @Test
+    public void otherRefusedPutsFallBackOnlyOnce() throws Exception {
+        for (int responseCode : new int[] {403, 404, 409}) {
+            fakeServer.putResponseCode = responseCode;
+            fakeServer.requests.clear();
+            byte[] contents = randomBytes(1000 + responseCode);
+            transport.replace(location, writeFile(DB_NAME, contents), null, null, null);
+            assertMethods("PUT", "POST deletefile.php", "POST upload.php");
+            assertArrayEquals(contents, fakeServer.file);
+            assertTrue(TransportContext.isReplaceSupported(location));
+        }
+
+        // Once the server takes PUTs again they're used
+        fakeServer.putResponseCode = 0;
+        fakeServer.requests.clear();
+        transport.replace(location, writeFile(DB_NAME, randomBytes(10)), null, null, null);
+        assertMethods("PUT");
+    }
+
+
+    @Test
+    public void fallbackChecksTheRevisionFirst() throws Exception {
+        fakeServer.putResponseCode = 405;
+        fakeServer.setFile(randomBytes(1000));
+        transport.getRemoteFileIfModified(location, DB_NAME, null, null, null).delete();
+        String revision = transport.getRemoteRevision(location, DB_NAME);
+
+        // Someone else uploads a new version
+        byte[] theirs = randomBytes(2000);
+        fakeServer.setFile(theirs);
+        fakeServer.requests.clear();
+        assertStale(writeFile(DB_NAME, randomBytes(3000)), revision);
+        assertMethods("PUT", "HEAD " + DB_NAME);
+        assertArrayEquals(theirs, fakeServer.file);
+
+        // Replacing the version that's there works
+        revision = fakeServer.etag();
+        byte[] contents = randomBytes(4000);
+        fakeServer.requests.clear();
+        transport.replace(location, writeFile(DB_NAME, contents), revision, null, null);
+        assertMethods("HEAD " + DB_NAME, "POST deletefile.php", "POST upload.php");
+        assertArrayEquals(contents, fakeServer.file);
+
+        // The upload didn't say what the new file's ETag is
+        assertNull(transport.getRemoteRevision(location, DB_NAME));
+    }
+
+
+    @Test
+    public void fallbackToAMissingFileIsntStale() throws Exception {
+        fakeServer.putResponseCode = 403;
+        byte[] contents = randomBytes(1000);
+        transport.replace(location, writeFile(DB_NAME, contents), "\"v1\"", null, null);
+        assertMethods("PUT", "HEAD " + DB_NAME, "POST deletefile.php", "POST upload.php");
+        assertArrayEquals(contents, fakeServer.file);
+    }
+
+
+    @Test
+    public void unauthorizedPutDoesntFallBack() throws Exception {
+        fakeServer.putResponseCode = 401;
+        try {
+            transport.replace(location, writeFile(DB_NAME, randomBytes(1000)), null, "user", "wrong");
+            fail("The upload was accepted");
+        } catch (StaleRevisionException e) {
+            fail("Not a stale revision");
+        } catch (TransportException e) {
+            // expected
+        }
+        assertMethods("PUT");
+        assertNull(fakeServer.file);
+        assertTrue(TransportContext.isReplaceSupported(location));
+    }
+
+
+    private void assertStale(File file, String revision) throws TransportException {
+        try {
+            transport.replace(location, file, revision, null, null);
+            fail("Replaced a file that's been changed");
+        } catch (StaleRevisionException e) {
+            // expected
+        }
+    }
+
+
+    /**
+     * Check the methods (and, for anything but a PUT, the files) of the
+     * requests the server has received
+     */
+    private void assertMethods(String... expected) {
+        List<String> methods = new ArrayList<String>();
+        for (Request request : fakeServer.requests) {
+            String fileName = request.path.substring(request.path.lastIndexOf('/') + 1);
+            methods.add(request.method.equals("PUT") ? "PUT" : request.method + " " + fileName);
+        }
+        assertEquals(Arrays.asList(expected), methods);
+    }
+
+
+    private void assertDownloadsDeleted() {
+        for (File file : tmpDir.listFiles()) {
+            assertFalse(file.getName(), file.getName().startsWith("upm"));
+        }
+    }
+
+
+    private void assertPutFails(File file) {
+        try {
+            transport.put(location, file);
+            fail("The upload was accepted");
+        } catch (TransportException e) {
+            // expected
+        }
+    }
+
+
+    private File writeFile(String name, byte[] contents) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(contents);
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+
+
+    private static byte[] readFile(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return readAll(fis);
+        } finally {
+            fis.close();
+        }
+    }
+
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] bytes = new byte[8192];
+        int bytesRead;
+        while ((bytesRead = is.read(bytes)) != -1) {
+            buffer.write(bytes, 0, bytesRead);
+        }
+        return buffer.toByteArray();
+    }
+
+
+    /**
+     * A request as the server received it. The path is relative to the
+     * server's location.
+     */
+    private static class Request {
+
+        private String method;
+        private String path;
+        private Headers headers;
+        private byte[] body;
+
+    }
+
+
+    private static class RecordingListener implements ProgressListener {
+
+        private List<long[]> progress = new ArrayList<long[]>();
+
+        public void onProgress(long bytesTransferred, long totalBytes) {
+            progress.add(new long[] {bytesTransferred, totalBytes});
+        }
+
+    }
+
+
+    /**
+     * Behaves like upload.php, deletefile.php and a web server serving the
+     * uploaded file that (unless told otherwise) supports conditional PUTs.
+     * The file is served at DB_NAME under any path so each test can use a
+     * location of its own.
+     */
+    private static class FakeServer implements HttpHandler {
+
+        private static final String BOUNDARY = "==================================";
+
+        private List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+
+        /**
+         * The uploaded file and its name
+         */
+        private byte[] file;
+        private String uploadedFileName;
+
+        /**
+         * What to answer every request with instead of handling it, if not 0
+         */
+        private int responseCode;
+        private String uploadResponse = "OK";
+
+        /**
+         * What to answer PUTs with instead of handling them, if not 0
+         */
+        private int putResponseCode;
+        private int lastResponseCode;
+
+        /**
+         * Send the file without a Content-Length or, if not -1, send only
+         * this much of it and drop the connection
+         */
+        private boolean chunked;
+        private int truncateTo = -1;
+
+        /**
+         * The file's validators change every time it does
+         */
+        private int version;
+        private boolean sendValidators = true;
+        private boolean weakETags;
+
+
+        public void handle(HttpExchange exchange) throws IOException {
+            Request request = new Request();
+            request.method = exchange.getRequestMethod();
+            request.path = exchange.getRequestURI().getPath().substring(exchange.getHttpContext().getPath().length());
+            request.headers = exchange.getRequestHeaders();
+            request.body = readAll(exchange.getRequestBody());
+            requests.add(request);
+
+            try {
+                String fileName = request.path.substring(request.path.lastIndexOf('/') + 1);
+                if (responseCode != 0) {
+                    sendStatus(exchange, responseCode);
+                } else if (request.method.equals("POST") && fileName.equals("upload.php")) {
+                    upload(request);
+                    sendText(exchange, uploadResponse);
+                } else if (request.method.equals("POST") && fileName.equals("deletefile.php")) {
+                    assertEquals("fileToDelete=" + DB_NAME + "&Delete=Submit+Query", new String(request.body, "UTF-8"));
+                    sendText(exchange, file == null ? "FILE_DOESNT_EXIST" : "OK");
+                    file = null;
+                } else if (request.method.equals("PUT") && fileName.equals(DB_NAME)) {
+                    put(request, exchange);
+                } else if (request.method.equals("HEAD") && fileName.equals(DB_NAME) && file != null) {
+                    exchange.getResponseHeaders().set("ETag", etag());
+                    sendStatus(exchange, 200);
+                } else if (request.method.equals("GET") && fileName.equals(DB_NAME) && file != null) {
+                    download(request, exchange);
+                } else {
+                    sendStatus(exchange, 404);
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+
+        /**
+         * Pick the file out of the multipart form
+         */
+        private void upload(Request request) throws IOException {
+            String body = new String(request.body, "ISO-8859-1");
+            String head = "--" + BOUNDARY + "\n";
+            String tail = "\n--" + BOUNDARY + "--";
+            assertTrue(request.headers.getFirst("Content-Type").endsWith("boundary=" + BOUNDARY));
+            assertTrue(body.startsWith(head));
+            assertTrue(body.endsWith(tail));
+
+            int headers = head.length();
+            int fileStart = body.indexOf("\n\n", headers) + 2;
+            String disposition = body.substring(headers, body.indexOf('\n', headers));
+            uploadedFileName = disposition.replaceAll(".*filename=\"([^\"]*)\"", "$1");
+            setFile(Arrays.copyOfRange(request.body, fileStart, request.body.length - tail.length()));
+        }
+
+
+        private void put(Request request, HttpExchange exchange) throws IOException {
+            String ifMatch = request.headers.getFirst("If-Match");
+            if (putResponseCode != 0) {
+                sendStatus(exchange, putResponseCode);
+            } else if (ifMatch != null && (file == null || !ifMatch.equals(etag()))) {
+                sendStatus(exchange, 412);
+            } else {
+                setFile(request.body);
+                exchange.getResponseHeaders().set("ETag", etag());
+                sendStatus(exchange, 204);
+            }
+        }
+
+
+        private void download(Request request, HttpExchange exchange) throws IOException {
+            if (sendValidators) {
+                exchange.getResponseHeaders().set("ETag", etag());
+                exchange.getResponseHeaders().set("Last-Modified", lastModified());
+                if (etag().equals(request.headers.getFirst("If-None-Match"))) {
+                    sendStatus(exchange, 304);
+                    return;
+                }
+            }
+            lastResponseCode = 200;
+            exchange.sendResponseHeaders(200, chunked ? 0 : file.length);
+            OutputStream os = exchange.getResponseBody();
+            if (truncateTo >= 0) {
+                os.write(file, 0, truncateTo);
+                os.flush();
+                // Closing the exchange now drops the connection
+                return;
+            }
+            os.write(file);
+            os.close();
+        }
+
+
+        private void sendStatus(HttpExchange exchange, int responseCode) throws IOException {
+            lastResponseCode = responseCode;
+            exchange.sendResponseHeaders(responseCode, -1);
+        }
+
+
+        private void sendText(HttpExchange exchange, String text) throws IOException {
+            byte[] bytes = text.getBytes("UTF-8");
+            lastResponseCode = 200;
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+
+
+        void setFile(byte[] file) {
+            this.file = file;
+            version++;
+        }
+
+
+        String etag() {
+            return (weakETags ? "W/" : "") + "\"v" + version + "\"";
+        }
+
+
+        String lastModified() {
+            return String.format("Sat, 01 Jan 2011 00:00:%02d GMT", version);
+        }
+
+
+        Request lastRequest() {
+            return requests.get(requests.size() - 1);
+        }
+
+
+        Request getOnlyRequest() {
+            assertEquals(1, requests.size());
+            return requests.get(0);
+        }
+
+    }
+
+}